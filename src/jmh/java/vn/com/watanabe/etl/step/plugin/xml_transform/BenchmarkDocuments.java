@@ -0,0 +1,49 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+/**
+ * Builds the documents used by the benchmarks: an order with a number of
+ * items, generated so the benchmarks do not depend on files.
+ */
+public final class BenchmarkDocuments {
+  /** Document sizes, the names used by the @Param of the benchmarks */
+  public static final String SMALL = "small";
+  public static final String MEDIUM = "medium";
+  public static final String LARGE = "large";
+
+  private BenchmarkDocuments() {
+  }
+
+  /**
+   * @param size small (about 1 KB), medium (about 40 KB) or large (about 4 MB)
+   */
+  public static String create(String size) {
+    if (SMALL.equals(size)) {
+      return create(5);
+    }
+    if (MEDIUM.equals(size)) {
+      return create(200);
+    }
+    if (LARGE.equals(size)) {
+      return create(20000);
+    }
+    throw new IllegalArgumentException("unknown document size " + size);
+  }
+
+  public static String create(int items) {
+    StringBuilder xml = new StringBuilder(200 * items + 256);
+    xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    xml.append("<order id=\"42\" status=\"open\">\n");
+    xml.append("  <customer><name>Nguyen Van A</name><city>Ha Noi</city></customer>\n");
+    xml.append("  <items>\n");
+    for (int i = 0; i < items; i++) {
+      xml.append("    <item sku=\"SKU-").append(i).append("\">");
+      xml.append("<qty>").append(1 + i % 7).append("</qty>");
+      xml.append("<price>").append(10 + i % 90).append(".25</price>");
+      xml.append("<note><![CDATA[gift wrap & card ").append(i).append("]]></note>");
+      xml.append("</item>\n");
+    }
+    xml.append("  </items>\n");
+    xml.append("</order>\n");
+    return xml.toString();
+  }
+}
@@ -0,0 +1,97 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.core.variables.Variables;
+
+/**
+ * The per field work of the step, getFieldValue and pushFieldToRow, for each
+ * result type of a multi node field.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FieldExtractionBenchmark {
+  @Param({ "valueof", "singlenode", "sum", "fist_value", "value_of_fixed_size" })
+  public String resultType;
+
+  @Param({ BenchmarkDocuments.SMALL, BenchmarkDocuments.MEDIUM })
+  public String size;
+
+  private XMLTransformWorker worker;
+  private XMLTransformField field;
+  private CompiledXPath xpath;
+  private String value;
+  private Object[] row;
+
+  @Setup(Level.Trial)
+  public void setup() throws KettleException {
+    KettleClientEnvironment.init();
+
+    field = new XMLTransformField("price");
+    field.setXPath("/order/items/item/price");
+    field.setElementType(XMLTransformField.ELEMENT_TYPE_NODE_MULTI.getId());
+    field.setResultType(XMLTransformField.getResultTypeByCode(resultType));
+    field.setDemlimiter(",");
+    field.setLength(100);
+    field.setType(XMLTransformField.RESULT_TYPE_TYPE_SUM.getValue().equals(resultType)
+        ? ValueMetaInterface.TYPE_NUMBER : ValueMetaInterface.TYPE_STRING);
+
+    XMLTransformMetaData meta = new XMLTransformMetaData();
+    meta.setDefault();
+    meta.setXMLField("xml");
+    meta.addInputField(field);
+
+    Variables space = new Variables();
+    worker = new XMLTransformWorker(meta, new VTDXMLReader(), space);
+    RowMetaInterface outputRowMeta = new RowMeta();
+    outputRowMeta.addValueMeta(new ValueMetaString("xml"));
+    meta.getFields(outputRowMeta, "XML Transform", null, null, space, null, null);
+    worker.setRowMeta(outputRowMeta, 1);
+    xpath = worker.getPlan().getXPath(0);
+
+    byte[] bytes = BenchmarkDocuments.create(size).getBytes(StandardCharsets.UTF_8);
+    worker.getReader().bind(bytes, 0, bytes.length);
+    value = worker.getFieldValue(field, xpath);
+    row = new Object[outputRowMeta.size()];
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    worker.release();
+  }
+
+  @Benchmark
+  public String getFieldValue() throws KettleException {
+    return worker.getFieldValue(field, xpath);
+  }
+
+  @Benchmark
+  public Object pushFieldToRow() throws KettleException {
+    worker.pushFieldToRow(row, 1, value);
+    return row[1];
+  }
+}
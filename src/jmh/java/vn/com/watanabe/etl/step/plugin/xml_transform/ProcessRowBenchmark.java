@@ -0,0 +1,128 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.pentaho.di.core.KettleClientEnvironment;
+import org.pentaho.di.core.QueueRowSet;
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.row.value.ValueMetaString;
+import org.pentaho.di.trans.Trans;
+import org.pentaho.di.trans.TransMeta;
+import org.pentaho.di.trans.step.StepMeta;
+
+/**
+ * The whole step: a row is put in an in-memory input row set, processRow is
+ * called and the output rows are taken from an in-memory output row set. No
+ * transformation thread runs, the step is driven from the benchmark thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProcessRowBenchmark {
+  @Param({ BenchmarkDocuments.SMALL, BenchmarkDocuments.MEDIUM, BenchmarkDocuments.LARGE })
+  public String size;
+
+  /** Code of the execution mode of the step */
+  @Param({ "serial", "threads" })
+  public String executionMode;
+
+  private XMLTransformMetaData meta;
+  private XMLTranformData data;
+  private XMLTransform step;
+  private RowSet input;
+  private RowSet output;
+  private RowMetaInterface inputRowMeta;
+  private String xml;
+
+  @Setup(Level.Trial)
+  public void setup() throws KettleException {
+    KettleClientEnvironment.init();
+
+    meta = new XMLTransformMetaData();
+    meta.setDefault();
+    meta.setXMLField("xml");
+    meta.addInputField(field("order_id", "/order/@id", XMLTransformField.ELEMENT_TYPE_ATTRIBUT,
+        XMLTransformField.RESULT_TYPE_VALUE_OF, ValueMetaInterface.TYPE_INTEGER));
+    meta.addInputField(field("customer", "/order/customer/name", XMLTransformField.ELEMENT_TYPE_NODE,
+        XMLTransformField.RESULT_TYPE_VALUE_OF, ValueMetaInterface.TYPE_STRING));
+    meta.addInputField(field("quantities", "/order/items/item/qty", XMLTransformField.ELEMENT_TYPE_NODE_MULTI,
+        XMLTransformField.RESULT_TYPE_VALUE_OF, ValueMetaInterface.TYPE_STRING));
+    meta.addInputField(field("total", "/order/items/item/price", XMLTransformField.ELEMENT_TYPE_NODE_MULTI,
+        XMLTransformField.RESULT_TYPE_TYPE_SUM, ValueMetaInterface.TYPE_NUMBER));
+    meta.setExecutionMode(XMLTransformMetaData.ExecutionModeCode.getByName(executionMode).getId());
+    meta.setParallelWorkers(4);
+
+    TransMeta transMeta = new TransMeta();
+    StepMeta stepMeta = new StepMeta("XML Transform", meta);
+    transMeta.addStep(stepMeta);
+    Trans trans = new Trans(transMeta);
+
+    data = (XMLTranformData) meta.getStepData();
+    step = new XMLTransform(stepMeta, data, 0, transMeta, trans);
+    input = new QueueRowSet();
+    output = new QueueRowSet();
+    List<RowSet> inputRowSets = new ArrayList<RowSet>();
+    inputRowSets.add(input);
+    List<RowSet> outputRowSets = new ArrayList<RowSet>();
+    outputRowSets.add(output);
+    step.setInputRowSets(inputRowSets);
+    step.setOutputRowSets(outputRowSets);
+    if (!step.init(meta, data)) {
+      throw new KettleException("the step did not initialize");
+    }
+
+    inputRowMeta = new RowMeta();
+    inputRowMeta.addValueMeta(new ValueMetaString("xml"));
+    xml = BenchmarkDocuments.create(size);
+  }
+
+  private static XMLTransformField field(String name, String xpath, BaseSelectList.Item elementType,
+      BaseSelectList.Item resultType, int type) {
+    XMLTransformField field = new XMLTransformField(name);
+    field.setXPath(xpath);
+    field.setElementType(elementType.getId());
+    field.setResultType(resultType.getId());
+    field.setType(type);
+    field.setDemlimiter(",");
+    return field;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    step.dispose(meta, data);
+  }
+
+  @Benchmark
+  public void processRow(Blackhole blackhole) throws KettleException {
+    input.putRow(inputRowMeta, new Object[] { xml });
+    step.processRow(meta, data);
+    // the pool puts the rows of earlier documents once they are done
+    Object[] row;
+    while ((row = output.getRow()) != null) {
+      blackhole.consume(row);
+    }
+  }
+}
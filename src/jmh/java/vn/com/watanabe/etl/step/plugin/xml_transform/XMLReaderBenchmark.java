@@ -0,0 +1,183 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * Every XMLReader method on small, medium and large documents. The bind
+ * benchmarks parse the document on each call, the others evaluate against a
+ * document parsed once, with the XPath given as a String or compiled.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XMLReaderBenchmark {
+  private static final String FIRST_NAME = "/order/customer/name";
+  private static final String FIRST_ITEM = "/order/items/item[1]";
+  private static final String ORDER_ID = "/order/@id";
+  private static final String QUANTITIES = "/order/items/item/qty";
+  private static final String PRICES = "/order/items/item/price";
+  private static final String ITEMS = "/order/items/item";
+
+  @Param({ BenchmarkDocuments.SMALL, BenchmarkDocuments.MEDIUM, BenchmarkDocuments.LARGE })
+  public String size;
+
+  private String xml;
+  private byte[] bytes;
+  /** Parses the document on each call */
+  private VTDXMLReader bindReader;
+  /** Holds the document parsed once */
+  private VTDXMLReader reader;
+  private CompiledXPath firstName;
+  private CompiledXPath firstItem;
+  private CompiledXPath orderId;
+  private CompiledXPath quantities;
+  private CompiledXPath prices;
+  private CompiledXPath items;
+  private CompiledXPath itemSku;
+
+  @Setup(Level.Trial)
+  public void setup() throws KettleException {
+    xml = BenchmarkDocuments.create(size);
+    bytes = xml.getBytes(StandardCharsets.UTF_8);
+    bindReader = new VTDXMLReader();
+    reader = new VTDXMLReader();
+    firstName = reader.compile(FIRST_NAME);
+    firstItem = reader.compile(FIRST_ITEM);
+    orderId = reader.compile(ORDER_ID);
+    quantities = reader.compile(QUANTITIES);
+    prices = reader.compile(PRICES);
+    items = reader.compile(ITEMS);
+    itemSku = reader.compile("@sku");
+    reader.bind(bytes, 0, bytes.length);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    reader.release();
+    bindReader.release();
+  }
+
+  @Benchmark
+  public Object bindString() throws KettleException {
+    try {
+      bindReader.bind(xml);
+      return bindReader.getNav();
+    } finally {
+      bindReader.reset();
+    }
+  }
+
+  @Benchmark
+  public Object bindBytes() throws KettleException {
+    try {
+      bindReader.bind(bytes, 0, bytes.length);
+      return bindReader.getNav();
+    } finally {
+      bindReader.reset();
+    }
+  }
+
+  @Benchmark
+  public String getFirstNodeValue() throws KettleException {
+    return reader.getFirstNodeValue(FIRST_NAME);
+  }
+
+  @Benchmark
+  public String getFirstNodeValueCompiled() throws KettleException {
+    return reader.getFirstNodeValue(firstName);
+  }
+
+  @Benchmark
+  public String getFirstNodeXML() throws KettleException {
+    return reader.getFirstNodeXML(FIRST_ITEM);
+  }
+
+  @Benchmark
+  public String getFirstNodeXMLCompiled() throws KettleException {
+    return reader.getFirstNodeXML(firstItem);
+  }
+
+  @Benchmark
+  public String getAttribute() throws KettleException {
+    return reader.getAttribute(ORDER_ID);
+  }
+
+  @Benchmark
+  public String getAttributeCompiled() throws KettleException {
+    return reader.getAttribute(orderId);
+  }
+
+  @Benchmark
+  public String getNodeValues() throws KettleException {
+    return reader.getNodeValues(QUANTITIES, ",");
+  }
+
+  @Benchmark
+  public String getNodeValuesCompiled() throws KettleException {
+    return reader.getNodeValues(quantities, ",");
+  }
+
+  @Benchmark
+  public String getNodeValuesFixedSize() throws KettleException {
+    return reader.getNodeValuesFixedSize(QUANTITIES, ",", 100);
+  }
+
+  @Benchmark
+  public String getNodeValuesFixedSizeCompiled() throws KettleException {
+    return reader.getNodeValuesFixedSize(quantities, ",", 100);
+  }
+
+  @Benchmark
+  public String getNodesXML() throws KettleException {
+    return reader.getNodesXML(ITEMS);
+  }
+
+  @Benchmark
+  public String getNodesXMLCompiled() throws KettleException {
+    return reader.getNodesXML(items);
+  }
+
+  @Benchmark
+  public Float getSum() throws KettleException {
+    return reader.getSum(PRICES);
+  }
+
+  @Benchmark
+  public Float getSumCompiled() throws KettleException {
+    return reader.getSum(prices);
+  }
+
+  @Benchmark
+  public int nextNode() throws KettleException {
+    int length = 0;
+    // the document stays bound across calls, start each loop from the root
+    reader.getNav().push();
+    try {
+      while (reader.nextNode(items)) {
+        length += reader.getAttribute(itemSku).length();
+      }
+    } finally {
+      reader.getNav().pop();
+    }
+    return length;
+  }
+}
@@ -0,0 +1,11 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+/**
+ * An XPath expression parsed once by an {@link XMLReader}.
+ *
+ * A compiled expression belongs to the reader which created it and can be
+ * evaluated against every document bound to that reader afterwards.
+ */
+public interface CompiledXPath {
+    public String getXPath();
+}
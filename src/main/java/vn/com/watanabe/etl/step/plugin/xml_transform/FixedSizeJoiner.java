@@ -0,0 +1,45 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+/**
+ * Joins node values for the fixed size result type: a first value reaching
+ * the size is cut to the size minus one character, the next ones are added
+ * while the values so far, delimiters not counted, stay under it.
+ *
+ * The cut keeps one character less than the size, as the step always did.
+ * Keeping the whole size would change the output of existing
+ * transformations, so it is left to a change of its own.
+ */
+final class FixedSizeJoiner {
+  private final StringBuilder result = new StringBuilder();
+  private final String delimiter;
+  private final int length;
+  private int size;
+  private boolean first = true;
+
+  FixedSizeJoiner(String delimiter, int length) {
+    this.delimiter = delimiter;
+    this.length = length;
+  }
+
+  /**
+   * @return false once the size is reached, the next values are not taken
+   */
+  boolean add(String value) {
+    size += value.length();
+    if (first) {
+      first = false;
+      result.append(size >= length ? value.substring(0, Math.max(length - 1, 0)) : value);
+      return true;
+    }
+    if (size >= length) {
+      return false;
+    }
+    result.append(delimiter).append(value);
+    return true;
+  }
+
+  @Override
+  public String toString() {
+    return result.toString();
+  }
+}
@@ -0,0 +1,243 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * An XPath with <code>?{field}</code> placeholders, filled with the values of
+ * the input row, e.g. <code>/doc/item[@tenant='?{tenant}']/amount</code>. A
+ * placeholder is a non-empty field name between <code>?{</code> and
+ * <code>}</code>, any other text is kept as it is.
+ *
+ * In a predicate or a function argument, or between quotes, the value is
+ * inserted as an XPath string literal, quoted so a row value can not change
+ * the expression: <code>?{tenant}</code> and <code>'?{tenant}'</code> both
+ * give <code>'acme'</code>, a value with both kinds of quotes is built with
+ * <code>concat()</code>. Anywhere else the placeholder is a name, e.g.
+ * <code>/doc/?{section}/amount</code> or <code>/doc/ns:?{item}</code>: the
+ * value is inserted as it is and must be an XML name without a colon.
+ */
+public class RowParameterizedXPath {
+  private static final Class<?> PKG = XMLTransformMetaData.class; // for i18n purposes
+  public static String DEFAULT_PREFIX = "XMLTransform";
+
+  public static final String PLACEHOLDER_OPEN = "?{";
+  public static final String PLACEHOLDER_CLOSE = "}";
+
+  private final String xpath;
+  /** Text between the placeholders, one more than the placeholders */
+  private final String[] literals;
+  private final String[] fieldNames;
+  /** The placeholders filled with a name rather than a string literal */
+  private final boolean[] names;
+  /** Index of each placeholder field in the input row */
+  private int[] fieldIndexes;
+  private final StringBuilder builder = new StringBuilder();
+
+  private RowParameterizedXPath(String xpath, String[] literals, String[] fieldNames, boolean[] names) {
+    this.xpath = xpath;
+    this.literals = literals;
+    this.fieldNames = fieldNames;
+    this.names = names;
+  }
+
+  /**
+   * @return true when the XPath has at least one placeholder, as {@link #parse(String)} finds them
+   */
+  public static boolean hasPlaceholders(String xpath) {
+    return parse(xpath) != null;
+  }
+
+  /**
+   * Split an XPath on its placeholders.
+   *
+   * @return the parameterized XPath, null when it has no placeholder
+   */
+  public static RowParameterizedXPath parse(String xpath) {
+    if (xpath == null || !xpath.contains(PLACEHOLDER_OPEN)) {
+      return null;
+    }
+    List<String> literals = new ArrayList<String>();
+    List<String> fieldNames = new ArrayList<String>();
+    List<Boolean> names = new ArrayList<Boolean>();
+    int length = xpath.length();
+    // start of the text before the next placeholder
+    int pos = 0;
+    // predicates and function arguments the scan is in
+    int depth = 0;
+    char quote = 0;
+    int i = 0;
+    while (i < length) {
+      if (xpath.startsWith(PLACEHOLDER_OPEN, i)) {
+        int close = xpath.indexOf(PLACEHOLDER_CLOSE, i + PLACEHOLDER_OPEN.length());
+        if (close < 0) {
+          break;
+        }
+        int end = close + PLACEHOLDER_CLOSE.length();
+        String fieldName = xpath.substring(i + PLACEHOLDER_OPEN.length(), close).trim();
+        if (!fieldName.isEmpty()) {
+          int open = i;
+          // the quotes written around a placeholder are replaced by the quoting of the value
+          if (quote != 0 && xpath.charAt(open - 1) == quote && end < length && xpath.charAt(end) == quote) {
+            open--;
+            end++;
+            quote = 0;
+          }
+          fieldNames.add(fieldName);
+          names.add(quote == 0 && depth == 0 && open == i);
+          literals.add(xpath.substring(pos, open));
+          pos = end;
+        }
+        i = end;
+        continue;
+      }
+      char c = xpath.charAt(i);
+      if (quote != 0) {
+        if (c == quote) {
+          quote = 0;
+        }
+      } else if (isQuote(c)) {
+        quote = c;
+      } else if (c == '[' || c == '(') {
+        depth++;
+      } else if ((c == ']' || c == ')') && depth > 0) {
+        depth--;
+      }
+      i++;
+    }
+    if (fieldNames.isEmpty()) {
+      return null;
+    }
+    literals.add(xpath.substring(pos));
+    boolean[] nameFlags = new boolean[names.size()];
+    for (int j = 0; j < nameFlags.length; j++) {
+      nameFlags[j] = names.get(j);
+    }
+    return new RowParameterizedXPath(xpath, literals.toArray(new String[literals.size()]),
+        fieldNames.toArray(new String[fieldNames.size()]), nameFlags);
+  }
+
+  public String getXPath() {
+    return xpath;
+  }
+
+  /**
+   * @return the names of the placeholder fields, in the order of the XPath
+   */
+  public String[] getFieldNames() {
+    return fieldNames.clone();
+  }
+
+  /**
+   * Find the placeholder fields in the input row.
+   *
+   * @param rowMeta        the output row, starting with the input fields
+   * @param numInputFields the number of input fields
+   * @throws KettleException when a placeholder is not an input field
+   */
+  public void setRowMeta(RowMetaInterface rowMeta, int numInputFields) throws KettleException {
+    fieldIndexes = new int[fieldNames.length];
+    for (int i = 0; i < fieldNames.length; i++) {
+      int index = rowMeta.indexOfValue(fieldNames[i]);
+      if (index < 0 || index >= numInputFields) {
+        throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.ErrorFindingField",
+            fieldNames[i]));
+      }
+      fieldIndexes[i] = index;
+    }
+  }
+
+  /**
+   * @return the XPath with the values of the row in place of the placeholders,
+   *         as names or string literals, '' for null literals
+   * @throws KettleValueException when the value of a name placeholder is not a name
+   */
+  public String resolve(RowMetaInterface rowMeta, Object[] row) throws KettleValueException {
+    builder.setLength(0);
+    for (int i = 0; i < fieldIndexes.length; i++) {
+      builder.append(literals[i]);
+      String value = rowMeta.getString(row, fieldIndexes[i]);
+      if (names[i]) {
+        if (!isNCName(value)) {
+          throw new KettleValueException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidXPathName",
+              fieldNames[i], value, xpath));
+        }
+        builder.append(value);
+      } else {
+        appendLiteral(builder, value != null ? value : "");
+      }
+    }
+    builder.append(literals[literals.length - 1]);
+    return builder.toString();
+  }
+
+  /**
+   * Append a value as an XPath 1.0 string literal. The language has no escape
+   * inside a literal, a value with both quotes is the concat() of its parts.
+   */
+  static void appendLiteral(StringBuilder builder, String value) {
+    if (value.indexOf('\'') < 0) {
+      builder.append('\'').append(value).append('\'');
+    } else if (value.indexOf('"') < 0) {
+      builder.append('"').append(value).append('"');
+    } else {
+      builder.append("concat(");
+      int start = 0;
+      int quote;
+      while ((quote = value.indexOf('\'', start)) >= 0) {
+        if (quote > start) {
+          builder.append('\'').append(value, start, quote).append("',");
+        }
+        builder.append("\"'\",");
+        start = quote + 1;
+      }
+      if (start < value.length()) {
+        builder.append('\'').append(value, start, value.length()).append('\'');
+      } else {
+        builder.setLength(builder.length() - 1);
+      }
+      builder.append(')');
+    }
+  }
+
+  /**
+   * @return true when the value is an XML name without a colon, as XML 1.0
+   *         fifth edition defines them
+   */
+  static boolean isNCName(String value) {
+    if (value == null || value.isEmpty()) {
+      return false;
+    }
+    int i = 0;
+    while (i < value.length()) {
+      int c = value.codePointAt(i);
+      if (i == 0 ? !isNameStartChar(c) : !isNameChar(c)) {
+        return false;
+      }
+      i += Character.charCount(c);
+    }
+    return true;
+  }
+
+  private static boolean isNameStartChar(int c) {
+    return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_'
+        || c >= 0xC0 && c <= 0xD6 || c >= 0xD8 && c <= 0xF6 || c >= 0xF8 && c <= 0x2FF
+        || c >= 0x370 && c <= 0x37D || c >= 0x37F && c <= 0x1FFF || c >= 0x200C && c <= 0x200D
+        || c >= 0x2070 && c <= 0x218F || c >= 0x2C00 && c <= 0x2FEF || c >= 0x3001 && c <= 0xD7FF
+        || c >= 0xF900 && c <= 0xFDCF || c >= 0xFDF0 && c <= 0xFFFD || c >= 0x10000 && c <= 0xEFFFF;
+  }
+
+  private static boolean isNameChar(int c) {
+    return isNameStartChar(c) || c >= '0' && c <= '9' || c == '-' || c == '.' || c == 0xB7
+        || c >= 0x300 && c <= 0x36F || c >= 0x203F && c <= 0x2040;
+  }
+
+  private static boolean isQuote(char c) {
+    return c == '\'' || c == '"';
+  }
+}
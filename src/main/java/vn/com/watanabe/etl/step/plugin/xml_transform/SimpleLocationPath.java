@@ -0,0 +1,144 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An absolute XPath made only of child steps, optional positional predicates
+ * and an optional trailing attribute, e.g. <code>/order/line[2]/@id</code>.
+ *
+ * Such a path can be matched while walking a document forward, without an
+ * XPath engine.
+ */
+public class SimpleLocationPath {
+  private final String xpath;
+  private final String[] names;
+  private final int[] positions;
+  private final String attribute;
+
+  private SimpleLocationPath(String xpath, String[] names, int[] positions, String attribute) {
+    this.xpath = xpath;
+    this.names = names;
+    this.positions = positions;
+    this.attribute = attribute;
+  }
+
+  /**
+   * Parse an XPath.
+   *
+   * @param xpath the expression to parse
+   * @return the location path or null when the expression is not a simple one
+   */
+  public static SimpleLocationPath parse(String xpath) {
+    if (xpath == null) {
+      return null;
+    }
+    String path = xpath.trim();
+    int length = path.length();
+    List<String> names = new ArrayList<String>();
+    List<Integer> positions = new ArrayList<Integer>();
+    String attribute = null;
+    int pos = 0;
+    while (pos < length) {
+      if (path.charAt(pos) != '/' || attribute != null) {
+        return null;
+      }
+      pos++;
+      boolean isAttribute = pos < length && path.charAt(pos) == '@';
+      if (isAttribute) {
+        pos++;
+      }
+      int start = pos;
+      while (pos < length && isNameChar(path.charAt(pos), pos == start)) {
+        pos++;
+      }
+      if (pos == start) {
+        return null;
+      }
+      String name = path.substring(start, pos);
+      if (isAttribute) {
+        attribute = name;
+        continue;
+      }
+      int position = 0;
+      if (pos < length && path.charAt(pos) == '[') {
+        int end = path.indexOf(']', pos);
+        if (end < 0) {
+          return null;
+        }
+        try {
+          position = Integer.parseInt(path.substring(pos + 1, end).trim());
+        } catch (NumberFormatException e) {
+          return null;
+        }
+        if (position < 1) {
+          return null;
+        }
+        pos = end + 1;
+      }
+      names.add(name);
+      positions.add(position);
+    }
+    if (names.isEmpty()) {
+      return null;
+    }
+    int size = names.size();
+    int[] positionArray = new int[size];
+    for (int i = 0; i < size; i++) {
+      positionArray[i] = positions.get(i);
+    }
+    return new SimpleLocationPath(path, names.toArray(new String[size]), positionArray, attribute);
+  }
+
+  private static boolean isNameChar(char c, boolean first) {
+    if (Character.isLetter(c) || c == '_') {
+      return true;
+    }
+    return !first && (Character.isDigit(c) || c == '-' || c == '.' || c == ':');
+  }
+
+  public String getXPath() {
+    return xpath;
+  }
+
+  /**
+   * @return the number of element steps
+   */
+  public int depth() {
+    return names.length;
+  }
+
+  public String getName(int step) {
+    return names[step];
+  }
+
+  /**
+   * @return the position required by the predicate of the step, 0 when there is none
+   */
+  public int getPosition(int step) {
+    return positions[step];
+  }
+
+  /**
+   * @return the trailing attribute name, null when the path selects elements
+   */
+  public String getAttribute() {
+    return attribute;
+  }
+
+  public boolean isAttribute() {
+    return attribute != null;
+  }
+
+  /**
+   * @return true when one of the names carries a namespace prefix
+   */
+  public boolean hasPrefix() {
+    for (String name : names) {
+      if (name.indexOf(':') >= 0) {
+        return true;
+      }
+    }
+    return attribute != null && attribute.indexOf(':') >= 0;
+  }
+}
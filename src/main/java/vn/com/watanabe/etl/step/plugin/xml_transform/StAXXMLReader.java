@@ -0,0 +1,735 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * A reader pulling the events of the document with StAX, without building an
+ * index: its memory is the parser buffer and the extracted values, whatever
+ * the size of the document. Files are streamed, never loaded.
+ *
+ * Only the XPaths a forward walk can evaluate are accepted, the absolute
+ * child paths of {@link SimpleLocationPath}; anything needing another axis
+ * is rejected by {@link #compile(String)}, and there is no loop support.
+ *
+ * The compiled expressions are all evaluated in one walk per document, which
+ * stops as soon as every expression has its first node, so leading header
+ * fields of a huge body are read without parsing the body. An expression
+ * learns from its first document which results it is asked for; a result not
+ * captured yet costs one more walk of the document. Fragments are written
+ * back from the events, they are equivalent to the source, not byte for byte
+ * identical.
+ */
+public class StAXXMLReader implements XMLReader {
+    /** Text of the first matched node, or value of the first matched attribute */
+    static final int CAPTURE_FIRST_VALUE = 1;
+    /** Texts of all the matched nodes, or values of all the matched attributes */
+    static final int CAPTURE_VALUES = 2;
+    /** Fragment of the first matched element */
+    static final int CAPTURE_FIRST_XML = 4;
+    /** Fragments of all the matched elements */
+    static final int CAPTURE_NODES_XML = 8;
+    /** Whether a node is matched at all */
+    static final int CAPTURE_MATCH = 16;
+
+    private final XMLInputFactory factory;
+    /** Expressions evaluated by the walk of each document */
+    private final List<StAXCompiledXPath> compiled = new ArrayList<StAXCompiledXPath>();
+    /** Expressions of the string based methods, compiled once */
+    private final Map<String, StAXCompiledXPath> adHoc = new HashMap<String, StAXCompiledXPath>();
+    /** XPath prefix of each declared namespace URI, the names in that namespace are matched with it */
+    private final Map<String, String> prefixesByURI = new HashMap<String, String>();
+    /** Sibling counts of each depth, for the positional predicates */
+    private final List<Map<String, Integer>> siblings = new ArrayList<Map<String, Integer>>();
+
+    /** The current document, held by the caller: a String, bytes or a file path */
+    private String xml;
+    private byte[] doc;
+    private int docOffset;
+    private int docLength;
+    private String path;
+    private boolean bound;
+    private boolean walked;
+    /** The bound file was counted in the metrics, on its first walk */
+    private boolean fileCounted;
+    /** Incremented on every bind, expressions captured on an older value are stale */
+    private int generation;
+    /** Receives the walk times and the parse errors, null when the step keeps no metrics */
+    private XMLTransformMetrics metrics;
+
+    public StAXXMLReader() {
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    }
+
+    /**
+     * Read the documents with or without namespaces. Without, the names are
+     * matched as written, prefix included.
+     */
+    public void setNamespaceAware(boolean namespaceAware) {
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, namespaceAware);
+    }
+
+    @Override
+    public void declareNamespace(String prefix, String uri) {
+        prefixesByURI.put(uri, prefix);
+    }
+
+    /**
+     * Report the files read, the walk times and the parse errors to the metrics
+     * of the step.
+     */
+    public void setMetrics(XMLTransformMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void bind(String xml) throws KettleException {
+        reset();
+        this.xml = xml;
+        bound();
+    }
+
+    @Override
+    public void bind(byte[] doc, int offset, int length) throws KettleException {
+        reset();
+        this.doc = doc;
+        this.docOffset = offset;
+        this.docLength = length;
+        bound();
+    }
+
+    @Override
+    public void bindFile(String path) throws KettleException {
+        reset();
+        this.path = path;
+        bound();
+    }
+
+    private void bound() {
+        bound = true;
+        walked = false;
+        fileCounted = false;
+        generation++;
+    }
+
+    @Override
+    public void reset() {
+        xml = null;
+        doc = null;
+        path = null;
+        bound = false;
+    }
+
+    @Override
+    public void release() {
+        reset();
+        compiled.clear();
+        adHoc.clear();
+        siblings.clear();
+    }
+
+    @Override
+    public CompiledXPath compile(String xpath) throws KettleException {
+        StAXCompiledXPath result = parse(xpath);
+        compiled.add(result);
+        return result;
+    }
+
+    @Override
+    public void discard(CompiledXPath xpath) {
+        compiled.remove(xpath);
+    }
+
+    private StAXCompiledXPath parse(String xpath) throws KettleException {
+        SimpleLocationPath location = SimpleLocationPath.parse(xpath);
+        if (location == null) {
+            throw new KettleException("xpath not supported by the streaming reader, only absolute child steps"
+                    + " with positions and a trailing attribute are: " + xpath);
+        }
+        return new StAXCompiledXPath(location, prefixesByURI);
+    }
+
+    private StAXCompiledXPath select(String xpath) throws KettleException {
+        StAXCompiledXPath result = adHoc.get(xpath);
+        if (result == null) {
+            result = parse(xpath);
+            adHoc.put(xpath, result);
+        }
+        return result;
+    }
+
+    /**
+     * Get an expression with the given result captured on the current
+     * document, walking the document when it is not.
+     */
+    StAXCompiledXPath evaluate(CompiledXPath xpath, int capture) throws KettleException {
+        if (!bound) {
+            throw new KettleException("no document bound to the reader");
+        }
+        StAXCompiledXPath expression = (StAXCompiledXPath) xpath;
+        expression.captures |= capture;
+        if (!walked) {
+            walked = true;
+            walk(compiled);
+        }
+        if (expression.generation != generation || (expression.captured & capture) != capture) {
+            walk(Collections.singletonList(expression));
+        }
+        return expression;
+    }
+
+    @Override
+    public String getFirstNodeValue(String xpath) throws KettleException {
+        return getFirstNodeValue(select(xpath));
+    }
+
+    @Override
+    public String getFirstNodeValue(CompiledXPath xpath) throws KettleException {
+        StAXCompiledXPath expression = evaluate(xpath, CAPTURE_FIRST_VALUE);
+        return expression.location.isAttribute() || expression.firstValue == null ? "" : expression.firstValue;
+    }
+
+    @Override
+    public String getFirstNodeXML(String xpath) throws KettleException {
+        return getFirstNodeXML(select(xpath));
+    }
+
+    @Override
+    public String getFirstNodeXML(CompiledXPath xpath) throws KettleException {
+        StAXCompiledXPath expression = evaluate(xpath, CAPTURE_FIRST_XML);
+        return expression.firstXML == null ? "" : expression.firstXML;
+    }
+
+    @Override
+    public String getAttribute(String xpath) throws KettleException {
+        return getAttribute(select(xpath));
+    }
+
+    @Override
+    public String getAttribute(CompiledXPath xpath) throws KettleException {
+        StAXCompiledXPath expression = evaluate(xpath, CAPTURE_FIRST_VALUE);
+        return expression.location.isAttribute() && expression.firstValue != null ? expression.firstValue : "";
+    }
+
+    @Override
+    public String getNodeValues(String xpath, String delimiter) throws KettleException {
+        return getNodeValues(select(xpath), delimiter);
+    }
+
+    @Override
+    public String getNodeValues(CompiledXPath xpath, String delimiter) throws KettleException {
+        StringBuilder result = new StringBuilder();
+        boolean first = true;
+        for (String value : evaluate(xpath, CAPTURE_VALUES).values) {
+            if (first) {
+                first = false;
+            } else {
+                result.append(delimiter);
+            }
+            result.append(value);
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String getNodeValuesFixedSize(String xpath, String delimiter, int length) throws KettleException {
+        return getNodeValuesFixedSize(select(xpath), delimiter, length);
+    }
+
+    @Override
+    public String getNodeValuesFixedSize(CompiledXPath xpath, String delimiter, int length) throws KettleException {
+        FixedSizeJoiner result = new FixedSizeJoiner(delimiter, length);
+        for (String row : evaluate(xpath, CAPTURE_VALUES).values) {
+            if (!result.add(row)) {
+                break;
+            }
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String getNodesXML(String xpath) throws KettleException {
+        return getNodesXML(select(xpath));
+    }
+
+    @Override
+    public String getNodesXML(CompiledXPath xpath) throws KettleException {
+        return "<row>" + evaluate(xpath, CAPTURE_NODES_XML).nodesXML + "</row>";
+    }
+
+    @Override
+    public Float getSum(String xpath) throws KettleException {
+        return getSum(select(xpath));
+    }
+
+    @Override
+    public Float getSum(CompiledXPath xpath) throws KettleException {
+        float result = 0;
+        try {
+            for (String value : evaluate(xpath, CAPTURE_VALUES).values) {
+                result += Float.parseFloat(value);
+            }
+        } catch (NumberFormatException e) {
+            throw new KettleException("error in try getSum", e);
+        }
+        return result;
+    }
+
+    @Override
+    public void aggregate(String xpath, XPathAggregate result) throws KettleException {
+        aggregate(select(xpath), result);
+    }
+
+    @Override
+    public void aggregate(CompiledXPath xpath, XPathAggregate result) throws KettleException {
+        StAXCompiledXPath expression = evaluate(xpath, CAPTURE_VALUES);
+        result.reset();
+        for (String text : expression.values) {
+            String value = text.trim();
+            if (value.isEmpty()) {
+                result.addNode();
+                continue;
+            }
+            try {
+                result.add(new BigDecimal(value));
+            } catch (NumberFormatException e) {
+                throw new KettleException("not a number [" + value + "]", e);
+            }
+        }
+        // matched nodes without text
+        for (int i = expression.values.size(); i < expression.matches; i++) {
+            result.addNode();
+        }
+    }
+
+    @Override
+    public boolean matches(CompiledXPath xpath) throws KettleException {
+        if (!bound) {
+            throw new KettleException("no document bound to the reader");
+        }
+        StAXCompiledXPath expression = (StAXCompiledXPath) xpath;
+        expression.captures |= CAPTURE_MATCH;
+        if (expression.generation != generation || (expression.captured & CAPTURE_MATCH) == 0) {
+            // walked on its own, a rejected document does not pay for the walk of the fields
+            walk(Collections.singletonList(expression));
+        }
+        return expression.matches > 0;
+    }
+
+    @Override
+    public boolean nextNode(CompiledXPath xpath) throws KettleException {
+        throw new KettleException("the streaming reader does not support a loop XPath");
+    }
+
+    /**
+     * Walk the current document once, capturing the results of the given
+     * expressions.
+     */
+    private void walk(List<StAXCompiledXPath> expressions) throws KettleException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        int pending = 0;
+        for (StAXCompiledXPath expression : expressions) {
+            expression.start(generation);
+            if (!expression.isDone()) {
+                pending++;
+            }
+        }
+        XMLStreamReader stream = null;
+        InputStream input = null;
+        try {
+            if (path != null) {
+                FileInputStream file = new FileInputStream(path);
+                input = file;
+                if (metrics != null && !fileCounted) {
+                    fileCounted = true;
+                    metrics.documentRead(file.getChannel().size());
+                }
+                input = new BufferedInputStream(file, 64 * 1024);
+                stream = factory.createXMLStreamReader(input);
+            } else if (doc != null) {
+                input = new ByteArrayInputStream(doc, docOffset, docLength);
+                stream = factory.createXMLStreamReader(input,
+                        XMLEncoding.getCharset(doc, docOffset, docLength).name());
+            } else {
+                stream = factory.createXMLStreamReader(new StringReader(xml));
+            }
+            countSibling(0, "");
+            int depth = 0;
+            while (pending > 0 && stream.hasNext()) {
+                int event = stream.next();
+                switch (event) {
+                    case XMLStreamConstants.START_ELEMENT: {
+                        depth++;
+                        String name = qualifiedName(stream.getPrefix(), stream.getLocalName());
+                        String matchName = matchName(prefixesByURI, stream.getNamespaceURI(), name,
+                                stream.getLocalName());
+                        int position = countSibling(depth, matchName);
+                        for (StAXCompiledXPath expression : expressions) {
+                            expression.writeStart(stream, name);
+                            if (expression.startElement(depth, matchName, position)) {
+                                boolean done = expression.isDone();
+                                expression.matched(stream, name, depth);
+                                if (!done && expression.isDone()) {
+                                    pending--;
+                                }
+                            }
+                        }
+                        break;
+                    }
+                    case XMLStreamConstants.END_ELEMENT: {
+                        String name = qualifiedName(stream.getPrefix(), stream.getLocalName());
+                        for (StAXCompiledXPath expression : expressions) {
+                            boolean done = expression.isDone();
+                            expression.endElement(depth, name);
+                            if (!done && expression.isDone()) {
+                                pending--;
+                            }
+                        }
+                        depth--;
+                        break;
+                    }
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        for (StAXCompiledXPath expression : expressions) {
+                            expression.text(stream, depth, event == XMLStreamConstants.CDATA);
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        for (StAXCompiledXPath expression : expressions) {
+                            expression.writeOther(stream, event);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        } catch (XMLStreamException | IOException e) {
+            if (metrics != null) {
+                metrics.parseFailed();
+            }
+            throw new KettleException("error in try parse xml", e);
+        } finally {
+            close(stream, input);
+            for (StAXCompiledXPath expression : expressions) {
+                expression.finish();
+            }
+        }
+        if (metrics != null) {
+            metrics.parsed(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Count an element among its siblings of the same name.
+     *
+     * @return the position of the element, from 1
+     */
+    private int countSibling(int depth, String name) {
+        while (siblings.size() <= depth + 1) {
+            siblings.add(new HashMap<String, Integer>());
+        }
+        Map<String, Integer> counts = siblings.get(depth);
+        Integer count = counts.get(name);
+        int position = count == null ? 1 : count + 1;
+        counts.put(name, position);
+        // the children of the element are counted from scratch
+        siblings.get(depth + 1).clear();
+        return position;
+    }
+
+    private static String qualifiedName(String prefix, String localName) {
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+    }
+
+    /**
+     * @return the name an XPath step is compared with: the declared prefix of
+     *         the namespace of the node and its local name, the name as
+     *         written when the namespace is not declared
+     */
+    private static String matchName(Map<String, String> prefixesByURI, String uri, String qualifiedName,
+            String localName) {
+        if (prefixesByURI.isEmpty() || uri == null || uri.isEmpty()) {
+            return qualifiedName;
+        }
+        String prefix = prefixesByURI.get(uri);
+        return prefix != null ? prefix + ":" + localName : qualifiedName;
+    }
+
+    private static void close(XMLStreamReader stream, InputStream input) {
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+        } catch (XMLStreamException e) {
+            // nothing left to read
+        }
+        try {
+            if (input != null) {
+                input.close();
+            }
+        } catch (IOException e) {
+            // nothing left to read
+        }
+    }
+
+    private static void escape(StringBuilder out, String text, boolean attribute) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    out.append("&lt;");
+                    break;
+                case '>':
+                    out.append("&gt;");
+                    break;
+                case '&':
+                    out.append("&amp;");
+                    break;
+                case '"':
+                    out.append(attribute ? "&quot;" : "\"");
+                    break;
+                default:
+                    out.append(c);
+            }
+        }
+    }
+
+    /**
+     * An expression and the results captured for the current document.
+     */
+    static class StAXCompiledXPath implements CompiledXPath {
+        final SimpleLocationPath location;
+        /** Results asked for, CAPTURE_ flags */
+        int captures;
+        /** Results captured by the last walk */
+        int captured;
+        int generation = -1;
+
+        /** Depth of the deepest step matched by the ancestors of the current element */
+        int matchedDepth;
+        /** Matched nodes */
+        int matches;
+        String firstValue;
+        List<String> values = new ArrayList<String>();
+        String firstXML;
+        StringBuilder nodesXML = new StringBuilder();
+        /** Depth of the matched element whose first text is awaited, 0 when none */
+        int textDepth;
+        /** Depth of the matched element being written, 0 when none */
+        int xmlDepth;
+        StringBuilder xmlBuilder = new StringBuilder();
+        boolean firstEnded;
+        /** XPath prefix of each declared namespace URI, shared with the reader */
+        final Map<String, String> prefixesByURI;
+
+        StAXCompiledXPath(SimpleLocationPath location, Map<String, String> prefixesByURI) {
+            this.location = location;
+            this.prefixesByURI = prefixesByURI;
+        }
+
+        @Override
+        public String getXPath() {
+            return location.getXPath();
+        }
+
+        void start(int generation) {
+            this.generation = generation;
+            captured = captures;
+            matchedDepth = 0;
+            matches = 0;
+            firstValue = null;
+            values.clear();
+            firstXML = null;
+            nodesXML.setLength(0);
+            textDepth = 0;
+            xmlDepth = 0;
+            xmlBuilder.setLength(0);
+            firstEnded = false;
+        }
+
+        void finish() {
+            xmlDepth = 0;
+            textDepth = 0;
+        }
+
+        /**
+         * @return true when nothing more can be captured from the rest of the document
+         */
+        boolean isDone() {
+            if ((captured & (CAPTURE_VALUES | CAPTURE_NODES_XML)) != 0) {
+                return false;
+            }
+            if ((captured & ~CAPTURE_MATCH) == 0) {
+                return captured == 0 || matches > 0;
+            }
+            return location.isAttribute() ? firstValue != null : firstEnded;
+        }
+
+        /**
+         * Follow the steps of the path.
+         *
+         * @return true when the element is matched by the whole path
+         */
+        boolean startElement(int depth, String name, int position) {
+            if (matchedDepth != depth - 1 || depth > location.depth()) {
+                return false;
+            }
+            int step = depth - 1;
+            int required = location.getPosition(step);
+            if (!location.getName(step).equals(name) || (required != 0 && required != position)) {
+                return false;
+            }
+            matchedDepth = depth;
+            return depth == location.depth();
+        }
+
+        void matched(XMLStreamReader stream, String name, int depth) {
+            if (location.isAttribute()) {
+                String value = getAttributeValue(stream);
+                if (value != null) {
+                    matches++;
+                    if (firstValue == null) {
+                        firstValue = value;
+                    }
+                    if ((captured & CAPTURE_VALUES) != 0) {
+                        values.add(value);
+                    }
+                }
+                return;
+            }
+            matches++;
+            boolean first = matches == 1;
+            if ((captured & CAPTURE_VALUES) != 0 || ((captured & CAPTURE_FIRST_VALUE) != 0 && first)) {
+                textDepth = depth;
+            }
+            if ((captured & CAPTURE_NODES_XML) != 0 || ((captured & CAPTURE_FIRST_XML) != 0 && first)) {
+                xmlDepth = depth;
+                xmlBuilder.setLength(0);
+                writeStartTag(stream, name);
+            }
+        }
+
+        private String getAttributeValue(XMLStreamReader stream) {
+            String attribute = location.getAttribute();
+            for (int i = 0; i < stream.getAttributeCount(); i++) {
+                String name = qualifiedName(stream.getAttributePrefix(i), stream.getAttributeLocalName(i));
+                if (attribute.equals(matchName(prefixesByURI, stream.getAttributeNamespace(i), name,
+                        stream.getAttributeLocalName(i)))) {
+                    return stream.getAttributeValue(i);
+                }
+            }
+            return null;
+        }
+
+        void endElement(int depth, String name) {
+            if (xmlDepth != 0) {
+                xmlBuilder.append("</").append(name).append('>');
+                if (depth == xmlDepth) {
+                    if (firstXML == null) {
+                        firstXML = xmlBuilder.toString();
+                    }
+                    if ((captured & CAPTURE_NODES_XML) != 0) {
+                        nodesXML.append(xmlBuilder);
+                    }
+                    xmlDepth = 0;
+                }
+            }
+            if (textDepth == depth) {
+                textDepth = 0;
+            }
+            if (matchedDepth == depth) {
+                if (depth == location.depth() && !location.isAttribute()) {
+                    firstEnded = true;
+                }
+                matchedDepth = depth - 1;
+            }
+        }
+
+        void text(XMLStreamReader stream, int depth, boolean cdata) {
+            if (xmlDepth != 0) {
+                if (cdata) {
+                    xmlBuilder.append("<![CDATA[").append(stream.getText()).append("]]>");
+                } else {
+                    escape(xmlBuilder, stream.getText(), false);
+                }
+            }
+            // the first text child of the node, as VTDNav.getText() gives it
+            if (textDepth == depth && textDepth != 0) {
+                String text = stream.getText();
+                if (text.trim().isEmpty()) {
+                    return;
+                }
+                if (firstValue == null && matches == 1) {
+                    firstValue = text;
+                }
+                if ((captured & CAPTURE_VALUES) != 0) {
+                    values.add(text);
+                }
+                textDepth = 0;
+            }
+        }
+
+        void writeStart(XMLStreamReader stream, String name) {
+            if (xmlDepth != 0) {
+                writeStartTag(stream, name);
+            }
+        }
+
+        void writeOther(XMLStreamReader stream, int event) {
+            if (xmlDepth == 0) {
+                return;
+            }
+            if (event == XMLStreamConstants.COMMENT) {
+                xmlBuilder.append("<!--").append(stream.getText()).append("-->");
+            } else {
+                xmlBuilder.append("<?").append(stream.getPITarget());
+                String data = stream.getPIData();
+                if (data != null && !data.isEmpty()) {
+                    xmlBuilder.append(' ').append(data);
+                }
+                xmlBuilder.append("?>");
+            }
+        }
+
+        private void writeStartTag(XMLStreamReader stream, String name) {
+            xmlBuilder.append('<').append(name);
+            for (int i = 0; i < stream.getNamespaceCount(); i++) {
+                String prefix = stream.getNamespacePrefix(i);
+                xmlBuilder.append(prefix == null || prefix.isEmpty() ? " xmlns" : " xmlns:" + prefix).append("=\"");
+                escape(xmlBuilder, stream.getNamespaceURI(i), true);
+                xmlBuilder.append('"');
+            }
+            for (int i = 0; i < stream.getAttributeCount(); i++) {
+                xmlBuilder.append(' ')
+                        .append(qualifiedName(stream.getAttributePrefix(i), stream.getAttributeLocalName(i)))
+                        .append("=\"");
+                escape(xmlBuilder, stream.getAttributeValue(i), true);
+                xmlBuilder.append('"');
+            }
+            xmlBuilder.append('>');
+        }
+    }
+}
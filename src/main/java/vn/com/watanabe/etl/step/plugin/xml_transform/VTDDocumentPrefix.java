@@ -0,0 +1,419 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds the leading part of a document holding the first match of every
+ * path of a plan, so VTDGen only parses that part.
+ *
+ * The document is scanned forward for its tags only, without tokenizing
+ * text or checking names, until each path has matched its first node: the
+ * end of the element, or of the start tag for an attribute. The prefix is
+ * then closed with end tags for the elements still open and parsed in place
+ * of the document. The first match of a path in document order is the same
+ * in the prefix, so single valued fields get the same value.
+ *
+ * This is a trade-off: the rest of the document is never read, a document
+ * broken after the prefix is extracted as if it were well formed. When a
+ * path has no match the whole document is parsed as usual.
+ *
+ * Names are compared as written, they are not resolved against namespace
+ * declarations: a document declaring a namespace before the prefix is
+ * complete is parsed whole too, as the element the scan matches may not be
+ * the one the XPath selects.
+ */
+public class VTDDocumentPrefix {
+  private static final byte[] XMLNS = "xmlns".getBytes(StandardCharsets.US_ASCII);
+
+  private final byte[][][] names;
+  private final int[][] positions;
+  /** Attribute name of each path, null when it selects elements */
+  private final byte[][] attributes;
+
+  /** Depth of the deepest step matched by the ancestors of the current element, per path */
+  private final int[] matchedDepth;
+  /** Siblings counted for the positional predicate of each step, per path */
+  private final int[][] counts;
+  private final boolean[] done;
+  /** Offset and length of the name of each open element */
+  private int[] openOffsets = new int[16];
+  private int[] openLengths = new int[16];
+  /** Depth of the elements left open by the prefix of the last scan */
+  private int scannedDepth;
+
+  private VTDDocumentPrefix(SimpleLocationPath[] paths) {
+    int size = paths.length;
+    names = new byte[size][][];
+    positions = new int[size][];
+    attributes = new byte[size][];
+    matchedDepth = new int[size];
+    counts = new int[size][];
+    done = new boolean[size];
+    for (int i = 0; i < size; i++) {
+      SimpleLocationPath path = paths[i];
+      int depth = path.depth();
+      names[i] = new byte[depth][];
+      positions[i] = new int[depth];
+      for (int step = 0; step < depth; step++) {
+        names[i][step] = path.getName(step).getBytes(StandardCharsets.UTF_8);
+        positions[i][step] = path.getPosition(step);
+      }
+      attributes[i] = path.isAttribute() ? path.getAttribute().getBytes(StandardCharsets.UTF_8) : null;
+      counts[i] = new int[depth];
+    }
+  }
+
+  /**
+   * Build the prefix scanner of a plan.
+   *
+   * @param rowFilter the row filter XPath, null when there is none
+   * @return the scanner, null when a field or the filter may need more than
+   *         its first node: the whole document is then parsed
+   */
+  public static VTDDocumentPrefix create(XMLTransformPlan plan, String rowFilter) {
+    int size = plan.size();
+    SimpleLocationPath[] paths = new SimpleLocationPath[size + (rowFilter != null ? 1 : 0)];
+    for (int i = 0; i < size; i++) {
+      XMLTransformField field = plan.getField(i);
+      boolean firstOnly = field.getElementType() != XMLTransformField.ELEMENT_TYPE_NODE_MULTI.getId()
+          || field.getResultType() == XMLTransformField.RESULT_TYPE_FIST_VALUE.getId();
+      paths[i] = firstOnly && plan.getXPath(i) != null ? supported(plan.getXPathText(i)) : null;
+      if (paths[i] == null) {
+        return null;
+      }
+    }
+    if (rowFilter != null) {
+      // a node set filter is true from its first node on
+      paths[size] = supported(rowFilter);
+      if (paths[size] == null) {
+        return null;
+      }
+    }
+    return size > 0 ? new VTDDocumentPrefix(paths) : null;
+  }
+
+  private static SimpleLocationPath supported(String xpath) {
+    SimpleLocationPath path = SimpleLocationPath.parse(xpath);
+    if (path == null || path.depth() == 0 || path.hasPrefix()
+        || (path.isAttribute() && path.getAttribute().indexOf(':') >= 0)) {
+      // prefixed names are resolved against namespace URIs by the XPath engine
+      return null;
+    }
+    return path;
+  }
+
+  /**
+   * Scan a document until every path has matched.
+   *
+   * @return the length of the prefix holding the first match of every path,
+   *         -1 when the whole document is needed
+   */
+  public int scan(byte[] doc, int offset, int length) {
+    int end = offset + length;
+    if (length < 2 || !isByteOriented(doc, offset)) {
+      return -1;
+    }
+    for (int i = 0; i < done.length; i++) {
+      matchedDepth[i] = 0;
+      counts[i][0] = 0;
+      done[i] = false;
+    }
+    int pending = done.length;
+    int depth = 0;
+    int pos = offset;
+    while (true) {
+      while (pos < end && doc[pos] != '<') {
+        pos++;
+      }
+      if (pos + 1 >= end) {
+        return -1;
+      }
+      byte next = doc[pos + 1];
+      if (next == '?') {
+        pos = skipPast(doc, pos + 2, end, "?>");
+      } else if (next == '!') {
+        pos = skipDeclaration(doc, pos, end);
+      } else if (next == '/') {
+        int nameStart = pos + 2;
+        pos = skipPast(doc, nameStart, end, ">");
+        if (pos < 0 || depth == 0) {
+          return -1;
+        }
+        for (int i = 0; i < done.length; i++) {
+          if (!done[i] && matchedDepth[i] == depth) {
+            if (depth == names[i].length && attributes[i] == null) {
+              done[i] = true;
+              pending--;
+            }
+            matchedDepth[i] = depth - 1;
+          }
+        }
+        depth--;
+        if (pending == 0) {
+          scannedDepth = depth;
+          return pos - offset;
+        }
+      } else {
+        int nameStart = pos + 1;
+        int nameEnd = nameStart;
+        while (nameEnd < end && !isNameEnd(doc[nameEnd])) {
+          nameEnd++;
+        }
+        int tagEnd = findTagEnd(doc, nameEnd, end);
+        if (tagEnd < 0 || hasAttribute(doc, nameEnd, tagEnd, XMLNS, true)) {
+          return -1;
+        }
+        boolean empty = doc[tagEnd - 1] == '/';
+        depth++;
+        push(depth, nameStart, nameEnd - nameStart);
+        pos = tagEnd + 1;
+        for (int i = 0; i < done.length; i++) {
+          if (done[i] || !startElement(i, doc, nameStart, nameEnd, depth)) {
+            continue;
+          }
+          if (depth < names[i].length) {
+            continue;
+          }
+          if (attributes[i] == null ? empty : hasAttribute(doc, nameEnd, tagEnd, attributes[i], false)) {
+            done[i] = true;
+            pending--;
+          }
+        }
+        if (empty) {
+          for (int i = 0; i < done.length; i++) {
+            if (!done[i] && matchedDepth[i] == depth) {
+              matchedDepth[i] = depth - 1;
+            }
+          }
+          depth--;
+        }
+        if (pending == 0) {
+          scannedDepth = depth;
+          return pos - offset;
+        }
+      }
+      if (pos < 0) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * @return the length of the prefix of the last scan once closed by {@link #close}
+   */
+  public int getClosedLength(int prefixLength) {
+    int length = prefixLength;
+    for (int d = 1; d <= scannedDepth; d++) {
+      length += openLengths[d] + 3;
+    }
+    return length;
+  }
+
+  /**
+   * Copy the prefix of the last scanned document followed by the end tags of
+   * the elements it leaves open.
+   *
+   * @param prefixLength the length returned by {@link #scan}
+   * @param target       receives the prefix, at least {@link #getClosedLength} bytes
+   * @return the length of the closed prefix
+   */
+  public int close(byte[] doc, int offset, int prefixLength, byte[] target) {
+    System.arraycopy(doc, offset, target, 0, prefixLength);
+    int length = prefixLength;
+    for (int d = scannedDepth; d >= 1; d--) {
+      target[length++] = '<';
+      target[length++] = '/';
+      System.arraycopy(doc, openOffsets[d], target, length, openLengths[d]);
+      length += openLengths[d];
+      target[length++] = '>';
+    }
+    return length;
+  }
+
+  private void push(int depth, int nameOffset, int nameLength) {
+    if (depth >= openOffsets.length) {
+      int[] offsets = new int[openOffsets.length * 2];
+      int[] lengths = new int[openLengths.length * 2];
+      System.arraycopy(openOffsets, 0, offsets, 0, openOffsets.length);
+      System.arraycopy(openLengths, 0, lengths, 0, openLengths.length);
+      openOffsets = offsets;
+      openLengths = lengths;
+    }
+    openOffsets[depth] = nameOffset;
+    openLengths[depth] = nameLength;
+  }
+
+  /**
+   * Follow the steps of a path.
+   *
+   * @return true when the element is matched by the step of its depth
+   */
+  private boolean startElement(int path, byte[] doc, int nameStart, int nameEnd, int depth) {
+    byte[][] steps = names[path];
+    if (matchedDepth[path] != depth - 1 || depth > steps.length) {
+      return false;
+    }
+    int step = depth - 1;
+    if (!equals(doc, nameStart, nameEnd, steps[step])) {
+      return false;
+    }
+    int position = ++counts[path][step];
+    int required = positions[path][step];
+    if (required != 0 && required != position) {
+      return false;
+    }
+    matchedDepth[path] = depth;
+    if (depth < steps.length) {
+      // the children of the element are counted from scratch
+      counts[path][depth] = 0;
+    }
+    return true;
+  }
+
+  /**
+   * @param prefixed true to match the names prefixed with the attribute too,
+   *                 xmlns:p for xmlns
+   * @return true when the start tag between the end of its name and its '>'
+   *         has the attribute
+   */
+  private static boolean hasAttribute(byte[] doc, int pos, int tagEnd, byte[] attribute, boolean prefixed) {
+    while (pos < tagEnd) {
+      while (pos < tagEnd && isSpace(doc[pos])) {
+        pos++;
+      }
+      int nameStart = pos;
+      while (pos < tagEnd && doc[pos] != '=' && !isSpace(doc[pos]) && doc[pos] != '/') {
+        pos++;
+      }
+      if (pos == nameStart) {
+        pos++;
+        continue;
+      }
+      if (equals(doc, nameStart, pos, attribute)) {
+        return true;
+      }
+      int prefixEnd = nameStart + attribute.length;
+      if (prefixed && prefixEnd < pos && doc[prefixEnd] == ':' && equals(doc, nameStart, prefixEnd, attribute)) {
+        return true;
+      }
+      while (pos < tagEnd && doc[pos] != '"' && doc[pos] != '\'') {
+        pos++;
+      }
+      if (pos < tagEnd) {
+        byte quote = doc[pos++];
+        while (pos < tagEnd && doc[pos] != quote) {
+          pos++;
+        }
+        pos++;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * @return the offset of the '>' ending a start tag, skipping quoted attribute values
+   */
+  private static int findTagEnd(byte[] doc, int pos, int end) {
+    byte quote = 0;
+    for (; pos < end; pos++) {
+      byte b = doc[pos];
+      if (quote != 0) {
+        if (b == quote) {
+          quote = 0;
+        }
+      } else if (b == '"' || b == '\'') {
+        quote = b;
+      } else if (b == '>') {
+        return pos;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Skip a comment, a CDATA section or a document type declaration.
+   *
+   * @return the offset after it, -1 when the document ends first
+   */
+  private static int skipDeclaration(byte[] doc, int pos, int end) {
+    if (startsWith(doc, pos, end, "<!--")) {
+      return skipPast(doc, pos + 4, end, "-->");
+    }
+    if (startsWith(doc, pos, end, "<![CDATA[")) {
+      return skipPast(doc, pos + 9, end, "]]>");
+    }
+    // <!DOCTYPE, with an internal subset between brackets
+    int brackets = 0;
+    byte quote = 0;
+    for (pos += 2; pos < end; pos++) {
+      byte b = doc[pos];
+      if (quote != 0) {
+        if (b == quote) {
+          quote = 0;
+        }
+      } else if (b == '"' || b == '\'') {
+        quote = b;
+      } else if (b == '[') {
+        brackets++;
+      } else if (b == ']') {
+        brackets--;
+      } else if (b == '>' && brackets == 0) {
+        return pos + 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return the offset after the first occurrence of the marker, -1 when there is none
+   */
+  private static int skipPast(byte[] doc, int pos, int end, String marker) {
+    int length = marker.length();
+    for (int last = end - length; pos <= last; pos++) {
+      if (startsWith(doc, pos, end, marker)) {
+        return pos + length;
+      }
+    }
+    return -1;
+  }
+
+  private static boolean startsWith(byte[] doc, int pos, int end, String marker) {
+    if (pos + marker.length() > end) {
+      return false;
+    }
+    for (int i = 0; i < marker.length(); i++) {
+      if (doc[pos + i] != marker.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean equals(byte[] doc, int start, int end, byte[] name) {
+    if (end - start != name.length) {
+      return false;
+    }
+    for (int i = 0; i < name.length; i++) {
+      if (doc[start + i] != name[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isNameEnd(byte b) {
+    return isSpace(b) || b == '>' || b == '/';
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\n';
+  }
+
+  /**
+   * @return false for UTF-16 and UCS-4 documents, whose markup is not one byte per character
+   */
+  private static boolean isByteOriented(byte[] doc, int offset) {
+    return doc[offset] != 0 && doc[offset + 1] != 0 && (doc[offset] & 0xff) != 0xfe
+        && (doc[offset] & 0xff) != 0xff;
+  }
+}
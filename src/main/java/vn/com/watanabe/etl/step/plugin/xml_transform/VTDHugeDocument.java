@@ -0,0 +1,203 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleException;
+
+import com.ximpleware.extended.AutoPilotHuge;
+import com.ximpleware.extended.IByteBuffer;
+import com.ximpleware.extended.VTDGenHuge;
+import com.ximpleware.extended.VTDNavHuge;
+
+/**
+ * A document parsed with the extended VTD-XML classes: 64 bit offsets and a
+ * memory mapped file, so documents over 2 GB are parsed in place without
+ * being loaded on the heap.
+ *
+ * Used by {@link VTDXMLReader} for the files over its huge document
+ * threshold, the results are evaluated by {@link VTDNavigator} like the ones
+ * of the documents parsed in memory.
+ */
+class VTDHugeDocument extends VTDNavigator {
+  /** Bytes read to find the encoding of the document */
+  private static final int PROLOG_LENGTH = 256;
+
+  private VTDGenHuge vtdGen = new VTDGenHuge();
+  private VTDNavHuge vtdNav;
+  private final AutoPilotHuge autoPilot = new AutoPilotHuge();
+  /** The auto pilot of the string based methods, bound with the document */
+  private final HugeCursor selected = new HugeCursor(autoPilot);
+  private Charset charset;
+  /** Namespace URI of each XPath prefix, declared on every auto pilot */
+  private final Map<String, String> namespaces;
+  private final boolean namespaceAware;
+
+  VTDHugeDocument(Map<String, String> namespaces, boolean namespaceAware) {
+    this.namespaces = namespaces;
+    this.namespaceAware = namespaceAware;
+    declareNamespaces(autoPilot);
+  }
+
+  private void declareNamespaces(AutoPilotHuge ap) {
+    for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+      ap.declareXPathNameSpace(namespace.getKey(), namespace.getValue());
+    }
+  }
+
+  void bind(String path) throws KettleException {
+    try {
+      if (!vtdGen.parseFile(path, namespaceAware, VTDGenHuge.MEM_MAPPED)) {
+        throw new KettleException("error in try parse xml file " + path);
+      }
+      vtdNav = vtdGen.getNav();
+      autoPilot.bind(vtdNav);
+      charset = null;
+    } catch (KettleException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new KettleException("error in try parse xml file " + path, e);
+    }
+  }
+
+  /**
+   * Drop the parser of the document. The mapping of the file is only released
+   * once the garbage collector reclaims its buffer, on Windows the file stays
+   * locked until then.
+   */
+  void reset() {
+    vtdNav = null;
+    charset = null;
+    vtdGen = new VTDGenHuge();
+    trimFragmentBuffer(1024 * 1024);
+  }
+
+  VTDNavHuge getNav() {
+    return vtdNav;
+  }
+
+  /**
+   * Compile an expression in its own auto pilot, bind it with {@link HugeCursor#bind}.
+   */
+  HugeCursor compile(String xpath) throws KettleException {
+    try {
+      AutoPilotHuge compiled = new AutoPilotHuge();
+      declareNamespaces(compiled);
+      compiled.selectXPath(xpath);
+      return new HugeCursor(compiled);
+    } catch (Exception e) {
+      throw new KettleException("invalid xpath " + xpath, e);
+    }
+  }
+
+  /**
+   * Get the auto pilot used by the string based methods, loaded with the given expression.
+   */
+  HugeCursor select(String xpath) throws KettleException {
+    try {
+      autoPilot.selectXPath(xpath);
+      return selected;
+    } catch (Exception e) {
+      throw new KettleException("invalid xpath " + xpath, e);
+    }
+  }
+
+  @Override
+  void push() {
+    vtdNav.push();
+  }
+
+  @Override
+  void pop() {
+    vtdNav.pop();
+  }
+
+  @Override
+  int getText() throws Exception {
+    return vtdNav.getText();
+  }
+
+  @Override
+  String toString(int token) throws Exception {
+    return vtdNav.toString(token);
+  }
+
+  @Override
+  String getElementXML() throws Exception {
+    fragmentLength = 0;
+    appendElementFragment();
+    return new String(fragmentBuffer, 0, fragmentLength, getCharset());
+  }
+
+  @Override
+  Charset getCharset() {
+    if (charset == null) {
+      IByteBuffer xml = vtdNav.getXML();
+      int length = (int) Math.min(PROLOG_LENGTH, xml.length());
+      byte[] prolog = new byte[length];
+      for (int i = 0; i < length; i++) {
+        prolog[i] = xml.byteAt(i);
+      }
+      charset = XMLEncoding.getCharset(prolog, 0, length);
+    }
+    return charset;
+  }
+
+  /**
+   * Copy the current element from the mapping. A single fragment still has to
+   * fit in a String.
+   */
+  @Override
+  void appendElementFragment() throws Exception {
+    long[] fragment = vtdNav.getElementFragment();
+    long offset = fragment[0];
+    long length = fragment[1];
+    if (fragmentLength + length > Integer.MAX_VALUE - 8) {
+      throw new KettleException("fragment too large for a field (" + length + " bytes)");
+    }
+    ensureFragmentCapacity(fragmentLength + (int) length);
+    IByteBuffer xml = vtdNav.getXML();
+    for (long i = 0; i < length; i++) {
+      fragmentBuffer[fragmentLength++] = xml.byteAt(offset + i);
+    }
+  }
+
+  /**
+   * An AutoPilotHuge, bound lazily to the document of the current generation
+   * of the reader.
+   */
+  static final class HugeCursor implements VTDNavigator.Cursor {
+    private final AutoPilotHuge autoPilot;
+    private int generation = -1;
+
+    HugeCursor(AutoPilotHuge autoPilot) {
+      this.autoPilot = autoPilot;
+    }
+
+    /**
+     * Bind to the current document when the generation changed.
+     */
+    HugeCursor bind(VTDHugeDocument document, int generation) {
+      if (this.generation != generation) {
+        autoPilot.bind(document.vtdNav);
+        this.generation = generation;
+      }
+      return this;
+    }
+
+    @Override
+    public int evalXPath() throws Exception {
+      return autoPilot.evalXPath();
+    }
+
+    @Override
+    public boolean evalXPathToBoolean() throws Exception {
+      return autoPilot.evalXPathToBoolean();
+    }
+
+    @Override
+    public void resetXPath() {
+      autoPilot.resetXPath();
+    }
+  }
+}
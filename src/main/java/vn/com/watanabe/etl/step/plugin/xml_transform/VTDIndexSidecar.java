@@ -0,0 +1,136 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import com.ximpleware.VTDGen;
+import com.ximpleware.VTDNav;
+
+/**
+ * The VTD index of a file saved next to it, <code>file.xml.vtdi</code>, so
+ * later runs load the index instead of parsing the file again.
+ *
+ * A key file, <code>file.xml.vtdi.key</code>, holds the size, modification
+ * time and hash of the file the index was built from, and whether it was
+ * parsed with namespaces; the index is only loaded when they still match.
+ * The hash covers the first and last megabyte of the file, reading the whole
+ * file would cost about what the index saves. The key is written after the
+ * index, a run stopped in between leaves no usable key.
+ *
+ * Both are written to a temporary file of the same directory and moved in
+ * place atomically, so step copies or runs indexing the same file at once
+ * never leave a half written one.
+ *
+ * Only the files parsed in memory have a sidecar: VTD-XML can not save nor
+ * load the index of a document parsed by VTDGenHuge, the files from the huge
+ * document threshold are parsed on every run.
+ */
+public class VTDIndexSidecar {
+  public static final String INDEX_SUFFIX = ".vtdi";
+  public static final String KEY_SUFFIX = ".key";
+  /** Bytes hashed at each end of the file */
+  private static final int SAMPLE_LENGTH = 1024 * 1024;
+
+  private VTDIndexSidecar() {
+  }
+
+  /**
+   * Load the index of a file when it is up to date.
+   *
+   * @return the navigator of the file, null when there is no usable index
+   */
+  public static VTDNav load(String path, VTDGen vtdGen, boolean namespaceAware) {
+    Path index = Paths.get(path + INDEX_SUFFIX);
+    Path keyFile = Paths.get(path + INDEX_SUFFIX + KEY_SUFFIX);
+    try {
+      if (!Files.isRegularFile(index) || !Files.isRegularFile(keyFile)) {
+        return null;
+      }
+      String saved = new String(Files.readAllBytes(keyFile), StandardCharsets.US_ASCII).trim();
+      if (!saved.equals(key(path, namespaceAware))) {
+        return null;
+      }
+      return vtdGen.loadSeparateIndex(path, index.toString());
+    } catch (Exception e) {
+      // a stale or broken index is rebuilt by the caller
+      return null;
+    }
+  }
+
+  /**
+   * Save the index of a file parsed from offset 0 of its buffer.
+   *
+   * @return false when it could not be written, the directory may be read only
+   */
+  public static boolean write(String path, VTDNav vtdNav, boolean namespaceAware) {
+    Path index = Paths.get(path + INDEX_SUFFIX);
+    Path keyFile = Paths.get(path + INDEX_SUFFIX + KEY_SUFFIX);
+    Path tmp = null;
+    Path keyTmp = null;
+    try {
+      Path directory = index.toAbsolutePath().getParent();
+      tmp = Files.createTempFile(directory, index.getFileName().toString(), ".tmp");
+      keyTmp = Files.createTempFile(directory, keyFile.getFileName().toString(), ".tmp");
+      Files.deleteIfExists(keyFile);
+      if (!vtdNav.writeSeparateIndex(tmp.toString())) {
+        return false;
+      }
+      Files.move(tmp, index, StandardCopyOption.ATOMIC_MOVE);
+      Files.write(keyTmp, key(path, namespaceAware).getBytes(StandardCharsets.US_ASCII));
+      Files.move(keyTmp, keyFile, StandardCopyOption.ATOMIC_MOVE);
+      return true;
+    } catch (Exception e) {
+      return false;
+    } finally {
+      deleteQuietly(tmp);
+      deleteQuietly(keyTmp);
+    }
+  }
+
+  private static void deleteQuietly(Path file) {
+    if (file == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException ignored) {
+      // nothing more to clean
+    }
+  }
+
+  /**
+   * @return size, modification time and sampled hash of a file and the parse
+   *         mode, on one line
+   */
+  static String key(String path, boolean namespaceAware) throws IOException {
+    Path file = Paths.get(path);
+    long size = Files.size(file);
+    long modified = Files.getLastModifiedTime(file).toMillis();
+    long hash = 0xcbf29ce484222325L;
+    try (RandomAccessFile input = new RandomAccessFile(path, "r")) {
+      byte[] sample = new byte[(int) Math.min(SAMPLE_LENGTH, size)];
+      input.readFully(sample);
+      hash = hash(hash, sample);
+      if (size > SAMPLE_LENGTH) {
+        sample = new byte[(int) Math.min(SAMPLE_LENGTH, size - SAMPLE_LENGTH)];
+        input.seek(size - sample.length);
+        input.readFully(sample);
+        hash = hash(hash, sample);
+      }
+    }
+    return "size=" + size + ";mtime=" + modified + ";hash=" + Long.toHexString(hash) + ";ns="
+        + (namespaceAware ? "Y" : "N");
+  }
+
+  private static long hash(long hash, byte[] bytes) {
+    for (byte b : bytes) {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+}
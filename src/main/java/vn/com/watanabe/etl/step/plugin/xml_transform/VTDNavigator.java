@@ -0,0 +1,341 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.math.BigDecimal;
+import java.nio.charset.Charset;
+
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * Evaluates the field results over a VTD-XML navigator. VTD-XML has two
+ * families of classes with the same methods but no common type: VTDNav and
+ * AutoPilot for documents parsed in memory with 32 bit offsets, VTDNavHuge and
+ * AutoPilotHuge for files mapped in place with 64 bit offsets. The evaluation
+ * is written once here, the subclasses give the few navigator primitives and
+ * wrap their auto pilots in a {@link Cursor}.
+ */
+abstract class VTDNavigator {
+  /** Fragments of a multi node result, gathered so they are decoded at once */
+  byte[] fragmentBuffer = new byte[1024];
+  int fragmentLength;
+  /** The row wrapper of a multi node result, encoded like the current document */
+  private Charset rowCharset;
+  private byte[] rowStart;
+  private byte[] rowEnd;
+
+  /**
+   * The nodes matched by an expression, as an AutoPilot or AutoPilotHuge
+   * walks them.
+   */
+  interface Cursor {
+    /**
+     * Move the navigator to the next matched node.
+     *
+     * @return the token index of the node, -1 when there is no more
+     */
+    int evalXPath() throws Exception;
+
+    boolean evalXPathToBoolean() throws Exception;
+
+    void resetXPath();
+  }
+
+  abstract void push();
+
+  abstract void pop();
+
+  /**
+   * @return the text token of the current element, -1 when it has none
+   */
+  abstract int getText() throws Exception;
+
+  abstract String toString(int token) throws Exception;
+
+  /**
+   * @return the XML of the current element
+   */
+  abstract String getElementXML() throws Exception;
+
+  /**
+   * Add the XML of the current element to the fragment buffer.
+   */
+  abstract void appendElementFragment() throws Exception;
+
+  /**
+   * @return the encoding of the current document
+   */
+  abstract Charset getCharset();
+
+  /**
+   * Parse a token as a number, subclasses may avoid the String.
+   *
+   * @throws NumberFormatException when the token is not a plain number
+   */
+  BigDecimal parseBigDecimal(int token) throws Exception {
+    return new BigDecimal(toString(token).trim());
+  }
+
+  String getFirstNodeValue(Cursor ap) throws KettleException {
+    String result = "";
+    push();
+    try {
+      if (ap.evalXPath() != -1) {
+        int text = getText();
+        if (text != -1) {
+          result = toString(text);
+        }
+      }
+      return result;
+    } catch (Exception e) {
+      throw new KettleException("error in try getFirstNodeValue", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  /**
+   * @return the token holding the value of {@link #getFirstNodeValue(Cursor)},
+   *         -1 when there is none
+   */
+  int getFirstNodeValueToken(Cursor ap) throws KettleException {
+    push();
+    try {
+      return ap.evalXPath() != -1 ? getText() : -1;
+    } catch (Exception e) {
+      throw new KettleException("error in try getFirstNodeValue", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  String getFirstNodeXML(Cursor ap) throws KettleException {
+    String result = "";
+    push();
+    try {
+      if (ap.evalXPath() != -1) {
+        result = getElementXML();
+      }
+      return result;
+    } catch (Exception e) {
+      throw new KettleException("error in try getFirstNodeXML", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  String getAttribute(Cursor ap) throws KettleException {
+    String result = "";
+    push();
+    try {
+      int i;
+      if ((i = ap.evalXPath()) != -1) {
+        result = toString(i + 1);
+      }
+      return result;
+    } catch (Exception e) {
+      throw new KettleException("error in try get attribute", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  /**
+   * @return the token holding the value of {@link #getAttribute(Cursor)}, -1
+   *         when there is none
+   */
+  int getAttributeToken(Cursor ap) throws KettleException {
+    push();
+    try {
+      int i = ap.evalXPath();
+      return i != -1 ? i + 1 : -1;
+    } catch (Exception e) {
+      throw new KettleException("error in try get attribute", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  String getNodeValues(Cursor ap, String delimiter) throws KettleException {
+    StringBuilder result = new StringBuilder();
+    boolean first = true;
+    push();
+    try {
+      while (ap.evalXPath() != -1) {
+        int text = getText();
+        if (text != -1) {
+          if (first) {
+            first = false;
+          } else {
+            result.append(delimiter);
+          }
+          result.append(toString(text));
+        }
+      }
+      return result.toString();
+    } catch (Exception e) {
+      throw new KettleException("error in try getNodeValues", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  String getNodeValuesFixedSize(Cursor ap, String delimiter, int length) throws KettleException {
+    FixedSizeJoiner result = new FixedSizeJoiner(delimiter, length);
+    push();
+    try {
+      while (ap.evalXPath() != -1) {
+        int text = getText();
+        if (text != -1 && !result.add(toString(text))) {
+          break;
+        }
+      }
+      return result.toString();
+    } catch (Exception e) {
+      throw new KettleException("error in try getNodeValuesFixedSize", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  String getNodesXML(Cursor ap) throws KettleException {
+    Charset charset = getCharset();
+    if (!charset.equals(rowCharset)) {
+      rowStart = "<row>".getBytes(charset);
+      rowEnd = "</row>".getBytes(charset);
+      rowCharset = charset;
+    }
+    fragmentLength = 0;
+    appendFragment(rowStart, 0, rowStart.length);
+    push();
+    try {
+      while (ap.evalXPath() != -1) {
+        appendElementFragment();
+      }
+      appendFragment(rowEnd, 0, rowEnd.length);
+      return new String(fragmentBuffer, 0, fragmentLength, charset);
+    } catch (KettleException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new KettleException("error in try getNodesXML", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  Float getSum(Cursor ap) throws KettleException {
+    float result = 0;
+    push();
+    try {
+      while (ap.evalXPath() != -1) {
+        int text = getText();
+        if (text != -1) {
+          result += Float.parseFloat(toString(text));
+        }
+      }
+      return result;
+    } catch (Exception e) {
+      throw new KettleException("error in try getSum", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  void aggregate(Cursor ap, XPathAggregate result) throws KettleException {
+    result.reset();
+    push();
+    try {
+      while (ap.evalXPath() != -1) {
+        int text = getText();
+        BigDecimal value = text != -1 ? parseDecimal(text) : null;
+        if (value != null) {
+          result.add(value);
+        } else {
+          result.addNode();
+        }
+      }
+    } catch (KettleException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new KettleException("error in try aggregate", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  /**
+   * @return the value of a text token, null when it is blank
+   */
+  private BigDecimal parseDecimal(int text) throws Exception {
+    try {
+      return parseBigDecimal(text);
+    } catch (NumberFormatException e) {
+      String value = toString(text).trim();
+      if (value.isEmpty()) {
+        return null;
+      }
+      try {
+        return new BigDecimal(value);
+      } catch (NumberFormatException notANumber) {
+        throw new KettleException("not a number [" + value + "]", notANumber);
+      }
+    }
+  }
+
+  boolean matches(Cursor ap) throws KettleException {
+    push();
+    try {
+      return ap.evalXPathToBoolean();
+    } catch (Exception e) {
+      throw new KettleException("error in try matches", e);
+    } finally {
+      ap.resetXPath();
+      pop();
+    }
+  }
+
+  boolean nextNode(Cursor ap) throws KettleException {
+    try {
+      // the other methods push and pop the navigator, so it stays on the node
+      if (ap.evalXPath() != -1) {
+        return true;
+      }
+      ap.resetXPath();
+      return false;
+    } catch (Exception e) {
+      ap.resetXPath();
+      throw new KettleException("error in try nextNode", e);
+    }
+  }
+
+  void appendFragment(byte[] bytes, int offset, int length) {
+    ensureFragmentCapacity(fragmentLength + length);
+    System.arraycopy(bytes, offset, fragmentBuffer, fragmentLength, length);
+    fragmentLength += length;
+  }
+
+  void ensureFragmentCapacity(int required) {
+    if (required > fragmentBuffer.length) {
+      byte[] grown = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(required, fragmentBuffer.length * 2L))];
+      System.arraycopy(fragmentBuffer, 0, grown, 0, fragmentLength);
+      fragmentBuffer = grown;
+    }
+  }
+
+  /**
+   * Drop a fragment buffer grown over the given size.
+   */
+  void trimFragmentBuffer(int retainedSize) {
+    if (fragmentBuffer != null && fragmentBuffer.length > retainedSize) {
+      fragmentBuffer = new byte[1024];
+    }
+  }
+}
@@ -0,0 +1,370 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleException;
+
+import com.ximpleware.NavException;
+import com.ximpleware.VTDNav;
+
+/**
+ * Fills every field with a simple location path in one forward walk of the
+ * VTD token stream, instead of one XPath traversal per field.
+ *
+ * The paths of the plan are merged in a tree of steps. While walking the
+ * tokens, the steps matched by the ancestors of the current element are kept
+ * per depth, so each token is compared only with the children of those steps.
+ * Fields the walk can not handle (fragments, sums, fixed size, complex
+ * XPath) are left to the per field evaluation.
+ */
+public class VTDSinglePassExtractor {
+  /** First node text, "" when the first node has no text */
+  static final int KIND_FIRST_VALUE = 1;
+  /** All node texts joined with the field delimiter */
+  static final int KIND_ALL_VALUES = 2;
+  /** First attribute value */
+  static final int KIND_ATTRIBUTE = 3;
+  /** Token of a first value or attribute field not found yet */
+  private static final int NOT_FOUND = -2;
+
+  private final Step root = new Step(null, 0);
+  private final int[] kinds;
+  private final String[] delimiters;
+  private final StringBuilder[] builders;
+  private final boolean[] appended;
+  /** Token holding the value of each first value and attribute field, -1 when it has no value */
+  private final int[] tokens;
+  /** Fields read from their token by the caller, no String is made for them */
+  private final boolean[] tokenOnly;
+  private final int firstValueCount;
+  private final boolean hasAllValues;
+
+  private Step[][] active = new Step[16][];
+  private int[] activeSize = new int[16];
+
+  private VTDSinglePassExtractor(XMLTransformPlan plan, int[] kinds, SimpleLocationPath[] paths) {
+    int size = plan.size();
+    this.kinds = kinds;
+    this.delimiters = new String[size];
+    this.builders = new StringBuilder[size];
+    this.appended = new boolean[size];
+    this.tokens = new int[size];
+    this.tokenOnly = new boolean[size];
+    int firstValues = 0;
+    boolean allValues = false;
+    for (int i = 0; i < size; i++) {
+      if (kinds[i] == 0) {
+        continue;
+      }
+      Step step = root;
+      SimpleLocationPath path = paths[i];
+      for (int s = 0; s < path.depth(); s++) {
+        step = step.child(path.getName(s), path.getPosition(s));
+      }
+      if (kinds[i] == KIND_ATTRIBUTE) {
+        step.attributeNames.add(path.getAttribute());
+        step.attributeFields.add(i);
+      } else {
+        step.textFields.add(i);
+      }
+      if (kinds[i] == KIND_ALL_VALUES) {
+        allValues = true;
+        delimiters[i] = plan.getField(i).getDemlimiter();
+        builders[i] = new StringBuilder();
+      } else {
+        firstValues++;
+      }
+    }
+    this.firstValueCount = firstValues;
+    this.hasAllValues = allValues;
+    for (int l = 0; l < active.length; l++) {
+      active[l] = new Step[4];
+    }
+  }
+
+  /**
+   * Build the extractor of a plan.
+   *
+   * @return the extractor, null when no field of the plan can be evaluated in a single pass
+   */
+  public static VTDSinglePassExtractor create(XMLTransformPlan plan) {
+    int size = plan.size();
+    int[] kinds = new int[size];
+    SimpleLocationPath[] paths = new SimpleLocationPath[size];
+    boolean any = false;
+    for (int i = 0; i < size; i++) {
+      paths[i] = plan.getXPath(i) != null ? SimpleLocationPath.parse(plan.getXPathText(i)) : null;
+      kinds[i] = kindOf(plan.getField(i), paths[i]);
+      any |= kinds[i] != 0;
+    }
+    return any ? new VTDSinglePassExtractor(plan, kinds, paths) : null;
+  }
+
+  /**
+   * @return the kind of evaluation needed by the field, 0 when the single pass can not handle it
+   */
+  static int kindOf(XMLTransformField field, SimpleLocationPath path) {
+    if (path == null || path.hasPrefix()) {
+      // prefixed names are resolved against namespace URIs by the XPath engine
+      return 0;
+    }
+    int elementType = field.getElementType();
+    int resultType = field.getResultType();
+    if (elementType == XMLTransformField.ELEMENT_TYPE_ATTRIBUT.getId()) {
+      return path.isAttribute() ? KIND_ATTRIBUTE : 0;
+    }
+    if (path.isAttribute()) {
+      return 0;
+    }
+    if (elementType == XMLTransformField.ELEMENT_TYPE_NODE.getId()) {
+      return resultType == XMLTransformField.RESULT_TYPE_TYPE_SINGLE_NODE.getId() ? 0 : KIND_FIRST_VALUE;
+    }
+    if (elementType == XMLTransformField.ELEMENT_TYPE_NODE_MULTI.getId()) {
+      if (resultType == XMLTransformField.RESULT_TYPE_FIST_VALUE.getId()) {
+        return KIND_FIRST_VALUE;
+      }
+      if (resultType == XMLTransformField.RESULT_TYPE_VALUE_OF.getId()) {
+        return KIND_ALL_VALUES;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return true when the value of the field is computed by {@link #extract(VTDNav, String[])}
+   */
+  public boolean handles(int fieldIndex) {
+    return kinds[fieldIndex] != 0;
+  }
+
+  /**
+   * Only keep the token of a first value or attribute field, its value is
+   * read by the caller with {@link #getToken(int)}.
+   *
+   * @return false when the field is not a first value or attribute field
+   */
+  public boolean setTokenOnly(int fieldIndex) {
+    if (kinds[fieldIndex] != KIND_FIRST_VALUE && kinds[fieldIndex] != KIND_ATTRIBUTE) {
+      return false;
+    }
+    tokenOnly[fieldIndex] = true;
+    return true;
+  }
+
+  /**
+   * @return the token holding the value of a first value or attribute field
+   *         after {@link #extract(VTDNav, String[])}, -1 when it has no value
+   */
+  public int getToken(int fieldIndex) {
+    return tokens[fieldIndex];
+  }
+
+  /**
+   * Walk the document once and store the value of every handled field, but
+   * the token only fields.
+   *
+   * @param nav    the navigator of the parsed document
+   * @param values receives the values, indexed like the plan
+   * @return false when the document can not be walked (a default namespace is
+   *         declared), the fields must then be evaluated one by one
+   */
+  public boolean extract(VTDNav nav, String[] values) throws KettleException {
+    for (int i = 0; i < kinds.length; i++) {
+      if (kinds[i] != 0) {
+        values[i] = null;
+        tokens[i] = NOT_FOUND;
+        appended[i] = false;
+        if (builders[i] != null) {
+          builders[i].setLength(0);
+        }
+      }
+    }
+    root.resetChildren();
+    active[0][0] = root;
+    activeSize[0] = 1;
+    int pending = firstValueCount;
+    try {
+      int tokenCount = nav.getTokenCount();
+      for (int i = 0; i < tokenCount; i++) {
+        int type = nav.getTokenType(i);
+        if (type == VTDNav.TOKEN_ATTR_NS) {
+          if (nav.matchRawTokenString(i, "xmlns")) {
+            // unprefixed names do not match elements of a default namespace
+            return false;
+          }
+          continue;
+        }
+        if (type != VTDNav.TOKEN_STARTING_TAG) {
+          continue;
+        }
+        int depth = nav.getTokenDepth(i);
+        int level = depth + 1;
+        ensureLevel(level);
+        activeSize[level] = 0;
+        int parents = activeSize[level - 1];
+        for (int p = 0; p < parents; p++) {
+          List<Step> children = active[level - 1][p].children;
+          for (int c = 0; c < children.size(); c++) {
+            Step child = children.get(c);
+            if (!nav.matchRawTokenString(i, child.name)) {
+              continue;
+            }
+            child.seen++;
+            if (child.position == 0 || child.seen == child.position) {
+              activate(level, child);
+              pending -= collect(nav, i, depth, tokenCount, child, values);
+            }
+          }
+        }
+        if (pending == 0 && !hasAllValues) {
+          break;
+        }
+      }
+    } catch (NavException e) {
+      throw new KettleException("error in single pass extraction", e);
+    }
+    for (int i = 0; i < kinds.length; i++) {
+      if (kinds[i] == KIND_ALL_VALUES) {
+        values[i] = builders[i].toString();
+      } else if (kinds[i] != 0 && tokens[i] == NOT_FOUND) {
+        tokens[i] = -1;
+        values[i] = tokenOnly[i] ? null : "";
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Collect the attributes and the text of a matched element.
+   *
+   * @return the number of first value fields completed by this element
+   */
+  private int collect(VTDNav nav, int index, int depth, int tokenCount, Step step, String[] values)
+      throws NavException {
+    int completed = 0;
+    int i = index + 1;
+    // attributes and namespace declarations follow the starting tag
+    while (i < tokenCount) {
+      int type = nav.getTokenType(i);
+      if (type == VTDNav.TOKEN_ATTR_NAME) {
+        for (int a = 0; a < step.attributeFields.size(); a++) {
+          int field = step.attributeFields.get(a);
+          if (tokens[field] == NOT_FOUND && nav.matchRawTokenString(i, step.attributeNames.get(a))) {
+            found(nav, field, i + 1, values);
+            completed++;
+          }
+        }
+      } else if (type != VTDNav.TOKEN_ATTR_NS) {
+        break;
+      }
+      i += 2;
+    }
+    if (step.textFields.isEmpty()) {
+      return completed;
+    }
+    // same rule as VTDNav.getText(): the first text before any child element
+    int text = -1;
+    while (i < tokenCount && nav.getTokenDepth(i) == depth) {
+      int type = nav.getTokenType(i);
+      if (type == VTDNav.TOKEN_CHARACTER_DATA || type == VTDNav.TOKEN_CDATA_VAL) {
+        text = i;
+        break;
+      }
+      if (type != VTDNav.TOKEN_COMMENT && type != VTDNav.TOKEN_PI_NAME && type != VTDNav.TOKEN_PI_VAL) {
+        break;
+      }
+      i++;
+    }
+    for (int t = 0; t < step.textFields.size(); t++) {
+      int field = step.textFields.get(t);
+      if (kinds[field] == KIND_ALL_VALUES) {
+        if (text != -1) {
+          if (appended[field]) {
+            builders[field].append(delimiters[field]);
+          }
+          builders[field].append(nav.toString(text));
+          appended[field] = true;
+        }
+      } else if (tokens[field] == NOT_FOUND) {
+        found(nav, field, text, values);
+        completed++;
+      }
+    }
+    return completed;
+  }
+
+  private void found(VTDNav nav, int field, int token, String[] values) throws NavException {
+    tokens[field] = token;
+    if (!tokenOnly[field]) {
+      values[field] = token != -1 ? nav.toString(token) : "";
+    }
+  }
+
+  private void activate(int level, Step step) {
+    Step[] steps = active[level];
+    int size = activeSize[level];
+    if (size == steps.length) {
+      Step[] grown = new Step[size * 2];
+      System.arraycopy(steps, 0, grown, 0, size);
+      active[level] = grown;
+      steps = grown;
+    }
+    steps[size] = step;
+    activeSize[level] = size + 1;
+    step.resetChildren();
+  }
+
+  private void ensureLevel(int level) {
+    if (level < active.length) {
+      return;
+    }
+    int length = Math.max(level + 1, active.length * 2);
+    Step[][] grownActive = new Step[length][];
+    int[] grownSize = new int[length];
+    System.arraycopy(active, 0, grownActive, 0, active.length);
+    System.arraycopy(activeSize, 0, grownSize, 0, activeSize.length);
+    for (int l = active.length; l < length; l++) {
+      grownActive[l] = new Step[4];
+    }
+    active = grownActive;
+    activeSize = grownSize;
+  }
+
+  /**
+   * One step of the merged paths. Steps with the same name but a different
+   * position are kept apart, each one counts the siblings with its name.
+   */
+  static class Step {
+    final String name;
+    final int position;
+    final List<Step> children = new ArrayList<Step>();
+    final List<Integer> textFields = new ArrayList<Integer>();
+    final List<String> attributeNames = new ArrayList<String>();
+    final List<Integer> attributeFields = new ArrayList<Integer>();
+    /** Number of siblings with this name seen under the current parent element */
+    int seen;
+
+    Step(String name, int position) {
+      this.name = name;
+      this.position = position;
+    }
+
+    Step child(String childName, int childPosition) {
+      for (Step child : children) {
+        if (child.name.equals(childName) && child.position == childPosition) {
+          return child;
+        }
+      }
+      Step child = new Step(childName, childPosition);
+      children.add(child);
+      return child;
+    }
+
+    void resetChildren() {
+      for (int c = 0; c < children.size(); c++) {
+        children.get(c).seen = 0;
+      }
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.util.Arrays;
+
+import com.ximpleware.VTDNav;
+
+/**
+ * The token layout of the documents of a fixed layout feed, learned from the
+ * first documents, so the fields with one value token are read by token
+ * index without evaluating their XPath.
+ *
+ * The layout of a document is its sequence of token types and depths, with
+ * the bytes of the names of its elements and attributes; text and attribute
+ * values are not part of it. The template keeps a copy of the learned layout
+ * and compares a document to it token by token, so two different names can
+ * never pass for one. A document with the learned layout has its values at
+ * the learned token indexes. The template is trusted once
+ * {@link #CONFIRMATIONS} documents in a row with the same layout had the same
+ * value tokens, and learned again after {@link #MAX_MISSES} documents in a
+ * row did not match it.
+ */
+public class VTDTemplate {
+  /** Documents with the same layout and tokens before the template is used */
+  static final int CONFIRMATIONS = 2;
+  /** Documents in a row not matching the template before it is learned again */
+  static final int MAX_MISSES = 64;
+
+  /** Fields read by token index */
+  private final boolean[] handled;
+  private int[] types;
+  private int[] depths;
+  /** The start of the name of each token in {@link #names}, the next start ends it */
+  private int[] nameStarts;
+  /** The bytes of the element and attribute names of the learned document */
+  private byte[] names;
+  private int[] tokens;
+  private int confirmations;
+  private int misses;
+
+  /**
+   * @param handled the fields read by token index: first node value and attribute fields
+   */
+  public VTDTemplate(boolean[] handled) {
+    this.handled = handled;
+  }
+
+  public boolean handles(int field) {
+    return handled[field];
+  }
+
+  /**
+   * @return true when the template is trusted and the document matches it, the
+   *         handled fields are then read from {@link #getToken(int)}
+   */
+  public boolean matches(VTDXMLReader reader) {
+    if (confirmations < CONFIRMATIONS) {
+      return false;
+    }
+    if (sameLayout(reader)) {
+      misses = 0;
+      return true;
+    }
+    if (++misses >= MAX_MISSES) {
+      // the layout of the feed changed
+      types = null;
+      confirmations = 0;
+      misses = 0;
+    }
+    return false;
+  }
+
+  /**
+   * @return true when the template is trusted, a document not matching it is a fallback
+   */
+  public boolean isLearned() {
+    return confirmations >= CONFIRMATIONS;
+  }
+
+  /**
+   * @return the token index of a handled field, -1 when it has no value
+   */
+  public int getToken(int field) {
+    return tokens[field];
+  }
+
+  /**
+   * Learn from a document not matching the template, with the value tokens
+   * its fields were found at by XPath.
+   */
+  public void learn(VTDXMLReader reader, int[] fieldTokens) {
+    if (isLearned() || !isSupported(reader.vtdNav)) {
+      return;
+    }
+    if (types != null && sameLayout(reader) && Arrays.equals(tokens, fieldTokens)) {
+      confirmations++;
+      return;
+    }
+    VTDNav nav = reader.vtdNav;
+    byte[] doc = reader.doc;
+    int count = nav.getTokenCount();
+    types = new int[count];
+    depths = new int[count];
+    nameStarts = new int[count + 1];
+    int namesLength = 0;
+    for (int i = 0; i < count; i++) {
+      types[i] = nav.getTokenType(i);
+      depths[i] = nav.getTokenDepth(i);
+      nameStarts[i] = namesLength;
+      namesLength += nameLength(nav, i, types[i]);
+    }
+    nameStarts[count] = namesLength;
+    names = new byte[namesLength];
+    for (int i = 0; i < count; i++) {
+      System.arraycopy(doc, nav.getTokenOffset(i), names, nameStarts[i], nameStarts[i + 1] - nameStarts[i]);
+    }
+    tokens = fieldTokens.clone();
+    confirmations = 1;
+  }
+
+  private boolean sameLayout(VTDXMLReader reader) {
+    VTDNav nav = reader.vtdNav;
+    if (types == null || !isSupported(nav) || nav.getTokenCount() != types.length) {
+      return false;
+    }
+    byte[] doc = reader.doc;
+    for (int i = 0; i < types.length; i++) {
+      int type = nav.getTokenType(i);
+      if (type != types[i] || nav.getTokenDepth(i) != depths[i]) {
+        return false;
+      }
+      int start = nameStarts[i];
+      int length = nameStarts[i + 1] - start;
+      if (nameLength(nav, i, type) != length) {
+        return false;
+      }
+      int offset = nav.getTokenOffset(i);
+      for (int j = 0; j < length; j++) {
+        if (doc[offset + j] != names[start + j]) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the length in bytes of an element or attribute name, 0 for the
+   *         other tokens
+   */
+  private static int nameLength(VTDNav nav, int token, int type) {
+    if (type != VTDNav.TOKEN_STARTING_TAG && type != VTDNav.TOKEN_ATTR_NAME && type != VTDNav.TOKEN_ATTR_NS) {
+      return 0;
+    }
+    // namespace aware parsing keeps the prefix length in the upper bits
+    return nav.getTokenLength(token) & 0xffff;
+  }
+
+  /**
+   * The offsets of the tokens are byte offsets only in these encodings.
+   */
+  private static boolean isSupported(VTDNav nav) {
+    int encoding = nav.getEncoding();
+    return encoding == VTDNav.FORMAT_UTF8 || encoding == VTDNav.FORMAT_ASCII
+        || encoding == VTDNav.FORMAT_ISO_8859_1;
+  }
+}
@@ -1,223 +1,690 @@
 package vn.com.watanabe.etl.step.plugin.xml_transform;
 
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import com.ximpleware.*;
 
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.row.ValueMetaInterface;
+
+/**
+ * Reads the documents with VTD-XML. The results are evaluated by
+ * {@link VTDNavigator}, over the reader itself for the documents parsed in
+ * memory or over a {@link VTDHugeDocument} for the files mapped in place.
+ */
+public class VTDXMLReader extends VTDNavigator implements XMLReader {
+    /** Documents up to this many bytes keep their parse buffers for the next row. */
+    public static final int DEFAULT_RETAINED_BUFFER_SIZE = 4 * 1024 * 1024;
 
-public class VTDXMLReader implements XMLReader {
     VTDGen vtdGen;
     VTDNav vtdNav;
     AutoPilot autoPilot;
-    String xml;
+    /** The auto pilot of the string based methods, bound with the document */
+    HeapCursor selected;
+    byte[] doc;
+    int docOffset;
+    Charset docCharset;
+    int retainedBufferSize;
+    int documentSize;
+    /** Incremented on every bind, compiled expressions re-bind when they see a new value */
+    int generation;
+    /** Receives the parse time and errors, null when the step keeps no metrics */
+    XMLTransformMetrics metrics;
+    /** Holds the document of a file, reused from file to file */
+    byte[] fileBuffer;
+    /** Characters of the number being parsed by {@link #parseBigDecimal(int)} */
+    char[] numberBuffer = new char[32];
+    /** Files from this many bytes are parsed in place by the huge document parser */
+    long hugeDocumentThreshold = Integer.MAX_VALUE + 1L;
+    /** The huge document parser, created with the first huge file */
+    VTDHugeDocument hugeDocument;
+    /** True while the bound document is a huge one, it is then the navigator of every method */
+    boolean huge;
+    /** Load the index of a file from its sidecar, and save it after parsing a file without one */
+    boolean indexSidecar;
+    /** Namespace URI of each prefix used in the XPaths */
+    final Map<String, String> namespaces = new LinkedHashMap<String, String>();
+    /** Resolve the prefixes of the documents, false to take the names as written */
+    boolean namespaceAware = true;
+    /** Finds the part of each document the fields need, null to parse whole documents */
+    VTDDocumentPrefix documentPrefix;
+    /** Holds the closed prefix of the current document, reused from document to document */
+    byte[] prefixBuffer;
+    /** True when only a prefix of the bound document was parsed */
+    boolean prefixParsed;
 
     public VTDXMLReader() {
+        this(DEFAULT_RETAINED_BUFFER_SIZE);
+    }
+
+    public VTDXMLReader(int retainedBufferSize) {
         this.vtdGen = new VTDGen();
+        this.autoPilot = new AutoPilot();
+        this.selected = new HeapCursor(autoPilot);
+        this.retainedBufferSize = retainedBufferSize;
     }
 
     @Override
     public void bind(String xml) throws KettleException {
-        // TODO Auto-generated method stub
+        // encode with the declared encoding, the parser decodes the bytes with it
+        byte[] bytes = xml.getBytes(XMLEncoding.getCharset(xml));
+        bind(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Report the parse time and the parse errors to the metrics of the step.
+     */
+    public void setMetrics(XMLTransformMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void bind(byte[] doc, int offset, int length) throws KettleException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        prefixParsed = false;
+        if (documentPrefix != null) {
+            int prefixLength = documentPrefix.scan(doc, offset, length);
+            if (prefixLength >= 0) {
+                int closedLength = documentPrefix.getClosedLength(prefixLength);
+                if (prefixBuffer == null || prefixBuffer.length < closedLength) {
+                    prefixBuffer = new byte[Math.max(closedLength, 1024)];
+                }
+                if (metrics != null) {
+                    metrics.prefixParsed(length - prefixLength);
+                }
+                length = documentPrefix.close(doc, offset, prefixLength, prefixBuffer);
+                doc = prefixBuffer;
+                offset = 0;
+                prefixParsed = true;
+            }
+        }
         try {
-            vtdGen.setDoc(xml.getBytes());
-            this.xml = xml;
-            vtdGen.parse(true);
+            documentSize = length;
+            // setDoc_BR lets VTDGen recycle its token and location cache buffers
+            vtdGen.setDoc_BR(doc, offset, length);
+            this.doc = doc;
+            this.docOffset = offset;
+            this.docCharset = null;
+            vtdGen.parse(namespaceAware);
             vtdNav = vtdGen.getNav();
-            autoPilot = new AutoPilot();
             autoPilot.bind(vtdNav);
+            generation++;
         } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            if (metrics != null) {
+                metrics.parseFailed();
+            }
             throw new KettleException("error in try parse xml", e);
         }
+        if (metrics != null) {
+            metrics.parsed(System.nanoTime() - start);
+        }
 
     }
 
+    /**
+     * Parse the files from this size with the huge document parser, the files
+     * over 2 GB always are.
+     */
+    public void setHugeDocumentThreshold(long hugeDocumentThreshold) {
+        this.hugeDocumentThreshold = Math.min(hugeDocumentThreshold, Integer.MAX_VALUE + 1L);
+    }
+
+    /**
+     * Parse the documents with or without namespaces. Without, the names are
+     * matched as written, prefix included, and parsing is faster.
+     */
+    public void setNamespaceAware(boolean namespaceAware) {
+        this.namespaceAware = namespaceAware;
+    }
+
     @Override
-    public String getFirstNodeValue(String xpath) throws KettleException{
-        // TODO Auto-generated method stub
-        String result = "";
-        int i;
-        vtdNav.push();
+    public void declareNamespace(String prefix, String uri) {
+        namespaces.put(prefix, uri);
+        autoPilot.declareXPathNameSpace(prefix, uri);
+    }
+
+    /**
+     * Parse only the part of each document the fields need, see
+     * {@link VTDDocumentPrefix}; null to parse whole documents.
+     */
+    public void setDocumentPrefix(VTDDocumentPrefix documentPrefix) {
+        this.documentPrefix = documentPrefix;
+    }
+
+    /**
+     * Keep the index of each parsed file next to it, see {@link VTDIndexSidecar}.
+     */
+    public void setIndexSidecar(boolean indexSidecar) {
+        this.indexSidecar = indexSidecar;
+    }
+
+    /**
+     * @return true when the bound document is parsed by the huge document
+     *         parser, the navigator and the token methods are then not available
+     */
+    public boolean isHuge() {
+        return huge;
+    }
+
+    /**
+     * The file is read into a buffer kept by the reader, VTDGen only parses
+     * from a byte array. Files from the huge document threshold are parsed in
+     * place, memory mapped, by VTDGenHuge instead: they are not copied to the
+     * heap, and a buffer over the retained size is not allocated again for
+     * each of them. Those have no index sidecar, see {@link VTDIndexSidecar}.
+     */
+    @Override
+    public void bindFile(String path) throws KettleException {
+        int length;
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (metrics != null) {
+                metrics.documentRead(size);
+            }
+            if (size >= hugeDocumentThreshold) {
+                bindHugeFile(path);
+                return;
+            }
+            if (indexSidecar && bindIndex(path)) {
+                return;
+            }
+            length = (int) size;
+            if (fileBuffer == null || fileBuffer.length < length) {
+                fileBuffer = new byte[length];
+            }
+            length = readFully(channel, fileBuffer, length);
+        } catch (IOException e) {
+            throw new KettleException("error in try read file " + path, e);
+        }
+        bind(fileBuffer, 0, length);
+        // the index of a prefix does not describe the file
+        if (indexSidecar && !prefixParsed) {
+            VTDIndexSidecar.write(path, vtdNav, namespaceAware);
+        }
+    }
+
+    /**
+     * Read the start of a file into a buffer.
+     *
+     * @return the bytes read, less than length when the file is shorter
+     */
+    static int readFully(FileChannel channel, byte[] buffer, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining() && channel.read(target) >= 0) {
+            // a read returns once some bytes are there
+        }
+        return target.position();
+    }
+
+    /**
+     * Bind to a file through its up to date index sidecar.
+     *
+     * @return false when there is none, the file is then parsed
+     */
+    private boolean bindIndex(String path) {
+        long start = metrics != null ? System.nanoTime() : 0;
+        VTDNav nav = VTDIndexSidecar.load(path, vtdGen, namespaceAware);
+        if (nav == null) {
+            return false;
+        }
+        // the index loader reads the file into its own buffer
+        vtdNav = nav;
+        doc = nav.getXML().getBytes();
+        docOffset = 0;
+        docCharset = null;
+        documentSize = doc.length;
+        autoPilot.bind(vtdNav);
+        generation++;
+        if (metrics != null) {
+            metrics.parsed(System.nanoTime() - start);
+        }
+        return true;
+    }
+
+    private void bindHugeFile(String path) throws KettleException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        if (hugeDocument == null) {
+            hugeDocument = new VTDHugeDocument(namespaces, namespaceAware);
+        }
         try {
-            autoPilot.selectXPath(xpath);
-            if ((i = autoPilot.evalXPath()) != -1) {    
-                result=vtdNav.toString(vtdNav.getText());  
-            }            
-            return result;
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            throw new KettleException("error in try getFirstNodeXML", e);
-        }finally{
-            vtdNav.pop();
+            hugeDocument.bind(path);
+        } catch (KettleException e) {
+            if (metrics != null) {
+                metrics.parseFailed();
+            }
+            throw e;
+        }
+        huge = true;
+        generation++;
+        if (metrics != null) {
+            metrics.parsed(System.nanoTime() - start);
         }
     }
 
     @Override
-    public String getFirstNodeXML(String xpath) throws KettleException {
-        // TODO Auto-generated method stub
-        String result = "";
-        int i;
-        vtdNav.push();
+    public void reset() {
+        if (huge) {
+            hugeDocument.reset();
+            huge = false;
+        }
+        vtdNav = null;
+        doc = null;
+        docCharset = null;
+        if (documentSize > retainedBufferSize) {
+            // do not keep the buffers of an oversized document pinned for the rest of the run
+            vtdGen = new VTDGen();
+        } else {
+            vtdGen.clear();
+        }
+        trimFragmentBuffer(retainedBufferSize);
+        if (fileBuffer != null && fileBuffer.length > retainedBufferSize) {
+            fileBuffer = null;
+        }
+        if (prefixBuffer != null && prefixBuffer.length > retainedBufferSize) {
+            prefixBuffer = null;
+        }
+        documentSize = 0;
+    }
+
+    @Override
+    public void release() {
+        vtdGen = null;
+        vtdNav = null;
+        autoPilot = null;
+        doc = null;
+        fragmentBuffer = null;
+        fileBuffer = null;
+        prefixBuffer = null;
+        numberBuffer = null;
+        hugeDocument = null;
+    }
+
+    /**
+     * @return the navigator of the current document, null when no document is bound
+     */
+    public VTDNav getNav() {
+        return vtdNav;
+    }
+
+    @Override
+    public CompiledXPath compile(String xpath) throws KettleException {
         try {
-            autoPilot.selectXPath(xpath);
-            if ((i = autoPilot.evalXPath()) != -1) {            
-                long elementOffset = vtdNav.getElementFragment();
-                int contentStartIndex = (int) elementOffset;    
-                int contentEndIndex = contentStartIndex + (int) (elementOffset >> 32);
-                result= this.xml.substring(contentStartIndex, contentEndIndex);           
-    
+            AutoPilot compiled = new AutoPilot();
+            for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+                compiled.declareXPathNameSpace(namespace.getKey(), namespace.getValue());
             }
-            
-            return result;
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            throw new KettleException("error in try getFirstNodeXML", e);
-        }finally{
-            vtdNav.pop();
+            compiled.selectXPath(xpath);
+            return new VTDCompiledXPath(xpath, compiled);
+        } catch (XPathParseException e) {
+            throw new KettleException("invalid xpath " + xpath, e);
         }
-        
     }
 
     @Override
-    public String getAttribute(String xpath) throws KettleException {
-        // TODO Auto-generated method stub
-        String result = "";
-        vtdNav.push();
+    public void discard(CompiledXPath xpath) {
+        // a compiled expression holds no reference to the reader
+    }
+
+    /**
+     * @return the navigator of the bound document, the reader itself or the
+     *         huge document
+     */
+    private VTDNavigator navigator() {
+        return huge ? hugeDocument : this;
+    }
+
+    /**
+     * Get the cursor of a compiled expression for the bound document.
+     */
+    private VTDNavigator.Cursor cursor(CompiledXPath xpath) throws KettleException {
+        return huge ? prepareHuge(xpath) : prepare(xpath);
+    }
+
+    /**
+     * Get the cursor of the string based methods for the bound document,
+     * loaded with the given expression.
+     */
+    private VTDNavigator.Cursor cursor(String xpath) throws KettleException {
+        return huge ? hugeDocument.select(xpath) : select(xpath);
+    }
+
+    /**
+     * Get the cursor of a compiled expression, bound to the current document.
+     */
+    HeapCursor prepare(CompiledXPath xpath) {
+        return ((VTDCompiledXPath) xpath).cursor.bind(vtdNav, generation);
+    }
+
+    /**
+     * Get the huge document cursor of a compiled expression, compiled the
+     * first time a huge document needs it and bound to the current document.
+     */
+    VTDHugeDocument.HugeCursor prepareHuge(CompiledXPath xpath) throws KettleException {
+        VTDCompiledXPath compiled = (VTDCompiledXPath) xpath;
+        if (compiled.hugeCursor == null) {
+            compiled.hugeCursor = hugeDocument.compile(compiled.xpath);
+        }
+        return compiled.hugeCursor.bind(hugeDocument, generation);
+    }
+
+    /**
+     * Get the auto pilot used by the string based methods, loaded with the given expression.
+     */
+    HeapCursor select(String xpath) throws KettleException {
         try {
             autoPilot.selectXPath(xpath);
-            int i;
-            if ((i = autoPilot.evalXPath()) != -1) {
-                result = vtdNav.toString(i + 1);
-            }            
-            return result;
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            throw new KettleException("error in try get attribute", e);
-        } finally{
-            vtdNav.pop();
+            return selected;
+        } catch (XPathParseException e) {
+            throw new KettleException("invalid xpath " + xpath, e);
         }
-        
     }
 
     @Override
-    public String getNodeValues(String xpath, String delimiter) throws KettleException {
-        // TODO Auto-generated method stub
-        StringBuilder result = new StringBuilder();
-        int i;
-        int size=0;
-        boolean first= true;
-        vtdNav.push();
+    public String getFirstNodeValue(String xpath) throws KettleException {
+        return navigator().getFirstNodeValue(cursor(xpath));
+    }
+
+    @Override
+    public String getFirstNodeValue(CompiledXPath xpath) throws KettleException {
+        return navigator().getFirstNodeValue(cursor(xpath));
+    }
+
+    /**
+     * Get the token holding the value {@link #getFirstNodeValue(CompiledXPath)}
+     * returns, so it can be parsed without making a String.
+     *
+     * @return the token index, -1 when there is no value
+     */
+    public int getFirstNodeValueToken(CompiledXPath xpath) throws KettleException {
+        return getFirstNodeValueToken(prepare(xpath));
+    }
+
+    @Override
+    public String getFirstNodeXML(String xpath) throws KettleException {
+        return navigator().getFirstNodeXML(cursor(xpath));
+    }
+
+    @Override
+    public String getFirstNodeXML(CompiledXPath xpath) throws KettleException {
+        return navigator().getFirstNodeXML(cursor(xpath));
+    }
+
+    @Override
+    public String getAttribute(String xpath) throws KettleException {
+        return navigator().getAttribute(cursor(xpath));
+    }
+
+    @Override
+    public String getAttribute(CompiledXPath xpath) throws KettleException {
+        return navigator().getAttribute(cursor(xpath));
+    }
+
+    /**
+     * Get the token holding the value {@link #getAttribute(CompiledXPath)}
+     * returns, so it can be parsed without making a String.
+     *
+     * @return the token index, -1 when there is no value
+     */
+    public int getAttributeToken(CompiledXPath xpath) throws KettleException {
+        return getAttributeToken(prepare(xpath));
+    }
+
+    /**
+     * Parse a token of the current document straight into a Kettle Integer
+     * (Long), Number (Double) or BigNumber (BigDecimal).
+     *
+     * @param token the token index, as returned by the token methods
+     * @param type  ValueMetaInterface.TYPE_INTEGER, TYPE_NUMBER or TYPE_BIGNUMBER
+     * @throws NumberFormatException when the token is not a plain number, the
+     *                               caller then converts its String value
+     */
+    public Object parseToken(int token, int type) {
         try {
-            autoPilot.selectXPath(xpath);
-            while ((i = autoPilot.evalXPath()) != -1) {   
-                String row=vtdNav.toString(vtdNav.getText());
-                if(row!=null){
-                    if(first){
-                        first=false;
-                    }else{
-                        result.append(delimiter);
-                    }
-                    result.append(row);
-                }                
-            }            
-            return result.toString();
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            throw new KettleException("error in try getFirstNodeXML", e);
-        }finally{
-            vtdNav.pop();
+            switch (type) {
+                case ValueMetaInterface.TYPE_INTEGER:
+                    return Long.valueOf(vtdNav.parseLong(token));
+                case ValueMetaInterface.TYPE_NUMBER:
+                    return Double.valueOf(vtdNav.parseDouble(token));
+                case ValueMetaInterface.TYPE_BIGNUMBER:
+                    return parseBigDecimal(token);
+                default:
+                    throw new NumberFormatException("not a numeric type " + type);
+            }
+        } catch (NavException e) {
+            throw new NumberFormatException(e.getMessage());
         }
     }
 
-    @Override
-    public String getNodeValuesFixedSize(String xpath, String delimiter, int length) throws KettleException {
-        // TODO Auto-generated method stub
-        StringBuilder result = new StringBuilder();
-        int i;
-        int size=0;
-        boolean first= true;
-        vtdNav.push();
+    /**
+     * Get the text of a token of the current document.
+     */
+    public String getTokenString(int token) throws KettleException {
         try {
-            autoPilot.selectXPath(xpath);
-            while ((i = autoPilot.evalXPath()) != -1) {   
-                String row=vtdNav.toString(vtdNav.getText());
-                if(row!=null){
-                    size+= row.length();                    
-                    if(first){
-                        first=false;
-                        // if first and size> length then try substr
-                        if(size>= length){
-                            result.append(row.substring(0, length-1));
-                        }else{
-                            result.append(row);
-                        }
-                    }else{
-                        if(size>= length){
-                            break;
-                        }
-                        result.append(delimiter);
-                        result.append(row);
-                    }
-                    
-                }                
-            }            
-            return result.toString();
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            throw new KettleException("error in try getFirstNodeXML", e);
-        }finally{
-            vtdNav.pop();
+            return vtdNav.toString(token);
+        } catch (NavException e) {
+            throw new KettleException("error in try getTokenString", e);
         }
     }
 
+    /**
+     * Read the digits of a token into a reused char buffer, only tokens of plain
+     * ASCII digits, sign, point and exponent are taken.
+     */
     @Override
-    public String getNodesXML(String xpath) throws KettleException {
-        // TODO Auto-generated method stub
-        StringBuilder result = new StringBuilder();
-        result.append("<row>");
-        int i;
-        vtdNav.push();
-        try {
-            autoPilot.selectXPath(xpath);
-            while ((i = autoPilot.evalXPath()) != -1) {            
-                long elementOffset = vtdNav.getElementFragment();
-                int contentStartIndex = (int) elementOffset;    
-                int contentEndIndex = contentStartIndex + (int) (elementOffset >> 32);
-                result.append(this.xml.substring(contentStartIndex, contentEndIndex));           
-    
+    BigDecimal parseBigDecimal(int token) throws NavException {
+        int encoding = vtdNav.getEncoding();
+        if (encoding != VTDNav.FORMAT_UTF8 && encoding != VTDNav.FORMAT_ASCII
+                && encoding != VTDNav.FORMAT_ISO_8859_1) {
+            return new BigDecimal(vtdNav.toString(token).trim());
+        }
+        int start = vtdNav.getTokenOffset(token);
+        int end = start + vtdNav.getTokenLength(token);
+        while (start < end && isWhitespace(doc[start])) {
+            start++;
+        }
+        while (end > start && isWhitespace(doc[end - 1])) {
+            end--;
+        }
+        int length = end - start;
+        if (length == 0) {
+            throw new NumberFormatException("empty number");
+        }
+        if (numberBuffer.length < length) {
+            numberBuffer = new char[Math.max(length, numberBuffer.length * 2)];
+        }
+        for (int i = 0; i < length; i++) {
+            byte b = doc[start + i];
+            if ((b < '0' || b > '9') && b != '-' && b != '+' && b != '.' && b != 'e' && b != 'E') {
+                // entity references and anything else go through the String value
+                throw new NumberFormatException("not a plain number");
             }
-            result.append("</row>");   
-            return result.toString();
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            throw new KettleException("error in try getFirstNodeXML", e);
-        }finally{
-            vtdNav.pop();
+            numberBuffer[i] = (char) b;
         }
+        return new BigDecimal(numberBuffer, 0, length);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    @Override
+    public String getNodeValues(String xpath, String delimiter) throws KettleException {
+        return navigator().getNodeValues(cursor(xpath), delimiter);
+    }
+
+    @Override
+    public String getNodeValues(CompiledXPath xpath, String delimiter) throws KettleException {
+        return navigator().getNodeValues(cursor(xpath), delimiter);
+    }
+
+    @Override
+    public String getNodeValuesFixedSize(String xpath, String delimiter, int length) throws KettleException {
+        return navigator().getNodeValuesFixedSize(cursor(xpath), delimiter, length);
+    }
+
+    @Override
+    public String getNodeValuesFixedSize(CompiledXPath xpath, String delimiter, int length) throws KettleException {
+        return navigator().getNodeValuesFixedSize(cursor(xpath), delimiter, length);
+    }
+
+    @Override
+    public String getNodesXML(String xpath) throws KettleException {
+        return navigator().getNodesXML(cursor(xpath));
+    }
+
+    @Override
+    public String getNodesXML(CompiledXPath xpath) throws KettleException {
+        return navigator().getNodesXML(cursor(xpath));
     }
 
     @Override
     public Float getSum(String xpath) throws KettleException {
-        // TODO Auto-generated method stub
-        float result=0;
-        int i;
-        int size=0;
-        boolean first= true;
+        return navigator().getSum(cursor(xpath));
+    }
+
+    @Override
+    public Float getSum(CompiledXPath xpath) throws KettleException {
+        return navigator().getSum(cursor(xpath));
+    }
+
+    @Override
+    public void aggregate(String xpath, XPathAggregate result) throws KettleException {
+        navigator().aggregate(cursor(xpath), result);
+    }
+
+    @Override
+    public void aggregate(CompiledXPath xpath, XPathAggregate result) throws KettleException {
+        navigator().aggregate(cursor(xpath), result);
+    }
+
+    @Override
+    public boolean matches(CompiledXPath xpath) throws KettleException {
+        return navigator().matches(cursor(xpath));
+    }
+
+    @Override
+    public boolean nextNode(CompiledXPath xpath) throws KettleException {
+        return navigator().nextNode(cursor(xpath));
+    }
+
+    @Override
+    void push() {
         vtdNav.push();
-        try {
-            autoPilot.selectXPath(xpath);
-            while ((i = autoPilot.evalXPath()) != -1) {   
-                String row=vtdNav.toString(vtdNav.getText());
-                if(row!=null){
-                    result+= Float.parseFloat(row);
-                }                
-            }            
-            return result;
-        } catch (Exception e) {
-            // TODO Auto-generated catch block
-            throw new KettleException("error in try getFirstNodeXML", e);
-        }finally{
-            vtdNav.pop();
+    }
+
+    @Override
+    void pop() {
+        vtdNav.pop();
+    }
+
+    @Override
+    int getText() throws NavException {
+        return vtdNav.getText();
+    }
+
+    @Override
+    String toString(int token) throws NavException {
+        return vtdNav.toString(token);
+    }
+
+    @Override
+    String getElementXML() throws NavException {
+        return getFragment(vtdNav.getElementFragment());
+    }
+
+    @Override
+    void appendElementFragment() throws NavException {
+        long elementOffset = vtdNav.getElementFragment();
+        appendFragment(doc, (int) elementOffset, (int) (elementOffset >> 32));
+    }
+
+    @Override
+    Charset getCharset() {
+        return getDocCharset();
+    }
+
+    /**
+     * Get the text of a fragment given as returned by VTDNav.getElementFragment().
+     * The offsets are byte offsets, the fragment is decoded straight from the
+     * parsed bytes.
+     */
+    String getFragment(long elementOffset) {
+        return new String(doc, (int) elementOffset, (int) (elementOffset >> 32), getDocCharset());
+    }
+
+    Charset getDocCharset() {
+        if (docCharset == null) {
+            docCharset = XMLEncoding.getCharset(doc, docOffset, documentSize);
+        }
+        return docCharset;
+    }
+
+    /**
+     * An expression compiled in its own auto pilot. The cursors are bound
+     * lazily to the navigator of the current document the first time they are
+     * evaluated after a bind. The huge document cursor is only compiled when a
+     * huge document is bound.
+     */
+    static class VTDCompiledXPath implements CompiledXPath {
+        final String xpath;
+        final HeapCursor cursor;
+        VTDHugeDocument.HugeCursor hugeCursor;
+
+        VTDCompiledXPath(String xpath, AutoPilot autoPilot) {
+            this.xpath = xpath;
+            this.cursor = new HeapCursor(autoPilot);
+        }
+
+        @Override
+        public String getXPath() {
+            return xpath;
+        }
+    }
+
+    /**
+     * An AutoPilot, bound lazily to the document of the current generation of
+     * the reader.
+     */
+    static final class HeapCursor implements VTDNavigator.Cursor {
+        final AutoPilot autoPilot;
+        private int generation = -1;
+
+        HeapCursor(AutoPilot autoPilot) {
+            this.autoPilot = autoPilot;
+        }
+
+        /**
+         * Bind to the given navigator when the generation changed.
+         */
+        HeapCursor bind(VTDNav nav, int generation) {
+            if (this.generation != generation) {
+                autoPilot.bind(nav);
+                this.generation = generation;
+            }
+            return this;
+        }
+
+        @Override
+        public int evalXPath() throws XPathEvalException, NavException {
+            return autoPilot.evalXPath();
+        }
+
+        @Override
+        public boolean evalXPathToBoolean() {
+            return autoPilot.evalXPathToBoolean();
+        }
+
+        @Override
+        public void resetXPath() {
+            autoPilot.resetXPath();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,142 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Find the character encoding of an XML document from its byte order mark or
+ * from the encoding of its XML declaration, as the parser does.
+ */
+public final class XMLEncoding {
+  /** The encoding of a document without byte order mark nor declared encoding */
+  public static final Charset DEFAULT_CHARSET = StandardCharsets.UTF_8;
+
+  /** The declaration is looked for in this many leading bytes */
+  private static final int MAX_DECLARATION_LENGTH = 256;
+
+  private XMLEncoding() {
+  }
+
+  /**
+   * Get the charset a document given as a String must be encoded with, so the
+   * parser reads it back with the encoding of its declaration.
+   */
+  public static Charset getCharset(String xml) {
+    return toCharset(getDeclaredEncoding(xml));
+  }
+
+  /**
+   * Get the charset of a document given as bytes.
+   */
+  public static Charset getCharset(byte[] doc, int offset, int length) {
+    Charset bomCharset = getBOMCharset(doc, offset, length);
+    if (bomCharset != null) {
+      return bomCharset;
+    }
+    return toCharset(getDeclaredEncoding(doc, offset, length));
+  }
+
+  /**
+   * @return true when the encoding of the document can be told from its bytes
+   *         alone, with a byte order mark or a declared encoding
+   */
+  public static boolean isSelfDescribing(byte[] doc, int offset, int length) {
+    return getBOMCharset(doc, offset, length) != null || getDeclaredEncoding(doc, offset, length) != null;
+  }
+
+  /**
+   * @return true when documents written with this encoding can be given to the
+   *         parser as they are, even without declaration
+   */
+  public static boolean isDefaultCompatible(String encoding) {
+    if (encoding == null || encoding.length() == 0) {
+      return DEFAULT_CHARSET.equals(Charset.defaultCharset());
+    }
+    try {
+      Charset charset = Charset.forName(encoding);
+      return DEFAULT_CHARSET.equals(charset) || StandardCharsets.US_ASCII.equals(charset);
+    } catch (Exception e) {
+      return false;
+    }
+  }
+
+  static Charset getBOMCharset(byte[] doc, int offset, int length) {
+    if (length >= 3 && (doc[offset] & 0xFF) == 0xEF && (doc[offset + 1] & 0xFF) == 0xBB
+        && (doc[offset + 2] & 0xFF) == 0xBF) {
+      return StandardCharsets.UTF_8;
+    }
+    if (length >= 2 && (doc[offset] & 0xFF) == 0xFE && (doc[offset + 1] & 0xFF) == 0xFF) {
+      return StandardCharsets.UTF_16BE;
+    }
+    if (length >= 2 && (doc[offset] & 0xFF) == 0xFF && (doc[offset + 1] & 0xFF) == 0xFE) {
+      return StandardCharsets.UTF_16LE;
+    }
+    return null;
+  }
+
+  static String getDeclaredEncoding(String xml) {
+    if (xml == null || !xml.startsWith("<?xml")) {
+      return null;
+    }
+    return parseDeclaration(xml.substring(0, Math.min(xml.length(), MAX_DECLARATION_LENGTH)));
+  }
+
+  static String getDeclaredEncoding(byte[] doc, int offset, int length) {
+    int start = offset;
+    if (getBOMCharset(doc, offset, length) == StandardCharsets.UTF_8) {
+      start += 3;
+    }
+    int end = Math.min(offset + length, start + MAX_DECLARATION_LENGTH);
+    if (end - start < 5 || doc[start] != '<' || doc[start + 1] != '?' || doc[start + 2] != 'x'
+        || doc[start + 3] != 'm' || doc[start + 4] != 'l') {
+      return null;
+    }
+    // the declaration only holds ASCII characters in an ASCII compatible document
+    return parseDeclaration(new String(doc, start, end - start, StandardCharsets.ISO_8859_1));
+  }
+
+  private static String parseDeclaration(String prolog) {
+    int end = prolog.indexOf("?>");
+    if (end < 0) {
+      return null;
+    }
+    int pos = prolog.indexOf("encoding", 5);
+    if (pos < 0 || pos > end) {
+      return null;
+    }
+    pos += "encoding".length();
+    while (pos < end && Character.isWhitespace(prolog.charAt(pos))) {
+      pos++;
+    }
+    if (pos >= end || prolog.charAt(pos) != '=') {
+      return null;
+    }
+    pos++;
+    while (pos < end && Character.isWhitespace(prolog.charAt(pos))) {
+      pos++;
+    }
+    if (pos >= end) {
+      return null;
+    }
+    char quote = prolog.charAt(pos);
+    if (quote != '"' && quote != '\'') {
+      return null;
+    }
+    int close = prolog.indexOf(quote, pos + 1);
+    if (close < 0 || close > end) {
+      return null;
+    }
+    return prolog.substring(pos + 1, close).trim();
+  }
+
+  private static Charset toCharset(String encoding) {
+    if (encoding == null || encoding.length() == 0) {
+      return DEFAULT_CHARSET;
+    }
+    try {
+      return Charset.forName(encoding);
+    } catch (Exception e) {
+      return DEFAULT_CHARSET;
+    }
+  }
+}
@@ -0,0 +1,374 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Decode the XML field of a row when it holds the document base64 encoded
+ * and/or compressed, into a buffer kept by the worker for the next rows.
+ *
+ * Base64 is decoded from the characters of the value, line breaks and spaces
+ * are skipped. Deflate takes zlib wrapped data as well as raw deflate data.
+ * Gzip data is checked against the size and CRC of its trailer; only the
+ * first member of a multi member file is read. Inflating stops at a maximum
+ * size, compressed data can expand a thousand times.
+ */
+public class XMLInputDecoder {
+  private static final Class<?> PKG = XMLTransformMetaData.class; // for i18n purposes
+  public static String DEFAULT_PREFIX = "XMLTransform";
+
+  private static final int GZIP_MAGIC = 0x8b1f;
+  private static final int GZIP_FHCRC = 2;
+  private static final int GZIP_FEXTRA = 4;
+  private static final int GZIP_FNAME = 8;
+  private static final int GZIP_FCOMMENT = 16;
+  private static final int MIN_BUFFER_SIZE = 8192;
+
+  /** Value of each base64 character, -1 for the others */
+  private static final byte[] BASE64 = new byte[128];
+
+  static {
+    Arrays.fill(BASE64, (byte) -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64[alphabet.charAt(i)] = (byte) i;
+    }
+    // the URL safe alphabet
+    BASE64['-'] = 62;
+    BASE64['_'] = 63;
+  }
+
+  private final boolean base64;
+  /** Gzip data, otherwise deflate data when the value is not only base64 */
+  private final boolean gzip;
+  private final int retainedBufferSize;
+  /** Inflated documents over this many bytes are rejected */
+  private final int maxDecodedSize;
+  /** The decoded document */
+  private byte[] buffer = new byte[MIN_BUFFER_SIZE];
+  /** The base64 decoded bytes still to decompress */
+  private byte[] compressed;
+  private Inflater inflater;
+  private Inflater rawInflater;
+  private CRC32 crc;
+
+  /**
+   * @param encoding           the id of one of the INPUT_ENCODING_ items of
+   *                           XMLTransformMetaData other than none
+   * @param retainedBufferSize buffers bigger than this are dropped by {@link #reset()}
+   * @param maxDecodedSize     inflated documents over this many bytes are rejected
+   */
+  public XMLInputDecoder(int encoding, int retainedBufferSize, int maxDecodedSize) {
+    this.base64 = encoding == XMLTransformMetaData.INPUT_ENCODING_BASE64.getId()
+        || encoding == XMLTransformMetaData.INPUT_ENCODING_BASE64_GZIP.getId();
+    this.gzip = encoding == XMLTransformMetaData.INPUT_ENCODING_GZIP.getId()
+        || encoding == XMLTransformMetaData.INPUT_ENCODING_BASE64_GZIP.getId();
+    this.retainedBufferSize = retainedBufferSize;
+    this.maxDecodedSize = maxDecodedSize;
+  }
+
+  /**
+   * @return the decoder of the XML field of the step, null when its documents
+   *         are not encoded or are files
+   */
+  public static XMLInputDecoder create(XMLTransformMetaData meta) {
+    if (meta.isXmlIsAFile() || meta.getInputEncoding() == XMLTransformMetaData.INPUT_ENCODING_NONE.getId()) {
+      return null;
+    }
+    int retainedBufferSize = (int) Math.min(Integer.MAX_VALUE, meta.getRetainedBufferLimit() * 1024L);
+    int maxDecodedSize = (int) Math.min(Integer.MAX_VALUE - 8, meta.getMaxDecodedSize() * 1024L * 1024L);
+    return new XMLInputDecoder(meta.getInputEncoding(), retainedBufferSize, maxDecodedSize);
+  }
+
+  /**
+   * @return the decoded document, its length is the one returned by the last decode
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Decode the bytes of a value.
+   *
+   * @return the length of the document in {@link #getBuffer()}
+   * @throws KettleException when the value is not in the encoding of the step
+   */
+  public int decode(byte[] input, int offset, int length) throws KettleException {
+    if (!base64) {
+      return inflate(input, offset, length);
+    }
+    byte[] target = gzip ? compressedBuffer(length) : ensureBuffer(length / 4 * 3 + 3, 0);
+    int decoded = decodeBase64(input, offset, length, target);
+    return gzip ? inflate(compressed, 0, decoded) : decoded;
+  }
+
+  /**
+   * Decode the characters of a value, only base64 values are text.
+   *
+   * @return the length of the document in {@link #getBuffer()}
+   * @throws KettleException when the value is not in the encoding of the step
+   */
+  public int decode(String input) throws KettleException {
+    if (!base64) {
+      throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InputEncodingNeedsBinary"));
+    }
+    int length = input.length();
+    byte[] target = gzip ? compressedBuffer(length) : ensureBuffer(length / 4 * 3 + 3, 0);
+    int quantum = 0;
+    int count = 0;
+    int decoded = 0;
+    for (int i = 0; i < length; i++) {
+      char c = input.charAt(i);
+      if (c == '=') {
+        break;
+      }
+      int value = c < 128 ? BASE64[c] : -1;
+      if (value < 0) {
+        if (isSpace(c)) {
+          continue;
+        }
+        throw invalidBase64(c);
+      }
+      quantum = quantum << 6 | value;
+      if (++count == 4) {
+        target[decoded++] = (byte) (quantum >> 16);
+        target[decoded++] = (byte) (quantum >> 8);
+        target[decoded++] = (byte) quantum;
+        quantum = 0;
+        count = 0;
+      }
+    }
+    decoded = endBase64(quantum, count, target, decoded);
+    return gzip ? inflate(compressed, 0, decoded) : decoded;
+  }
+
+  /**
+   * Drop the buffers of an oversized document, the others are kept for the next rows.
+   */
+  public void reset() {
+    if (buffer.length > retainedBufferSize) {
+      buffer = new byte[MIN_BUFFER_SIZE];
+    }
+    if (compressed != null && compressed.length > retainedBufferSize) {
+      compressed = null;
+    }
+  }
+
+  /**
+   * Free the native memory of the inflaters, the decoder is not used anymore afterwards.
+   */
+  public void release() {
+    if (inflater != null) {
+      inflater.end();
+      inflater = null;
+    }
+    if (rawInflater != null) {
+      rawInflater.end();
+      rawInflater = null;
+    }
+    buffer = null;
+    compressed = null;
+  }
+
+  private int decodeBase64(byte[] input, int offset, int length, byte[] target) throws KettleException {
+    int quantum = 0;
+    int count = 0;
+    int decoded = 0;
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      int c = input[i] & 0xff;
+      if (c == '=') {
+        break;
+      }
+      int value = c < 128 ? BASE64[c] : -1;
+      if (value < 0) {
+        if (isSpace(c)) {
+          continue;
+        }
+        throw invalidBase64((char) c);
+      }
+      quantum = quantum << 6 | value;
+      if (++count == 4) {
+        target[decoded++] = (byte) (quantum >> 16);
+        target[decoded++] = (byte) (quantum >> 8);
+        target[decoded++] = (byte) quantum;
+        quantum = 0;
+        count = 0;
+      }
+    }
+    return endBase64(quantum, count, target, decoded);
+  }
+
+  /**
+   * Write the bytes of the last incomplete quantum, ended by padding or by the value.
+   */
+  private int endBase64(int quantum, int count, byte[] target, int decoded) throws KettleException {
+    if (count == 1) {
+      throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidInputEncoding",
+          "base64"));
+    }
+    if (count == 2) {
+      target[decoded++] = (byte) (quantum >> 4);
+    } else if (count == 3) {
+      target[decoded++] = (byte) (quantum >> 10);
+      target[decoded++] = (byte) (quantum >> 2);
+    }
+    return decoded;
+  }
+
+  private static boolean isSpace(int c) {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+  }
+
+  private KettleException invalidBase64(char c) {
+    return new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidBase64Character",
+        String.valueOf((int) c)));
+  }
+
+  /**
+   * Decompress gzip or deflate data into the buffer.
+   */
+  private int inflate(byte[] input, int offset, int length) throws KettleException {
+    if (gzip) {
+      return gunzip(input, offset, length);
+    }
+    // zlib data starts with a deflate method byte and a header checksum
+    boolean zlib = length >= 2 && (input[offset] & 0x0f) == 8
+        && (((input[offset] & 0xff) << 8) | (input[offset + 1] & 0xff)) % 31 == 0;
+    Inflater target = zlib ? getInflater() : getRawInflater();
+    return inflate(target, input, offset, length, "deflate");
+  }
+
+  /**
+   * Skip the gzip header, inflate the raw deflate data and check the trailer.
+   */
+  private int gunzip(byte[] input, int offset, int length) throws KettleException {
+    int end = offset + length;
+    int pos = offset;
+    if (length < 18 || ((input[pos] & 0xff) | (input[pos + 1] & 0xff) << 8) != GZIP_MAGIC || input[pos + 2] != 8) {
+      throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidInputEncoding",
+          "gzip"));
+    }
+    int flags = input[pos + 3] & 0xff;
+    // magic, method, flags, modification time, extra flags and OS
+    pos += 10;
+    if ((flags & GZIP_FEXTRA) != 0 && pos + 2 <= end) {
+      pos += 2 + ((input[pos] & 0xff) | (input[pos + 1] & 0xff) << 8);
+    }
+    if ((flags & GZIP_FNAME) != 0) {
+      while (pos < end && input[pos++] != 0) {
+        // skip the zero terminated file name
+      }
+    }
+    if ((flags & GZIP_FCOMMENT) != 0) {
+      while (pos < end && input[pos++] != 0) {
+        // skip the zero terminated comment
+      }
+    }
+    if ((flags & GZIP_FHCRC) != 0) {
+      pos += 2;
+    }
+    if (pos + 8 > end) {
+      throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidInputEncoding",
+          "gzip"));
+    }
+    Inflater target = getRawInflater();
+    int decoded = inflate(target, input, pos, end - pos, "gzip");
+    int trailer = end - target.getRemaining();
+    if (trailer + 8 > end || readInt(input, trailer + 4) != decoded) {
+      throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidInputEncoding",
+          "gzip"));
+    }
+    if (crc == null) {
+      crc = new CRC32();
+    }
+    crc.reset();
+    crc.update(buffer, 0, decoded);
+    if ((int) crc.getValue() != readInt(input, trailer)) {
+      throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidInputEncoding",
+          "gzip"));
+    }
+    return decoded;
+  }
+
+  private int inflate(Inflater target, byte[] input, int offset, int length, String encoding)
+      throws KettleException {
+    target.reset();
+    target.setInput(input, offset, length);
+    // compressed XML usually expands four to ten times
+    ensureBuffer((int) Math.min(maxDecodedSize, length * 4L), 0);
+    int decoded = 0;
+    try {
+      while (!target.finished()) {
+        if (decoded >= maxDecodedSize) {
+          throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.DecodedDocumentTooLarge",
+              String.valueOf(maxDecodedSize / (1024 * 1024))));
+        }
+        if (decoded == buffer.length) {
+          ensureBuffer(decoded + 1, decoded);
+        }
+        int n = target.inflate(buffer, decoded, Math.min(buffer.length, maxDecodedSize) - decoded);
+        if (n == 0 && (target.needsInput() || target.needsDictionary())) {
+          throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidInputEncoding",
+              encoding));
+        }
+        decoded += n;
+      }
+    } catch (DataFormatException e) {
+      throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidInputEncoding",
+          encoding), e);
+    }
+    return decoded;
+  }
+
+  /**
+   * Grow the buffer to hold at least this many bytes, doubling it, and keep its first bytes.
+   */
+  private byte[] ensureBuffer(int size, int keep) {
+    if (buffer.length < size) {
+      long grown = Math.max(size, buffer.length * 2L);
+      byte[] bigger = new byte[(int) Math.min(Integer.MAX_VALUE - 8, grown)];
+      System.arraycopy(buffer, 0, bigger, 0, keep);
+      buffer = bigger;
+    }
+    return buffer;
+  }
+
+  /**
+   * @return the buffer of the base64 decoded bytes, for a value of this many characters
+   */
+  private byte[] compressedBuffer(int length) {
+    int size = length / 4 * 3 + 3;
+    if (compressed == null || compressed.length < size) {
+      compressed = new byte[Math.max(size, MIN_BUFFER_SIZE)];
+    }
+    return compressed;
+  }
+
+  private Inflater getInflater() {
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    return inflater;
+  }
+
+  private Inflater getRawInflater() {
+    if (rawInflater == null) {
+      rawInflater = new Inflater(true);
+    }
+    return rawInflater;
+  }
+
+  /**
+   * @return the little endian int at this position
+   */
+  private static int readInt(byte[] input, int pos) {
+    return (input[pos] & 0xff) | (input[pos + 1] & 0xff) << 8 | (input[pos + 2] & 0xff) << 16
+        | (input[pos + 3] & 0xff) << 24;
+  }
+}
@@ -4,6 +4,19 @@ import org.pentaho.di.core.exception.KettleException;
 
 public interface XMLReader {
     public void bind(String xml) throws KettleException ;
+
+    /**
+     * Bind the reader to a document given as raw bytes, the encoding is taken
+     * from the byte order mark or the XML declaration of the document.
+     */
+    public void bind(byte[] xml, int offset, int length) throws KettleException ;
+
+    /**
+     * Bind the reader to a document read from a local file, the encoding is
+     * found as for raw bytes.
+     */
+    public void bindFile(String path) throws KettleException ;
+
     public String getFirstNodeValue(String xpath) throws KettleException ;
     public String getFirstNodeXML(String xpath) throws KettleException ;
     public String getAttribute(String xpath) throws KettleException ;
@@ -12,5 +25,63 @@ public interface XMLReader {
     public String getNodesXML(String xpath) throws KettleException ;
     public Float getSum(String xpath) throws KettleException ;
 
-    
-}
\ No newline at end of file
+    /**
+     * Bind a prefix used in the XPaths to a namespace URI, before compiling them.
+     */
+    public void declareNamespace(String prefix, String uri) throws KettleException ;
+
+    /**
+     * Parse an XPath expression once, it can then be evaluated against every
+     * document bound to this reader.
+     *
+     * @throws KettleException when the expression is not valid
+     */
+    public CompiledXPath compile(String xpath) throws KettleException ;
+
+    /**
+     * Forget an expression compiled by this reader, it is not evaluated anymore.
+     */
+    public void discard(CompiledXPath xpath);
+    public String getFirstNodeValue(CompiledXPath xpath) throws KettleException ;
+    public String getFirstNodeXML(CompiledXPath xpath) throws KettleException ;
+    public String getAttribute(CompiledXPath xpath) throws KettleException ;
+    public String getNodeValues(CompiledXPath xpath, String delimiter) throws KettleException ;
+    public String getNodeValuesFixedSize(CompiledXPath xpath, String delimiter, int length) throws KettleException ;
+    public String getNodesXML(CompiledXPath xpath) throws KettleException ;
+    public Float getSum(CompiledXPath xpath) throws KettleException ;
+
+    /**
+     * Count the nodes matched by the expression and add their values to the
+     * exact sum, minimum and maximum, in one traversal. Nodes without text only
+     * count.
+     *
+     * @param result reset and filled with the aggregate
+     * @throws KettleException when a value is not a number
+     */
+    public void aggregate(String xpath, XPathAggregate result) throws KettleException ;
+    public void aggregate(CompiledXPath xpath, XPathAggregate result) throws KettleException ;
+
+    /**
+     * Test the current document against an expression: a node set is true when
+     * it is not empty, a boolean expression as it evaluates.
+     */
+    public boolean matches(CompiledXPath xpath) throws KettleException ;
+
+    /**
+     * Move to the next node matched by the expression, relative XPaths are then
+     * evaluated from that node.
+     *
+     * @return false when there is no more node, the next call starts over
+     */
+    public boolean nextNode(CompiledXPath xpath) throws KettleException ;
+
+    /**
+     * Forget the current document so the reader can be bound to the next one.
+     */
+    public void reset();
+
+    /**
+     * Release every buffer held by the reader, it is not used anymore afterwards.
+     */
+    public void release();
+}
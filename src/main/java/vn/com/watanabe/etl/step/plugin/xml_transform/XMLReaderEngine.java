@@ -0,0 +1,190 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import vn.com.watanabe.etl.step.plugin.xml_transform.BaseSelectList.Item;
+
+/**
+ * An {@link XMLReader} implementation the step can run with, and what it
+ * supports. The engines are kept in a registry indexed by the id of their
+ * item, the step saves the code of the item.
+ */
+public abstract class XMLReaderEngine {
+  private static final List<XMLReaderEngine> engines = new ArrayList<XMLReaderEngine>();
+
+  static {
+    register(new VTDEngine());
+    register(new StAXEngine());
+  }
+
+  private final Item item;
+  private final Set<Integer> elementTypes = new HashSet<Integer>();
+  private final Set<Integer> resultTypes = new HashSet<Integer>();
+
+  /**
+   * The engines of the step evaluate every type, an engine registered by
+   * another plugin may declare less.
+   *
+   * @param item         the id, code and description of the engine
+   * @param elementTypes the ELEMENT_TYPE_ items of XMLTransformField it evaluates
+   * @param resultTypes  the RESULT_TYPE_ items of XMLTransformField it evaluates
+   */
+  protected XMLReaderEngine(Item item, Item[] elementTypes, Item[] resultTypes) {
+    this.item = item;
+    for (Item type : elementTypes) {
+      this.elementTypes.add(type.getId());
+    }
+    for (Item type : resultTypes) {
+      this.resultTypes.add(type.getId());
+    }
+  }
+
+  /**
+   * Add an engine, its item id must be the number of engines already registered.
+   */
+  public static synchronized void register(XMLReaderEngine engine) {
+    if (engine.getItem().getId() != engines.size()) {
+      throw new IllegalArgumentException("engine " + engine.getItem().getValue() + " must have the id " + engines.size());
+    }
+    engines.add(engine);
+  }
+
+  /**
+   * @return the engine with this id, the first one when there is none
+   */
+  public static synchronized XMLReaderEngine getById(int id) {
+    return id >= 0 && id < engines.size() ? engines.get(id) : engines.get(0);
+  }
+
+  /**
+   * @return the engine with this code, the first one when there is none
+   */
+  public static synchronized XMLReaderEngine getByCode(String code) {
+    return engines.get(getCodes().getByName(code).getId());
+  }
+
+  /**
+   * @return the items of the registered engines, for the options of the dialog
+   */
+  public static synchronized BaseSelectList getCodes() {
+    List<Item> items = new ArrayList<Item>(engines.size());
+    for (XMLReaderEngine engine : engines) {
+      items.add(engine.getItem());
+    }
+    return new BaseSelectList(items);
+  }
+
+  public Item getItem() {
+    return item;
+  }
+
+  public boolean supportsElementType(int elementType) {
+    return elementTypes.contains(elementType);
+  }
+
+  public boolean supportsResultType(int resultType) {
+    return resultTypes.contains(resultType);
+  }
+
+  /**
+   * @return false when the engine can not evaluate the expression, it is then
+   *         rejected when the step compiles it
+   */
+  public boolean supportsXPath(String xpath) {
+    return true;
+  }
+
+  public boolean supportsLoop() {
+    return true;
+  }
+
+  /**
+   * @return the size under which a file can be read into memory before a
+   *         reader is taken and parsed from its bytes, 0 when the reader must
+   *         read the file itself
+   */
+  public long getFileBytesLimit(XMLTransformMetaData meta) {
+    return 0;
+  }
+
+  /**
+   * Create the reader of one worker of a step copy.
+   *
+   * @param metrics the metrics of the step copy, null when it keeps none
+   */
+  public abstract XMLReader createReader(XMLTransformMetaData meta, XMLTransformMetrics metrics);
+
+  /**
+   * VTD-XML: any XPath, the whole document is indexed.
+   */
+  static class VTDEngine extends XMLReaderEngine {
+    VTDEngine() {
+      super(XMLTransformMetaData.READER_ENGINE_VTD, allElementTypes(), allResultTypes());
+    }
+
+    /**
+     * The huge documents are mapped and the sidecar is read with the file.
+     */
+    @Override
+    public long getFileBytesLimit(XMLTransformMetaData meta) {
+      if (meta.isVtdIndexSidecar()) {
+        return 0;
+      }
+      return Math.min(meta.getHugeDocumentThreshold() * 1024L * 1024L, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public XMLReader createReader(XMLTransformMetaData meta, XMLTransformMetrics metrics) {
+      int retainedBufferSize = (int) Math.min(Integer.MAX_VALUE, meta.getRetainedBufferLimit() * 1024L);
+      VTDXMLReader reader = new VTDXMLReader(retainedBufferSize);
+      reader.setHugeDocumentThreshold(meta.getHugeDocumentThreshold() * 1024L * 1024L);
+      reader.setIndexSidecar(meta.isXmlIsAFile() && meta.isVtdIndexSidecar());
+      reader.setNamespaceAware(meta.isNamespaceAware());
+      reader.setMetrics(metrics);
+      return reader;
+    }
+  }
+
+  /**
+   * StAX: bounded memory, absolute child paths and no loop.
+   */
+  static class StAXEngine extends XMLReaderEngine {
+    StAXEngine() {
+      super(XMLTransformMetaData.READER_ENGINE_STAX, allElementTypes(), allResultTypes());
+    }
+
+    @Override
+    public boolean supportsXPath(String xpath) {
+      return SimpleLocationPath.parse(xpath) != null;
+    }
+
+    @Override
+    public boolean supportsLoop() {
+      return false;
+    }
+
+    @Override
+    public XMLReader createReader(XMLTransformMetaData meta, XMLTransformMetrics metrics) {
+      StAXXMLReader reader = new StAXXMLReader();
+      reader.setNamespaceAware(meta.isNamespaceAware());
+      reader.setMetrics(metrics);
+      return reader;
+    }
+  }
+
+  static Item[] allElementTypes() {
+    return new Item[] { XMLTransformField.ELEMENT_TYPE_NODE, XMLTransformField.ELEMENT_TYPE_ATTRIBUT,
+        XMLTransformField.ELEMENT_TYPE_NODE_MULTI };
+  }
+
+  static Item[] allResultTypes() {
+    return new Item[] { XMLTransformField.RESULT_TYPE_VALUE_OF, XMLTransformField.RESULT_TYPE_TYPE_SINGLE_NODE,
+        XMLTransformField.RESULT_TYPE_TYPE_SUM, XMLTransformField.RESULT_TYPE_FIST_VALUE,
+        XMLTransformField.RESULT_TYPE_VALUE_OF_FIXED_SIZE, XMLTransformField.RESULT_TYPE_COUNT,
+        XMLTransformField.RESULT_TYPE_MIN, XMLTransformField.RESULT_TYPE_MAX, XMLTransformField.RESULT_TYPE_AVERAGE,
+        XMLTransformField.RESULT_TYPE_DECIMAL_SUM };
+  }
+}
@@ -0,0 +1,233 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The extracted values of the documents already seen by a step copy, so a
+ * byte identical document is not parsed again.
+ *
+ * Entries are keyed by a 64 bit hash of the document and keep a copy of it,
+ * a lookup compares the whole document before returning the values. The
+ * least recently used entries are evicted once the estimated size of the
+ * cache is over its budget. The workers of a pool share the cache, every
+ * access is synchronized.
+ *
+ * The cached values are shared by the rows of every hit. Kettle Strings,
+ * numbers and booleans are immutable, but a Date or a byte[] can be changed in
+ * place by a later step, so those are copied going into the cache and coming
+ * out of it, see {@link #copyValues}.
+ */
+public class XMLResultCache {
+  /** Cached in place of the values of a document rejected by the row filter, compared by identity */
+  public static final List<Object[]> REJECTED = Collections.unmodifiableList(new ArrayList<Object[]>(0));
+  /** Estimated bytes of an entry besides its document and values */
+  private static final int ENTRY_OVERHEAD = 96;
+
+  private final long maxBytes;
+  private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+  private long bytes;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxBytes the memory budget of the cache
+   */
+  public XMLResultCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Get the values extracted from a document, one array of field values per
+   * output row.
+   *
+   * @param doc the document as bytes, or null
+   * @param xml the document as a String when there are no bytes
+   * @return the values, null when the document is not cached
+   */
+  public List<Object[]> get(byte[] doc, String xml) {
+    Key probe = new Key(doc, xml);
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(probe);
+    }
+    if (entry == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return entry.rows;
+  }
+
+  /**
+   * Cache the values extracted from a document, or {@link #REJECTED}. The
+   * document is copied, the value arrays are kept as they are and must not be
+   * changed afterwards.
+   */
+  public void put(byte[] doc, String xml, List<Object[]> rows) {
+    Key key = doc != null ? new Key(Arrays.copyOf(doc, doc.length), null) : new Key(null, xml);
+    long size = ENTRY_OVERHEAD + key.size() + estimate(rows);
+    if (size > maxBytes) {
+      return;
+    }
+    Entry entry = new Entry(rows, size);
+    synchronized (this) {
+      Entry previous = entries.put(key, entry);
+      if (previous != null) {
+        bytes -= previous.size;
+      }
+      bytes += size;
+      Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+      while (bytes > maxBytes && eldest.hasNext()) {
+        bytes -= eldest.next().getValue().size;
+        eldest.remove();
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  public synchronized int getEntries() {
+    return entries.size();
+  }
+
+  /**
+   * @return the estimated size of the cached documents and values
+   */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  /**
+   * Copy values like System.arraycopy, with a copy of the mutable ones: Date
+   * (and Timestamp) and byte[].
+   */
+  public static void copyValues(Object[] source, int sourceOffset, Object[] target, int targetOffset, int length) {
+    for (int i = 0; i < length; i++) {
+      Object value = source[sourceOffset + i];
+      if (value instanceof Date) {
+        value = ((Date) value).clone();
+      } else if (value instanceof byte[]) {
+        value = ((byte[]) value).clone();
+      }
+      target[targetOffset + i] = value;
+    }
+  }
+
+  private static long estimate(List<Object[]> rows) {
+    long size = 16;
+    for (Object[] row : rows) {
+      size += 16 + 8L * row.length;
+      for (Object value : row) {
+        if (value instanceof String) {
+          size += 40 + 2L * ((String) value).length();
+        } else if (value instanceof byte[]) {
+          size += 16 + ((byte[]) value).length;
+        } else if (value instanceof BigDecimal) {
+          size += 64;
+        } else if (value != null) {
+          size += 24;
+        }
+      }
+    }
+    return size;
+  }
+
+  /**
+   * 64 bit FNV-1a hash of the bytes.
+   */
+  static long hash(byte[] doc) {
+    long hash = 0xcbf29ce484222325L;
+    for (byte b : doc) {
+      hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * 64 bit FNV-1a hash of the characters.
+   */
+  static long hash(String xml) {
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0, length = xml.length(); i < length; i++) {
+      hash = (hash ^ xml.charAt(i)) * 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * A document and its hash, equal to another key only when the documents are.
+   */
+  static final class Key {
+    private final byte[] doc;
+    private final String xml;
+    private final long hash;
+
+    Key(byte[] doc, String xml) {
+      this(doc, xml, doc != null ? hash(doc) : hash(xml));
+    }
+
+    Key(byte[] doc, String xml, long hash) {
+      this.doc = doc;
+      this.xml = doc != null ? null : xml;
+      this.hash = hash;
+    }
+
+    long size() {
+      return doc != null ? 16 + doc.length : 40 + 2L * xml.length();
+    }
+
+    @Override
+    public int hashCode() {
+      return (int) (hash ^ (hash >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) obj;
+      if (hash != other.hash) {
+        return false;
+      }
+      // a collision of the hash: compare the documents
+      return doc != null ? Arrays.equals(doc, other.doc) : xml.equals(other.xml);
+    }
+  }
+
+  private static final class Entry {
+    private final List<Object[]> rows;
+    private final long size;
+
+    Entry(List<Object[]> rows, long size) {
+      this.rows = rows;
+      this.size = size;
+    }
+  }
+}
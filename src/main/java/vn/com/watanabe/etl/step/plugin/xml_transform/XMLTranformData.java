@@ -22,7 +22,11 @@
 
 package vn.com.watanabe.etl.step.plugin.xml_transform;
 
+import java.util.List;
+
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 
 /**
@@ -47,7 +51,30 @@ import org.pentaho.di.trans.step.BaseStepData;
  */
 public class XMLTranformData extends BaseStepData {
   public RowMetaInterface outputRowMeta;
-  public RowMetaInterface convertRowMeta;
+  /** Extracts the fields of each document when the step copy runs on its own thread */
+  public XMLTransformWorker worker;
+  /** Extracts the fields on several threads, null when the step copy runs serially */
+  public XMLTransformPool pool;
+  /** Live metrics of this step copy, null when they are not enabled */
+  public XMLTransformMetrics metrics;
+  /** Values of the documents already extracted, shared by the workers, null when not enabled */
+  public XMLResultCache resultCache;
+  /** Puts the extracted rows to the next steps */
+  public XMLTransformWorker.RowSink rowSink;
+  /** The rows of the current micro-batch, null when the rows are processed one by one */
+  XMLTransformBatch batch;
+  /** The row set of the step receiving the rows rejected by the row filter, null when they are dropped */
+  public RowSet rejectRowSet;
+  /** The row sets of the other steps when there is a reject step, null otherwise */
+  public List<RowSet> acceptRowSets;
+  /** The next accepted row set a row is distributed to */
+  public int nextAcceptRowSet;
+  /** The value meta of the XML field in the input rows */
+  public ValueMetaInterface xmlValueMeta;
+  /** True when the XML field holds bytes: binary type or lazy conversion */
+  public boolean rawXMLInput;
+  /** True when the raw bytes can be parsed as they are, even without declared encoding */
+  public boolean rawXMLDefaultCompatible;
 
   public XMLTranformData() {
     super();
@@ -22,14 +22,19 @@
 
 package vn.com.watanabe.etl.step.plugin.xml_transform;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
-import org.pentaho.di.core.Const;
+import javax.management.JMException;
+
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.exception.KettleValueException;
-import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.util.Utils;
 import org.pentaho.di.i18n.BaseMessages;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
@@ -110,10 +115,124 @@ public class XMLTransform extends BaseStep implements StepInterface {
       return false;
     }
 
-    // Add any step-specific initialization that may be needed here
+    if (meta.isJmxMetrics()) {
+      List<XMLTransformField> fields = meta.getInputFields();
+      String[] fieldNames = new String[fields.size()];
+      for (int i = 0; i < fieldNames.length; i++) {
+        fieldNames[i] = fields.get(i).getName();
+      }
+      data.metrics = new XMLTransformMetrics(fieldNames);
+      try {
+        data.metrics.register(getTransMeta().getName(), getStepname(), getCopy(), getLogChannelId());
+      } catch (JMException e) {
+        // the counters still run, they are just not visible
+        logError(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.ErrorRegisteringMetrics", e.getMessage()), e);
+      }
+    }
+
+    // variables are the same for every row, the ?{field} placeholders are filled per row;
+    // the fields of the meta are shared by the step copies, each plan resolves its own XPaths
+    boolean rowParameterized = false;
+    for (XMLTransformField field : meta.getInputFields()) {
+      rowParameterized |= RowParameterizedXPath.hasPlaceholders(environmentSubstitute(field.getXPath()));
+    }
+
+    if (meta.getResultCacheSize() > 0) {
+      if (meta.isXmlIsAFile()) {
+        logBasic(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.NoResultCacheForFiles"));
+      } else if (rowParameterized) {
+        // the values depend on the row as well as on the document
+        logBasic(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.NoResultCacheForRowXPaths"));
+      } else {
+        data.resultCache = new XMLResultCache(meta.getResultCacheSize() * 1024L * 1024L);
+        if (data.metrics != null) {
+          data.metrics.setResultCache(data.resultCache);
+        }
+      }
+    }
+
+    // one worker per document parsed at the same time, each with its own reader
+    // and compiled plan, a bad XPath stops the step here
+    try {
+      XMLReaderEngine engine = XMLReaderEngine.getById(meta.getReaderEngine());
+      if (!Utils.isEmpty(meta.getLoopXPath()) && !engine.supportsLoop()) {
+        throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.LoopNotSupported",
+            engine.getItem().getDesc()));
+      }
+      if (meta.isXmlIsAFile() && meta.isVtdIndexSidecar()
+          && meta.getReaderEngine() == XMLTransformMetaData.READER_ENGINE_VTD.getId()) {
+        logBasic(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.NoSidecarForHugeFiles",
+            String.valueOf(meta.getHugeDocumentThreshold())));
+      }
+      int workerCount = Math.max(1, meta.getParallelWorkers());
+      int mode = meta.getExecutionMode();
+      if (mode == XMLTransformMetaData.EXECUTION_MODE_SERIAL.getId()
+          || (mode == XMLTransformMetaData.EXECUTION_MODE_THREADS.getId() && workerCount == 1)) {
+        data.worker = createWorker();
+        logNoPrefixParsing(data.worker);
+      } else {
+        List<XMLTransformWorker> workers = new ArrayList<XMLTransformWorker>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+          workers.add(createWorker());
+        }
+        logNoPrefixParsing(workers.get(0));
+        boolean virtualThreads = mode == XMLTransformMetaData.EXECUTION_MODE_VIRTUAL_THREADS.getId();
+        ExecutorService executor = createExecutor(workerCount);
+        // the cap on reading only applies to virtual threads, a thread pool is capped by its threads
+        data.pool = new XMLTransformPool(workers, meta.getMaxDocumentsInFlight(),
+            virtualThreads ? meta.getMaxConcurrentDocuments() : 0, executor);
+        if (virtualThreads && meta.isXmlIsAFile()) {
+          data.pool.setFileBytesLimit(engine.getFileBytesLimit(meta));
+        }
+      }
+    } catch (KettleException e) {
+      logError(e.getMessage(), e);
+      return false;
+    }
+    data.rowSink = new XMLTransformWorker.RowSink() {
+      @Override
+      public void putRow(Object[] row) throws KettleException {
+        if (data.acceptRowSets != null) {
+          putAcceptedRow(row);
+        } else {
+          XMLTransform.this.putRow(data.outputRowMeta, row);
+        }
+      }
+
+      @Override
+      public void rejectRow(Object[] row) throws KettleException {
+        incrementLinesRejected();
+        if (data.rejectRowSet != null) {
+          putRowTo(data.outputRowMeta, row, data.rejectRowSet);
+        }
+      }
+    };
+    if (meta.getMaxBatchSize() > 1) {
+      data.batch = new XMLTransformBatch(meta.getMaxBatchSize());
+    }
     return true;
   }
 
+  /**
+   * Put a row matched by the row filter to the hops other than the reject
+   * step, copied to each of them or distributed as the step is set to.
+   */
+  private void putAcceptedRow(Object[] row) throws KettleStepException {
+    List<RowSet> rowSets = data.acceptRowSets;
+    if (rowSets.isEmpty()) {
+      return;
+    }
+    if (getStepMeta().isDistributes()) {
+      RowSet rowSet = rowSets.get(data.nextAcceptRowSet);
+      data.nextAcceptRowSet = (data.nextAcceptRowSet + 1) % rowSets.size();
+      putRowTo(data.outputRowMeta, row, rowSet);
+    } else {
+      for (RowSet rowSet : rowSets) {
+        putRowTo(data.outputRowMeta, row, rowSet);
+      }
+    }
+  }
+
   /**
    * Once the transformation starts executing, the processRow() method is called
    * repeatedly by PDI for as long as it returns true. To indicate that a step has
@@ -152,6 +271,10 @@ public class XMLTransform extends BaseStep implements StepInterface {
     // if no more rows are expected, indicate step is finished and processRow()
     // should not be called again
     if (r == null) {
+      if (data.pool != null) {
+        // put the rows of the documents still being parsed
+        data.pool.flush(data.rowSink);
+      }
       setOutputDone();
       return false;
     }
@@ -166,100 +289,176 @@ public class XMLTransform extends BaseStep implements StepInterface {
       data.outputRowMeta = (RowMetaInterface) inputRowMeta.clone();
       this.numInputFields = inputRowMeta.size();
       indexOfXmlField = inputRowMeta.indexOfValue( meta.getXMLField() );
+      if ( indexOfXmlField < 0 ) {
+        throw new KettleException( BaseMessages.getString( PKG, DEFAULT_PREFIX + ".Exception.CouldnotFindField",
+            meta.getXMLField() ) );
+      }
+      // binary fields and lazy converted strings are parsed from their bytes
+      ValueMetaInterface xmlValueMeta = inputRowMeta.getValueMeta( indexOfXmlField );
+      data.xmlValueMeta = xmlValueMeta;
+      // a file path is always read as a String
+      data.rawXMLInput = !meta.isXmlIsAFile() && (xmlValueMeta.isBinary() || xmlValueMeta.isStorageBinaryString());
+      // encoded documents are decoded from the bytes of the value whatever their character encoding
+      data.rawXMLDefaultCompatible = xmlValueMeta.isBinary()
+          || meta.getInputEncoding() != XMLTransformMetaData.INPUT_ENCODING_NONE.getId()
+          || XMLEncoding.isDefaultCompatible( getStorageEncoding( xmlValueMeta ) );
       // use meta.getFields() to change it, so it reflects the output row structure
       // add new fields
       meta.getFields(data.outputRowMeta, getStepname(), null, null, this, repository, metaStore);
 
-      // Create convert meta-data objects that will contain Date & Number formatters
-      // For String to <type> conversions, we allocate a conversion meta data row as
-      // well...
-      //
-      data.convertRowMeta = data.outputRowMeta.cloneToType(ValueMetaInterface.TYPE_STRING);
+      // the reject target is bound to its step by searchInfoAndTargetSteps()
+      StepMeta rejectStep = meta.getRejectStream().getStepMeta();
+      if (rejectStep != null) {
+        data.rejectRowSet = findOutputRowSet(getStepname(), getCopy(), rejectStep.getName(), 0);
+        if (data.rejectRowSet == null) {
+          throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.RejectStepNotFound",
+              rejectStep.getName()));
+        }
+        // the rejected rows only go to the reject step, and only they do
+        data.acceptRowSets = new ArrayList<RowSet>(getOutputRowSets());
+        data.acceptRowSets.remove(data.rejectRowSet);
+      } else if (!Utils.isEmpty(meta.getRejectStepName())) {
+        throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.RejectStepNotFound",
+            meta.getRejectStepName()));
+      }
+
+      if (data.pool != null) {
+        data.pool.setRowMeta(data.outputRowMeta, numInputFields);
+      } else {
+        data.worker.setRowMeta(data.outputRowMeta, numInputFields);
+      }
     }
-    String xml = getInputRowMeta().getString( r, indexOfXmlField );
-    
-    // Grab a row
-    final Object[] outputRow = RowDataUtil.resizeArray(r, data.outputRowMeta.size());
-    if(xml!=null){
-      XMLReader reader = getReader();
-      reader.bind(xml);
-      processParseFields(outputRow, reader);
+    if (data.batch != null) {
+      processBatch(r);
+    } else {
+      processXML(r);
     }
-    
-    // Object[] r = getXMLRow();
-    // put the row to the output row stream
-    putRow(data.outputRowMeta, outputRow);
     return true;
   }
-  public XMLReader getReader(){
-    return new VTDXMLReader();
+
+  private void processXML(Object[] r) throws KettleException {
+    byte[] xmlBytes = data.rawXMLInput ? getXMLBytes( r ) : null;
+    String xml = xmlBytes == null ? getInputRowMeta().getString( r, indexOfXmlField ) : null;
+    if (data.pool != null) {
+      data.pool.submit(r, xmlBytes, xml, data.rowSink);
+    } else {
+      data.worker.process(r, xmlBytes, xml, data.rowSink);
+    }
+  }
+
+  /**
+   * Take the rows already waiting in the input row sets along with the given
+   * one, up to the batch size, extract their documents in one loop and then
+   * put the output and rejected rows in the order of the input rows. Only
+   * rows that are already there are taken, so a batch never waits for its
+   * input. The rows still go through getRow() and putRow() one by one, that
+   * is where BaseStep counts them and checks for a stop.
+   *
+   * In pool mode the batch only groups the submissions, the pool already puts
+   * the rows in input order as their documents are done.
+   */
+  private void processBatch(Object[] r) throws KettleException {
+    XMLTransformBatch batch = data.batch;
+    int waiting = 0;
+    for (RowSet rowSet : getInputRowSets()) {
+      waiting += rowSet.size();
+    }
+    int size = Math.min(batch.getSize(), 1 + waiting);
+    Object[] row = r;
+    while (row != null) {
+      byte[] xmlBytes = data.rawXMLInput ? getXMLBytes( row ) : null;
+      String xml = xmlBytes == null ? getInputRowMeta().getString( row, indexOfXmlField ) : null;
+      batch.add(row, xmlBytes, xml);
+      row = batch.getCount() < size ? getRow() : null;
+    }
+
+    if (data.pool != null) {
+      for (int i = 0; i < batch.getCount(); i++) {
+        data.pool.submit(batch.getRows()[i], batch.getXMLBytes()[i], batch.getXMLs()[i], data.rowSink);
+      }
+      batch.clear();
+    } else {
+      try {
+        data.worker.processBatch(batch.getRows(), batch.getXMLBytes(), batch.getXMLs(), batch.getCount(), batch);
+        batch.flush(data.rowSink);
+      } finally {
+        batch.clear();
+      }
+    }
+
+    int fullest = 0;
+    for (RowSet rowSet : getOutputRowSets()) {
+      fullest = Math.max(fullest, rowSet.size());
+    }
+    batch.adapt(waiting, fullest, getTransMeta().getSizeRowset());
   }
 
-  public void processParseFields(Object[] outputRow,XMLReader reader) throws KettleException {
-    int currentIndex = numInputFields;
-    List<XMLTransformField> inputFields = meta.getInputFields();
-    int numFields = inputFields.size();
-    for(int i =0; i< numFields; i++){
-      XMLTransformField xmlDataField = inputFields.get(i);
-      processPutRow(outputRow, reader, currentIndex, xmlDataField);
-      currentIndex++;
+  /**
+   * Get the XML of a row as the bytes held by the row, without String conversion.
+   * 
+   * @return the bytes or null when the value must go through its String form:
+   *         null value, or lazy converted bytes with an encoding the parser can
+   *         not find in the document itself
+   */
+  public byte[] getXMLBytes(Object[] r) throws KettleValueException {
+    Object value = r[indexOfXmlField];
+    if (value == null) {
+      return null;
     }
+    if (data.xmlValueMeta.isBinary()) {
+      return data.xmlValueMeta.getBinary(value);
+    }
+    byte[] raw = (byte[]) value;
+    if (data.rawXMLDefaultCompatible || XMLEncoding.isSelfDescribing(raw, 0, raw.length)) {
+      return raw;
+    }
+    return null;
   }
 
-  public void processPutRow(Object[] outputRow,XMLReader reader, int currentIndex, 
-  XMLTransformField xmlDataField)
-      throws KettleException {
-      String nodevalue = getFieldValue(reader, xmlDataField);
-      nodevalue=trim(nodevalue, xmlDataField);
-      pushFieldToRow(outputRow, currentIndex, nodevalue);
+  private static String getStorageEncoding(ValueMetaInterface valueMeta) {
+    ValueMetaInterface storageMeta = valueMeta.getStorageMetadata();
+    if (storageMeta != null && !Utils.isEmpty(storageMeta.getStringEncoding())) {
+      return storageMeta.getStringEncoding();
+    }
+    return valueMeta.getStringEncoding();
   }
-  public String getFieldValue(XMLReader reader, XMLTransformField xmlDataField) throws KettleException {
-    String xpath = xmlDataField.getXPath();
-    String nodevalue=null;
-    int elementType = xmlDataField.getElementType();
-    int type = xmlDataField.getResultType();
-    if(elementType == XMLTransformField.ELEMENT_TYPE_ATTRIBUT.getId()){
-      nodevalue = reader.getAttribute(xpath);
-    }else if(elementType== XMLTransformField.ELEMENT_TYPE_NODE.getId()){
-      if(type == XMLTransformField.RESULT_TYPE_TYPE_SINGLE_NODE.getId()){
-        nodevalue = reader.getFirstNodeXML(xpath);
-      }else{
-        nodevalue = reader.getFirstNodeValue(xpath);
-      }
-    }else if(elementType == XMLTransformField.ELEMENT_TYPE_NODE_MULTI.getId()){
-      if(type == XMLTransformField.RESULT_TYPE_TYPE_SINGLE_NODE.getId()){
-        nodevalue = reader.getNodesXML(xpath);
-      }else if(type== XMLTransformField.RESULT_TYPE_FIST_VALUE.getId()){
-        nodevalue = reader.getFirstNodeValue(xpath);
-      }else if(type== XMLTransformField.RESULT_TYPE_TYPE_SUM.getId()){
-        nodevalue = String.valueOf(reader.getSum(xpath));
-      }else if(type == XMLTransformField.RESULT_TYPE_VALUE_OF.getId()){
-        nodevalue = reader.getNodeValues(xpath, xmlDataField.getDemlimiter());
-      }else if(type == XMLTransformField.RESULT_TYPE_VALUE_OF_FIXED_SIZE.getId()){
-        nodevalue = reader.getNodeValuesFixedSize(xpath, xmlDataField.getDemlimiter(), xmlDataField.getLength());
+
+  /**
+   * Create the executor of the pool, virtual threads fall back to a thread pool
+   * on a JVM without them.
+   */
+  protected ExecutorService createExecutor(int workerCount) {
+    if (meta.getExecutionMode() == XMLTransformMetaData.EXECUTION_MODE_VIRTUAL_THREADS.getId()) {
+      ExecutorService executor = XMLTransformPool.newVirtualThreadExecutor();
+      if (executor != null) {
+        return executor;
       }
+      logBasic(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.NoVirtualThreads"));
+    }
+    return XMLTransformPool.newThreadPool(workerCount, getStepname() + "." + getCopy());
+  }
+
+  protected XMLTransformWorker createWorker() throws KettleException {
+    XMLTransformWorker worker = new XMLTransformWorker(meta, createReader(), this);
+    if (data.metrics != null) {
+      worker.setMetrics(data.metrics);
     }
-    return nodevalue;
+    worker.setResultCache(data.resultCache);
+    return worker;
   }
 
-  public String trim(String nodevalue, XMLTransformField xmlDataField) {
-    // Do trimming
-    int trimType = xmlDataField.getTrimType();
-    if (trimType == XMLTransformField.TYPE_TRIM_LEFT.getId()) {
-      nodevalue = Const.ltrim(nodevalue);
-    } else if (trimType == XMLTransformField.TYPE_TRIM_LEFT.getId()) {
-      nodevalue = Const.rtrim(nodevalue);
-    } else if (trimType == XMLTransformField.TYPE_TRIM_LEFT.getId()) {
-      nodevalue = Const.trim(nodevalue);
+  /**
+   * Tell when prefix parsing is asked for but the plan does not allow it,
+   * every worker has the same plan.
+   */
+  private void logNoPrefixParsing(XMLTransformWorker worker) {
+    if (meta.isPrefixParsing() && !worker.isPrefixParsing()) {
+      logBasic(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.NoPrefixParsing"));
     }
-    return nodevalue;
   }
 
-  public void pushFieldToRow(Object[] outputRowData, int currentIndex, String nodeValue)
-      throws KettleValueException {
-    ValueMetaInterface targetValueMeta = data.outputRowMeta.getValueMeta(currentIndex);
-    ValueMetaInterface sourceValueMeta = data.convertRowMeta.getValueMeta(currentIndex);
-    outputRowData[currentIndex] = targetValueMeta.convertData(sourceValueMeta, nodeValue);
+  protected XMLReader createReader(){
+    return XMLReaderEngine.getById(meta.getReaderEngine()).createReader(meta, data.metrics);
   }
 
   /**
@@ -284,7 +483,25 @@ public class XMLTransform extends BaseStep implements StepInterface {
     meta = (XMLTransformMetaData) smi;
     data = (XMLTranformData) sdi;
 
-    // Add any step-specific initialization that may be needed here
+    if (data.pool != null) {
+      data.pool.shutdown();
+      data.pool = null;
+    }
+    if (data.worker != null) {
+      data.worker.release();
+      data.worker = null;
+    }
+    if (data.metrics != null) {
+      data.metrics.unregister();
+      data.metrics = null;
+    }
+    if (data.resultCache != null) {
+      logBasic(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.ResultCacheStatistics",
+          String.valueOf(data.resultCache.getHits()), String.valueOf(data.resultCache.getMisses()),
+          String.valueOf(data.resultCache.getEvictions())));
+      data.resultCache.clear();
+      data.resultCache = null;
+    }
 
     // Call superclass dispose()
     super.dispose( meta, data );
@@ -0,0 +1,140 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * The rows of a micro-batch: the input rows taken together from the row sets
+ * with their documents, then the output and rejected rows extracted from
+ * them, kept in input order until the whole batch is extracted.
+ *
+ * The size of the next batch follows the row sets: it doubles while the input
+ * holds a full batch, and halves when an output row set is more than three
+ * quarters full, so a slow next step gets its rows sooner.
+ */
+final class XMLTransformBatch implements XMLTransformWorker.RowSink {
+  /** Rows of the first batch, the size then follows the row sets */
+  static final int INITIAL_SIZE = 16;
+
+  private final int maxSize;
+  private int size;
+
+  private Object[][] rows;
+  private byte[][] xmlBytes;
+  private String[] xmls;
+  private int count;
+
+  private final List<Object[]> output = new ArrayList<Object[]>();
+  /** The rows of {@link #output} rejected by the row filter */
+  private final BitSet rejected = new BitSet();
+
+  /**
+   * @param maxSize the most rows of a batch, at least 2
+   */
+  XMLTransformBatch(int maxSize) {
+    this.maxSize = maxSize;
+    this.size = Math.min(maxSize, INITIAL_SIZE);
+    rows = new Object[size][];
+    xmlBytes = new byte[size][];
+    xmls = new String[size];
+  }
+
+  /**
+   * @return the number of rows the next batch takes at most
+   */
+  int getSize() {
+    return size;
+  }
+
+  /**
+   * Add an input row with its document, the bytes of the XML field or its
+   * String.
+   */
+  void add(Object[] row, byte[] bytes, String xml) {
+    if (count == rows.length) {
+      int grown = Math.min(maxSize, rows.length * 2);
+      rows = Arrays.copyOf(rows, grown);
+      xmlBytes = Arrays.copyOf(xmlBytes, grown);
+      xmls = Arrays.copyOf(xmls, grown);
+    }
+    rows[count] = row;
+    xmlBytes[count] = bytes;
+    xmls[count] = xml;
+    count++;
+  }
+
+  int getCount() {
+    return count;
+  }
+
+  Object[][] getRows() {
+    return rows;
+  }
+
+  byte[][] getXMLBytes() {
+    return xmlBytes;
+  }
+
+  String[] getXMLs() {
+    return xmls;
+  }
+
+  @Override
+  public void putRow(Object[] row) {
+    output.add(row);
+  }
+
+  @Override
+  public void rejectRow(Object[] row) {
+    rejected.set(output.size());
+    output.add(row);
+  }
+
+  /**
+   * Send the output and rejected rows of the batch in the order of their
+   * input rows, then forget the batch.
+   */
+  void flush(XMLTransformWorker.RowSink target) throws KettleException {
+    for (int i = 0; i < output.size(); i++) {
+      if (rejected.get(i)) {
+        target.rejectRow(output.get(i));
+      } else {
+        target.putRow(output.get(i));
+      }
+    }
+    clear();
+  }
+
+  /**
+   * Forget the rows of the batch, the arrays are kept for the next one.
+   */
+  void clear() {
+    for (int i = 0; i < count; i++) {
+      rows[i] = null;
+      xmlBytes[i] = null;
+      xmls[i] = null;
+    }
+    count = 0;
+    output.clear();
+    rejected.clear();
+  }
+
+  /**
+   * Size the next batch from the row sets seen for this one.
+   *
+   * @param waitingInput  the rows waiting in the input row sets when the batch was taken
+   * @param fullestOutput the rows waiting in the fullest output row set once it was put
+   * @param rowSetSize    the capacity of a row set
+   */
+  void adapt(int waitingInput, int fullestOutput, int rowSetSize) {
+    if (fullestOutput > rowSetSize * 3 / 4) {
+      size = Math.max(1, size / 2);
+    } else if (waitingInput >= size) {
+      size = Math.min(maxSize, size * 2);
+    }
+  }
+}
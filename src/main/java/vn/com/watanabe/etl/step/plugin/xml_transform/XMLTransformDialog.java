@@ -1,6 +1,8 @@
 package vn.com.watanabe.etl.step.plugin.xml_transform;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.CCombo;
@@ -18,6 +20,7 @@ import org.eclipse.swt.layout.FormData;
 import org.eclipse.swt.layout.FormLayout;
 import org.eclipse.swt.widgets.Button;
 import org.eclipse.swt.widgets.Composite;
+import org.eclipse.swt.widgets.Control;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.swt.widgets.Event;
 import org.eclipse.swt.widgets.Label;
@@ -72,6 +75,34 @@ public class XMLTransformDialog extends BaseStepDialog implements StepDialogInte
   private CCombo wXMLField;
   private FormData fdXMLField;
 
+  // Settings tab
+  private CTabItem wSettingsTab;
+  private Composite wSettingsComp;
+  private Text wLoopXPath;
+  private CCombo wReaderEngine;
+  private Text wRowFilterXPath;
+  private CCombo wRejectStep;
+  private Text wRetainedBufferLimit;
+  private Text wHugeDocumentThreshold;
+  private Button wVtdIndexSidecar;
+  private Button wPrefixParsing;
+  private Button wNamespaceAware;
+
+  private CTabItem wNamespacesTab;
+  private Composite wNamespacesComp;
+  private TableView wNamespaces;
+  private Button wXmlIsAFile;
+  private CCombo wInputEncoding;
+  private Text wMaxDecodedSize;
+  private CCombo wExecutionMode;
+  private Text wParallelWorkers;
+  private Text wMaxDocumentsInFlight;
+  private Text wMaxConcurrentDocuments;
+  private Text wMaxBatchSize;
+  private Text wResultCacheSize;
+  private Button wTemplateExtraction;
+  private Button wJmxMetrics;
+
   //
   private int middle;
   private int margin;
@@ -106,6 +137,12 @@ public class XMLTransformDialog extends BaseStepDialog implements StepDialogInte
     // Fields tab...
     //
     genFieldsTabs();
+    // Settings tab...
+    //
+    genSettingsTab();
+    // Namespaces tab...
+    //
+    genNamespacesTab();
 
     // addAdditionalFieldsTab();
 
@@ -271,6 +308,200 @@ public class XMLTransformDialog extends BaseStepDialog implements StepDialogInte
     wFieldsTab.setControl(wFieldsComp);
   }
 
+  private void genSettingsTab() {
+    wSettingsTab = new CTabItem(wTabFolder, SWT.NONE);
+    wSettingsTab.setText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Settings.Tab"));
+
+    wSettingsComp = new Composite(wTabFolder, SWT.NONE);
+    props.setLook(wSettingsComp);
+
+    final FormLayout settingsLayout = new FormLayout();
+    settingsLayout.marginWidth = 3;
+    settingsLayout.marginHeight = 3;
+    wSettingsComp.setLayout(settingsLayout);
+
+    wXmlIsAFile = addCheckLine(wSettingsComp, ".XMLIsAFile.Label", null);
+    wXmlIsAFile.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".XMLIsAFile.Tooltip"));
+    wInputEncoding = addComboLine(wSettingsComp, ".InputEncoding.Label", wXmlIsAFile,
+        XMLTransformMetaData.InputEncodingCode.getItemDescs());
+    wInputEncoding.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".InputEncoding.Tooltip"));
+    wMaxDecodedSize = addTextLine(wSettingsComp, ".MaxDecodedSize.Label", wInputEncoding);
+    wMaxDecodedSize.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".MaxDecodedSize.Tooltip"));
+    wLoopXPath = addTextLine(wSettingsComp, ".LoopXPath.Label", wMaxDecodedSize);
+    wLoopXPath.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".LoopXPath.Tooltip"));
+    wRowFilterXPath = addTextLine(wSettingsComp, ".RowFilterXPath.Label", wLoopXPath);
+    wRowFilterXPath.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".RowFilterXPath.Tooltip"));
+    wRejectStep = addComboLine(wSettingsComp, ".RejectStep.Label", wRowFilterXPath, getRejectStepNames());
+    wRejectStep.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".RejectStep.Tooltip"));
+    wReaderEngine = addComboLine(wSettingsComp, ".ReaderEngine.Label", wRejectStep,
+        XMLReaderEngine.getCodes().getItemDescs());
+    wReaderEngine.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".ReaderEngine.Tooltip"));
+    wRetainedBufferLimit = addTextLine(wSettingsComp, ".RetainedBufferLimit.Label", wReaderEngine);
+    wHugeDocumentThreshold = addTextLine(wSettingsComp, ".HugeDocumentThreshold.Label", wRetainedBufferLimit);
+    wHugeDocumentThreshold.setToolTipText(
+        BaseMessages.getString(PKG, DEFAULT_PREFIX + ".HugeDocumentThreshold.Tooltip"));
+    wVtdIndexSidecar = addCheckLine(wSettingsComp, ".VtdIndexSidecar.Label", wHugeDocumentThreshold);
+    wVtdIndexSidecar.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".VtdIndexSidecar.Tooltip"));
+    wPrefixParsing = addCheckLine(wSettingsComp, ".PrefixParsing.Label", wVtdIndexSidecar);
+    wPrefixParsing.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".PrefixParsing.Tooltip"));
+    wNamespaceAware = addCheckLine(wSettingsComp, ".NamespaceAware.Label", wPrefixParsing);
+    wNamespaceAware.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".NamespaceAware.Tooltip"));
+    wExecutionMode = addComboLine(wSettingsComp, ".ExecutionMode.Label", wNamespaceAware,
+        XMLTransformMetaData.ExecutionModeCode.getItemDescs());
+    wExecutionMode.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".ExecutionMode.Tooltip"));
+    wParallelWorkers = addTextLine(wSettingsComp, ".ParallelWorkers.Label", wExecutionMode);
+    wParallelWorkers.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".ParallelWorkers.Tooltip"));
+    wMaxDocumentsInFlight = addTextLine(wSettingsComp, ".MaxDocumentsInFlight.Label", wParallelWorkers);
+    wMaxConcurrentDocuments = addTextLine(wSettingsComp, ".MaxConcurrentDocuments.Label", wMaxDocumentsInFlight);
+    wMaxConcurrentDocuments.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".MaxConcurrentDocuments.Tooltip"));
+    wMaxBatchSize = addTextLine(wSettingsComp, ".MaxBatchSize.Label", wMaxConcurrentDocuments);
+    wMaxBatchSize.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".MaxBatchSize.Tooltip"));
+    wResultCacheSize = addTextLine(wSettingsComp, ".ResultCacheSize.Label", wMaxBatchSize);
+    wResultCacheSize.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".ResultCacheSize.Tooltip"));
+    wTemplateExtraction = addCheckLine(wSettingsComp, ".TemplateExtraction.Label", wResultCacheSize);
+    wTemplateExtraction.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".TemplateExtraction.Tooltip"));
+    wJmxMetrics = addCheckLine(wSettingsComp, ".JmxMetrics.Label", wTemplateExtraction);
+    wJmxMetrics.setToolTipText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".JmxMetrics.Tooltip"));
+
+    final FormData fdSettingsComp = new FormData();
+    fdSettingsComp.left = new FormAttachment(0, 0);
+    fdSettingsComp.top = new FormAttachment(0, 0);
+    fdSettingsComp.right = new FormAttachment(100, 0);
+    fdSettingsComp.bottom = new FormAttachment(100, 0);
+    wSettingsComp.setLayoutData(fdSettingsComp);
+
+    wSettingsComp.layout();
+    wSettingsTab.setControl(wSettingsComp);
+  }
+
+  private void genNamespacesTab() {
+    wNamespacesTab = new CTabItem(wTabFolder, SWT.NONE);
+    wNamespacesTab.setText(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Namespaces.Tab"));
+
+    final FormLayout namespacesLayout = new FormLayout();
+    namespacesLayout.marginWidth = Const.FORM_MARGIN;
+    namespacesLayout.marginHeight = Const.FORM_MARGIN;
+
+    wNamespacesComp = new Composite(wTabFolder, SWT.NONE);
+    wNamespacesComp.setLayout(namespacesLayout);
+    props.setLook(wNamespacesComp);
+
+    final ColumnInfo[] colinf = new ColumnInfo[] {
+        new ColumnInfo(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".NamespacesTable.Prefix.Column"),
+            ColumnInfo.COLUMN_TYPE_TEXT, false),
+        new ColumnInfo(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".NamespacesTable.URI.Column"),
+            ColumnInfo.COLUMN_TYPE_TEXT, false), };
+    colinf[0].setToolTip(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".NamespacesTable.Prefix.Column.Tooltip"));
+
+    wNamespaces = new TableView(transMeta, wNamespacesComp, SWT.FULL_SELECTION | SWT.MULTI, colinf,
+        input.getNamespaces().size(), lsMod, props);
+
+    final FormData fdNamespaces = new FormData();
+    fdNamespaces.left = new FormAttachment(0, 0);
+    fdNamespaces.top = new FormAttachment(0, 0);
+    fdNamespaces.right = new FormAttachment(100, 0);
+    fdNamespaces.bottom = new FormAttachment(100, 0);
+    wNamespaces.setLayoutData(fdNamespaces);
+
+    final FormData fdNamespacesComp = new FormData();
+    fdNamespacesComp.left = new FormAttachment(0, 0);
+    fdNamespacesComp.top = new FormAttachment(0, 0);
+    fdNamespacesComp.right = new FormAttachment(100, 0);
+    fdNamespacesComp.bottom = new FormAttachment(100, 0);
+    wNamespacesComp.setLayoutData(fdNamespacesComp);
+
+    wNamespacesComp.layout();
+    wNamespacesTab.setControl(wNamespacesComp);
+  }
+
+  /**
+   * @return the steps this step sends rows to, after an empty name to drop the rejected rows
+   */
+  private String[] getRejectStepNames() {
+    String[] nextSteps = transMeta.getNextStepNames(transMeta.findStep(stepname));
+    String[] names = new String[nextSteps.length + 1];
+    names[0] = "";
+    System.arraycopy(nextSteps, 0, names, 1, nextSteps.length);
+    return names;
+  }
+
+  /**
+   * Add a label and a text box below the given control (or on top of the parent).
+   */
+  private Text addTextLine(Composite parent, String labelKey, Control above) {
+    final Label label = new Label(parent, SWT.RIGHT);
+    label.setText(BaseMessages.getString(PKG, DEFAULT_PREFIX + labelKey));
+    props.setLook(label);
+    final FormData fdLabel = new FormData();
+    fdLabel.left = new FormAttachment(0, 0);
+    fdLabel.top = above == null ? new FormAttachment(0, margin) : new FormAttachment(above, margin);
+    fdLabel.right = new FormAttachment(middle, -margin);
+    label.setLayoutData(fdLabel);
+
+    final Text text = new Text(parent, SWT.SINGLE | SWT.LEFT | SWT.BORDER);
+    props.setLook(text);
+    text.addModifyListener(lsMod);
+    final FormData fdText = new FormData();
+    fdText.left = new FormAttachment(middle, 0);
+    fdText.top = above == null ? new FormAttachment(0, margin) : new FormAttachment(above, margin);
+    fdText.right = new FormAttachment(100, 0);
+    text.setLayoutData(fdText);
+    return text;
+  }
+
+  /**
+   * Add a label and a read only combo below the given control.
+   */
+  private CCombo addComboLine(Composite parent, String labelKey, Control above, String[] items) {
+    final Label label = new Label(parent, SWT.RIGHT);
+    label.setText(BaseMessages.getString(PKG, DEFAULT_PREFIX + labelKey));
+    props.setLook(label);
+    final FormData fdLabel = new FormData();
+    fdLabel.left = new FormAttachment(0, 0);
+    fdLabel.top = above == null ? new FormAttachment(0, margin) : new FormAttachment(above, margin);
+    fdLabel.right = new FormAttachment(middle, -margin);
+    label.setLayoutData(fdLabel);
+
+    final CCombo combo = new CCombo(parent, SWT.BORDER | SWT.READ_ONLY);
+    combo.setItems(items);
+    props.setLook(combo);
+    combo.addModifyListener(lsMod);
+    final FormData fdCombo = new FormData();
+    fdCombo.left = new FormAttachment(middle, 0);
+    fdCombo.top = above == null ? new FormAttachment(0, margin) : new FormAttachment(above, margin);
+    fdCombo.right = new FormAttachment(100, 0);
+    combo.setLayoutData(fdCombo);
+    return combo;
+  }
+
+  /**
+   * Add a label and a check box below the given control.
+   */
+  private Button addCheckLine(Composite parent, String labelKey, Control above) {
+    final Label label = new Label(parent, SWT.RIGHT);
+    label.setText(BaseMessages.getString(PKG, DEFAULT_PREFIX + labelKey));
+    props.setLook(label);
+    final FormData fdLabel = new FormData();
+    fdLabel.left = new FormAttachment(0, 0);
+    fdLabel.top = above == null ? new FormAttachment(0, margin) : new FormAttachment(above, margin);
+    fdLabel.right = new FormAttachment(middle, -margin);
+    label.setLayoutData(fdLabel);
+
+    final Button check = new Button(parent, SWT.CHECK);
+    props.setLook(check);
+    check.addSelectionListener(new SelectionAdapter() {
+      @Override
+      public void widgetSelected(SelectionEvent e) {
+        input.setChanged();
+      }
+    });
+    final FormData fdCheck = new FormData();
+    fdCheck.left = new FormAttachment(middle, 0);
+    fdCheck.top = above == null ? new FormAttachment(0, margin) : new FormAttachment(above, margin);
+    check.setLayoutData(fdCheck);
+    return check;
+  }
+
   private void setupLayouTabs() {
     fdTabFolder = new FormData();
     fdTabFolder.left = new FormAttachment(0, 0);
@@ -342,6 +573,35 @@ public class XMLTransformDialog extends BaseStepDialog implements StepDialogInte
   private void saveData(XMLTransformMetaData in) throws KettleException {
     stepname = wStepname.getText(); // return value
     in.setXMLField(wXMLField.getText());
+    in.setXmlIsAFile(wXmlIsAFile.getSelection());
+    in.setInputEncoding(XMLTransformMetaData.InputEncodingCode.getByDesc(wInputEncoding.getText()).getId());
+    in.setMaxDecodedSize(Const.toInt(wMaxDecodedSize.getText(), XMLTransformMetaData.DEFAULT_MAX_DECODED_SIZE));
+    in.setLoopXPath(wLoopXPath.getText());
+    in.setRowFilterXPath(wRowFilterXPath.getText());
+    in.setRejectStepName(wRejectStep.getText());
+    in.getRejectStream().setStepMeta(transMeta.findStep(wRejectStep.getText()));
+    in.setReaderEngine(XMLReaderEngine.getCodes().getByDesc(wReaderEngine.getText()).getId());
+    in.setRetainedBufferLimit(Const.toInt(wRetainedBufferLimit.getText(),
+        XMLTransformMetaData.DEFAULT_RETAINED_BUFFER_LIMIT));
+    in.setHugeDocumentThreshold(Const.toInt(wHugeDocumentThreshold.getText(),
+        XMLTransformMetaData.DEFAULT_HUGE_DOCUMENT_THRESHOLD));
+    in.setVtdIndexSidecar(wVtdIndexSidecar.getSelection());
+    in.setPrefixParsing(wPrefixParsing.getSelection());
+    in.setNamespaceAware(wNamespaceAware.getSelection());
+    Map<String, String> namespaces = new LinkedHashMap<String, String>();
+    for (int i = 0; i < wNamespaces.nrNonEmpty(); i++) {
+      TableItem item = wNamespaces.getNonEmpty(i);
+      namespaces.put(item.getText(1), item.getText(2));
+    }
+    in.setNamespaces(namespaces);
+    in.setExecutionMode(XMLTransformMetaData.ExecutionModeCode.getByDesc(wExecutionMode.getText()).getId());
+    in.setParallelWorkers(Const.toInt(wParallelWorkers.getText(), 1));
+    in.setMaxDocumentsInFlight(Const.toInt(wMaxDocumentsInFlight.getText(), 0));
+    in.setMaxConcurrentDocuments(Const.toInt(wMaxConcurrentDocuments.getText(), 0));
+    in.setMaxBatchSize(Const.toInt(wMaxBatchSize.getText(), 1));
+    in.setResultCacheSize(Const.toInt(wResultCacheSize.getText(), 0));
+    in.setTemplateExtraction(wTemplateExtraction.getSelection());
+    in.setJmxMetrics(wJmxMetrics.getSelection());
 
     in.cleanInputField();
     int nrFields = wFields.nrNonEmpty();
@@ -492,6 +752,40 @@ public class XMLTransformDialog extends BaseStepDialog implements StepDialogInte
     if (in.getXMLField() != null) {
       wXMLField.setText(in.getXMLField());
     }
+    wXmlIsAFile.setSelection(in.isXmlIsAFile());
+    wInputEncoding.setText(XMLTransformMetaData.InputEncodingCode.getById(in.getInputEncoding()).getDesc());
+    wMaxDecodedSize.setText(String.valueOf(in.getMaxDecodedSize()));
+    if (in.getLoopXPath() != null) {
+      wLoopXPath.setText(in.getLoopXPath());
+    }
+    if (in.getRowFilterXPath() != null) {
+      wRowFilterXPath.setText(in.getRowFilterXPath());
+    }
+    if (in.getRejectStepName() != null) {
+      wRejectStep.setText(in.getRejectStepName());
+    }
+    wReaderEngine.setText(XMLReaderEngine.getById(in.getReaderEngine()).getItem().getDesc());
+    wRetainedBufferLimit.setText(String.valueOf(in.getRetainedBufferLimit()));
+    wHugeDocumentThreshold.setText(String.valueOf(in.getHugeDocumentThreshold()));
+    wVtdIndexSidecar.setSelection(in.isVtdIndexSidecar());
+    wPrefixParsing.setSelection(in.isPrefixParsing());
+    wNamespaceAware.setSelection(in.isNamespaceAware());
+    int namespace = 0;
+    for (Map.Entry<String, String> entry : in.getNamespaces().entrySet()) {
+      TableItem item = wNamespaces.table.getItem(namespace++);
+      item.setText(1, Const.NVL(entry.getKey(), ""));
+      item.setText(2, Const.NVL(entry.getValue(), ""));
+    }
+    wNamespaces.setRowNums();
+    wNamespaces.optWidth(true);
+    wExecutionMode.setText(XMLTransformMetaData.ExecutionModeCode.getById(in.getExecutionMode()).getDesc());
+    wParallelWorkers.setText(String.valueOf(in.getParallelWorkers()));
+    wMaxDocumentsInFlight.setText(String.valueOf(in.getMaxDocumentsInFlight()));
+    wMaxConcurrentDocuments.setText(String.valueOf(in.getMaxConcurrentDocuments()));
+    wMaxBatchSize.setText(String.valueOf(in.getMaxBatchSize()));
+    wResultCacheSize.setText(String.valueOf(in.getResultCacheSize()));
+    wTemplateExtraction.setSelection(in.isTemplateExtraction());
+    wJmxMetrics.setSelection(in.isJmxMetrics());
 
     logDebug(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.GettingFieldsInfo"));
     List<XMLTransformField> inputFields = in.getInputFields();
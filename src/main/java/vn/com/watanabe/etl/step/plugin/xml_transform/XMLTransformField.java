@@ -108,6 +108,37 @@ public class XMLTransformField implements Cloneable {
     "value_of_fixed_size",
     "Value of (Fixed Size)"
   );
+  // aggregates of the node values, computed exactly in one traversal per XPath
+  public static final Item RESULT_TYPE_COUNT =new BaseSelectList.Item(
+    5,
+    "count",
+    "count",
+    "Count"
+  );
+  public static final Item RESULT_TYPE_MIN =new BaseSelectList.Item(
+    6,
+    "min",
+    "min",
+    "Minimum"
+  );
+  public static final Item RESULT_TYPE_MAX =new BaseSelectList.Item(
+    7,
+    "max",
+    "max",
+    "Maximum"
+  );
+  public static final Item RESULT_TYPE_AVERAGE =new BaseSelectList.Item(
+    8,
+    "average",
+    "average",
+    "Average"
+  );
+  public static final Item RESULT_TYPE_DECIMAL_SUM =new BaseSelectList.Item(
+    9,
+    "decimal_sum",
+    "decimal_sum",
+    "Sum (Exact)"
+  );
   
 
   public static final BaseSelectList ResultTypeCode = new BaseSelectList(new Item[]{
@@ -115,7 +146,12 @@ public class XMLTransformField implements Cloneable {
     RESULT_TYPE_TYPE_SINGLE_NODE,
     RESULT_TYPE_TYPE_SUM,
     RESULT_TYPE_FIST_VALUE,
-    RESULT_TYPE_VALUE_OF_FIXED_SIZE
+    RESULT_TYPE_VALUE_OF_FIXED_SIZE,
+    RESULT_TYPE_COUNT,
+    RESULT_TYPE_MIN,
+    RESULT_TYPE_MAX,
+    RESULT_TYPE_AVERAGE,
+    RESULT_TYPE_DECIMAL_SUM
   });
 
 
@@ -23,7 +23,9 @@
 package vn.com.watanabe.etl.step.plugin.xml_transform;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.checkerframework.checker.units.qual.Prefix;
 import org.eclipse.swt.widgets.Shell;
@@ -56,10 +58,18 @@ import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepDialogInterface;
 import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepIOMeta;
+import org.pentaho.di.trans.step.StepIOMetaInterface;
 import org.pentaho.di.trans.step.StepMetaInterface;
+import org.pentaho.di.trans.step.errorhandling.Stream;
+import org.pentaho.di.trans.step.errorhandling.StreamIcon;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface;
+import org.pentaho.di.trans.step.errorhandling.StreamInterface.StreamType;
 import org.pentaho.metastore.api.IMetaStore;
 import org.w3c.dom.Node;
 
+import vn.com.watanabe.etl.step.plugin.xml_transform.BaseSelectList.Item;
+
 /**
  * This class is part of the demo step plug-in implementation.
  * It demonstrates the basics of developing a plug-in step for PDI. 
@@ -99,11 +109,146 @@ public class XMLTransformMetaData extends BaseStepMeta implements StepMetaInterf
    */
   private static final Class<?> PKG = XMLTransformMetaData.class; // for i18n purposes
   public static String DEFAULT_PREFIX="XMLTransform";
+  /** Default size (KB) up to which a step copy keeps its reader buffers between documents */
+  public static final int DEFAULT_RETAINED_BUFFER_LIMIT = 4096;
+  /** Default size (MB) from which a file is parsed in place by the huge document parser, the retained buffer limit */
+  public static final int DEFAULT_HUGE_DOCUMENT_THRESHOLD = 4;
+  /** Default size (MB) over which a compressed XML field is rejected once inflated */
+  public static final int DEFAULT_MAX_DECODED_SIZE = 256;
+
+  // ============= execution modes ==============
+  public static final Item EXECUTION_MODE_SERIAL = new BaseSelectList.Item(
+    0,
+    "serial",
+    "serial",
+    BaseMessages.getString( PKG, DEFAULT_PREFIX + ".ExecutionMode.Serial" )
+  );
+
+  public static final Item EXECUTION_MODE_THREADS = new BaseSelectList.Item(
+    1,
+    "threads",
+    "threads",
+    BaseMessages.getString( PKG, DEFAULT_PREFIX + ".ExecutionMode.Threads" )
+  );
+
+  public static final Item EXECUTION_MODE_VIRTUAL_THREADS = new BaseSelectList.Item(
+    2,
+    "virtual_threads",
+    "virtual_threads",
+    BaseMessages.getString( PKG, DEFAULT_PREFIX + ".ExecutionMode.VirtualThreads" )
+  );
+
+  public static final BaseSelectList ExecutionModeCode = new BaseSelectList( new BaseSelectList.Item[]{
+    EXECUTION_MODE_SERIAL,
+    EXECUTION_MODE_THREADS,
+    EXECUTION_MODE_VIRTUAL_THREADS
+  } );
+
+  // ============= reader engines, registered in XMLReaderEngine ==============
+  public static final Item READER_ENGINE_VTD = new BaseSelectList.Item(
+    0,
+    "vtd",
+    "vtd",
+    BaseMessages.getString( PKG, DEFAULT_PREFIX + ".ReaderEngine.VTD" )
+  );
+
+  public static final Item READER_ENGINE_STAX = new BaseSelectList.Item(
+    1,
+    "stax",
+    "stax",
+    BaseMessages.getString( PKG, DEFAULT_PREFIX + ".ReaderEngine.StAX" )
+  );
+
+  // ============= encodings of the XML field ==============
+  public static final Item INPUT_ENCODING_NONE = new BaseSelectList.Item(
+    0,
+    "none",
+    "none",
+    BaseMessages.getString( PKG, DEFAULT_PREFIX + ".InputEncoding.None" )
+  );
+
+  public static final Item INPUT_ENCODING_BASE64 = new BaseSelectList.Item(
+    1,
+    "base64",
+    "base64",
+    BaseMessages.getString( PKG, DEFAULT_PREFIX + ".InputEncoding.Base64" )
+  );
+
+  public static final Item INPUT_ENCODING_GZIP = new BaseSelectList.Item(
+    2,
+    "gzip",
+    "gzip",
+    BaseMessages.getString( PKG, DEFAULT_PREFIX + ".InputEncoding.Gzip" )
+  );
+
+  public static final Item INPUT_ENCODING_BASE64_GZIP = new BaseSelectList.Item(
+    3,
+    "base64_gzip",
+    "base64_gzip",
+    BaseMessages.getString( PKG, DEFAULT_PREFIX + ".InputEncoding.Base64Gzip" )
+  );
+
+  public static final Item INPUT_ENCODING_DEFLATE = new BaseSelectList.Item(
+    4,
+    "deflate",
+    "deflate",
+    BaseMessages.getString( PKG, DEFAULT_PREFIX + ".InputEncoding.Deflate" )
+  );
+
+  public static final BaseSelectList InputEncodingCode = new BaseSelectList( new BaseSelectList.Item[]{
+    INPUT_ENCODING_NONE,
+    INPUT_ENCODING_BASE64,
+    INPUT_ENCODING_GZIP,
+    INPUT_ENCODING_BASE64_GZIP,
+    INPUT_ENCODING_DEFLATE
+  } );
 
    /** Is In fields */
    private String xmlField;
      /** The fields to import... */
   private List<XMLTransformField> inputFields=new ArrayList<XMLTransformField>();
+  /** The XML field holds the path of a local file to parse */
+  private boolean xmlIsAFile;
+  /** How the document is encoded in the XML field, decoded before it is parsed */
+  private int inputEncoding;
+  /** Size (MB) over which an inflated document is rejected, a bound against decompression bombs */
+  private int maxDecodedSize;
+  /** Loop XPath, one output row is put for each matched node */
+  private String loopXPath;
+  /** Evaluated before the fields, the documents it does not match are rejected */
+  private String rowFilterXPath;
+  /** Step receiving the rejected rows, empty to drop them */
+  private String rejectStepName;
+  /** The XMLReader implementation parsing the documents */
+  private int readerEngine;
+  /** Documents bigger than this (KB) release the reader buffers once parsed */
+  private int retainedBufferLimit;
+  /** Files from this size (MB) are parsed in place by the huge document parser */
+  private int hugeDocumentThreshold;
+  /** Save the VTD index of each file next to it, and load it on the next runs */
+  private boolean vtdIndexSidecar;
+  /** Parse each document only up to the last node its fields need, the rest is not checked */
+  private boolean prefixParsing;
+  /** Namespace URI of each prefix used in the XPaths, in declaration order */
+  private Map<String, String> namespaces = new LinkedHashMap<String, String>();
+  /** Resolve the namespaces of the documents, false to match the names as written */
+  private boolean namespaceAware;
+  /** Where the documents are parsed: on the step thread, a thread pool or virtual threads */
+  private int executionMode;
+  /** Number of documents of a step copy parsed at the same time when not serial */
+  private int parallelWorkers;
+  /** Documents parsed ahead of the output, 0 for 4 per thread */
+  private int maxDocumentsInFlight;
+  /** Documents read and parsed at the same time on virtual threads, 0 for the documents parsed ahead */
+  private int maxConcurrentDocuments;
+  /** Most rows taken from the input at once, 1 to process the rows one by one */
+  private int maxBatchSize;
+  /** Register an MBean with the live metrics of each step copy */
+  private boolean jmxMetrics;
+  /** Learn the token layout of fixed layout documents and read the values by position */
+  private boolean templateExtraction;
+  /** Memory budget (MB) of the cache of extracted values of each step copy, 0 for no cache */
+  private int resultCacheSize;
 
   /**
    * Constructor should call super() to make sure the base class has a chance to initialize properly.
@@ -157,6 +302,27 @@ public class XMLTransformMetaData extends BaseStepMeta implements StepMetaInterf
   public void setDefault() {
     xmlField = "";
     this.inputFields.clear();
+    xmlIsAFile = false;
+    inputEncoding = INPUT_ENCODING_NONE.getId();
+    maxDecodedSize = DEFAULT_MAX_DECODED_SIZE;
+    loopXPath = "";
+    rowFilterXPath = "";
+    setRejectStepName( "" );
+    readerEngine = READER_ENGINE_VTD.getId();
+    retainedBufferLimit = DEFAULT_RETAINED_BUFFER_LIMIT;
+    hugeDocumentThreshold = DEFAULT_HUGE_DOCUMENT_THRESHOLD;
+    vtdIndexSidecar = false;
+    prefixParsing = false;
+    namespaces.clear();
+    namespaceAware = true;
+    executionMode = EXECUTION_MODE_SERIAL.getId();
+    parallelWorkers = 1;
+    maxDocumentsInFlight = 0;
+    maxConcurrentDocuments = 0;
+    maxBatchSize = 1;
+    jmxMetrics = false;
+    resultCacheSize = 0;
+    templateExtraction = false;
   }
 
 
@@ -172,6 +338,7 @@ public class XMLTransformMetaData extends BaseStepMeta implements StepMetaInterf
    */
   public Object clone() {
     XMLTransformMetaData retval = (XMLTransformMetaData) super.clone();
+    retval.namespaces = new LinkedHashMap<String, String>( namespaces );
     return retval;
   }
 
@@ -192,7 +359,35 @@ public class XMLTransformMetaData extends BaseStepMeta implements StepMetaInterf
       retval.append( field.getXML() );
     }
     retval.append( "    </fields>" ).append( Const.CR );
+    retval.append( "    <namespaces>" ).append( Const.CR );
+    for ( Map.Entry<String, String> namespace : namespaces.entrySet() ) {
+      retval.append( "      <namespace>" ).append( Const.CR );
+      retval.append( "        " ).append( XMLHandler.addTagValue( "prefix", namespace.getKey() ) );
+      retval.append( "        " ).append( XMLHandler.addTagValue( "uri", namespace.getValue() ) );
+      retval.append( "      </namespace>" ).append( Const.CR );
+    }
+    retval.append( "    </namespaces>" ).append( Const.CR );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "NamespaceAware", namespaceAware ) );
     retval.append( "    " ).append( XMLHandler.addTagValue( "XmlField", xmlField ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "XmlIsAFile", xmlIsAFile ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "InputEncoding", getInputEncodingCode() ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "MaxDecodedSize", maxDecodedSize ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "LoopXPath", loopXPath ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "RowFilterXPath", rowFilterXPath ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "RejectStep", getRejectStepName() ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "ReaderEngine", getReaderEngineCode() ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "RetainedBufferLimit", retainedBufferLimit ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "HugeDocumentThreshold", hugeDocumentThreshold ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "VtdIndexSidecar", vtdIndexSidecar ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "PrefixParsing", prefixParsing ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "ExecutionMode", getExecutionModeCode() ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "ParallelWorkers", parallelWorkers ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "MaxDocumentsInFlight", maxDocumentsInFlight ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "MaxConcurrentDocuments", maxConcurrentDocuments ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "MaxBatchSize", maxBatchSize ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "JmxMetrics", jmxMetrics ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "ResultCacheSize", resultCacheSize ) );
+    retval.append( "    " ).append( XMLHandler.addTagValue( "TemplateExtraction", templateExtraction ) );
     return retval.toString();
   }
 
@@ -227,7 +422,38 @@ public class XMLTransformMetaData extends BaseStepMeta implements StepMetaInterf
         inputFields.add(field);
       }
 
+      namespaces.clear();
+      Node namespaceNodes = XMLHandler.getSubNode( stepnode, "namespaces" );
+      int nrNamespaces = XMLHandler.countNodes( namespaceNodes, "namespace" );
+      for ( int i = 0; i < nrNamespaces; i++ ) {
+        Node nsnode = XMLHandler.getSubNodeByNr( namespaceNodes, "namespace", i );
+        namespaces.put( XMLHandler.getTagValue( nsnode, "prefix" ), XMLHandler.getTagValue( nsnode, "uri" ) );
+      }
+      // steps saved before the option parsed with namespaces
+      namespaceAware = !"N".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "NamespaceAware" ) );
+
       xmlField = XMLHandler.getTagValue( stepnode, "XmlField" );
+      xmlIsAFile = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "XmlIsAFile" ) );
+      inputEncoding = InputEncodingCode.getByName( XMLHandler.getTagValue( stepnode, "InputEncoding" ) ).getId();
+      maxDecodedSize = Const.toInt( XMLHandler.getTagValue( stepnode, "MaxDecodedSize" ), DEFAULT_MAX_DECODED_SIZE );
+      loopXPath = XMLHandler.getTagValue( stepnode, "LoopXPath" );
+      rowFilterXPath = XMLHandler.getTagValue( stepnode, "RowFilterXPath" );
+      setRejectStepName( XMLHandler.getTagValue( stepnode, "RejectStep" ) );
+      readerEngine = XMLReaderEngine.getByCode( XMLHandler.getTagValue( stepnode, "ReaderEngine" ) ).getItem().getId();
+      retainedBufferLimit = Const.toInt( XMLHandler.getTagValue( stepnode, "RetainedBufferLimit" ),
+          DEFAULT_RETAINED_BUFFER_LIMIT );
+      hugeDocumentThreshold = Const.toInt( XMLHandler.getTagValue( stepnode, "HugeDocumentThreshold" ),
+          DEFAULT_HUGE_DOCUMENT_THRESHOLD );
+      vtdIndexSidecar = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "VtdIndexSidecar" ) );
+      prefixParsing = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "PrefixParsing" ) );
+      parallelWorkers = Const.toInt( XMLHandler.getTagValue( stepnode, "ParallelWorkers" ), 1 );
+      maxDocumentsInFlight = Const.toInt( XMLHandler.getTagValue( stepnode, "MaxDocumentsInFlight" ), 0 );
+      maxConcurrentDocuments = Const.toInt( XMLHandler.getTagValue( stepnode, "MaxConcurrentDocuments" ), 0 );
+      maxBatchSize = Const.toInt( XMLHandler.getTagValue( stepnode, "MaxBatchSize" ), 1 );
+      jmxMetrics = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "JmxMetrics" ) );
+      resultCacheSize = Const.toInt( XMLHandler.getTagValue( stepnode, "ResultCacheSize" ), 0 );
+      templateExtraction = "Y".equalsIgnoreCase( XMLHandler.getTagValue( stepnode, "TemplateExtraction" ) );
+      executionMode = getExecutionModeByCode( XMLHandler.getTagValue( stepnode, "ExecutionMode" ) );
     } catch ( Exception e ) {
       throw new KettleXMLException( BaseMessages.getString( PKG, DEFAULT_PREFIX+ ".Exception.ErrorLoadingXML", e
           .toString() ) );
@@ -266,7 +492,34 @@ public class XMLTransformMetaData extends BaseStepMeta implements StepMetaInterf
         rep.saveStepAttribute( id_transformation, id_step, i, "field_delimiter", field.getDemlimiter());
       }
 
+      int nr = 0;
+      for ( Map.Entry<String, String> namespace : namespaces.entrySet() ) {
+        rep.saveStepAttribute( id_transformation, id_step, nr, "namespace_prefix", namespace.getKey() );
+        rep.saveStepAttribute( id_transformation, id_step, nr, "namespace_uri", namespace.getValue() );
+        nr++;
+      }
+      rep.saveStepAttribute( id_transformation, id_step, "NamespaceAware", namespaceAware );
+
       rep.saveStepAttribute( id_transformation, id_step, "XmlField", xmlField );
+      rep.saveStepAttribute( id_transformation, id_step, "XmlIsAFile", xmlIsAFile );
+      rep.saveStepAttribute( id_transformation, id_step, "InputEncoding", getInputEncodingCode() );
+      rep.saveStepAttribute( id_transformation, id_step, "MaxDecodedSize", maxDecodedSize );
+      rep.saveStepAttribute( id_transformation, id_step, "LoopXPath", loopXPath );
+      rep.saveStepAttribute( id_transformation, id_step, "RowFilterXPath", rowFilterXPath );
+      rep.saveStepAttribute( id_transformation, id_step, "RejectStep", getRejectStepName() );
+      rep.saveStepAttribute( id_transformation, id_step, "ReaderEngine", getReaderEngineCode() );
+      rep.saveStepAttribute( id_transformation, id_step, "RetainedBufferLimit", retainedBufferLimit );
+      rep.saveStepAttribute( id_transformation, id_step, "HugeDocumentThreshold", hugeDocumentThreshold );
+      rep.saveStepAttribute( id_transformation, id_step, "VtdIndexSidecar", vtdIndexSidecar );
+      rep.saveStepAttribute( id_transformation, id_step, "PrefixParsing", prefixParsing );
+      rep.saveStepAttribute( id_transformation, id_step, "ExecutionMode", getExecutionModeCode() );
+      rep.saveStepAttribute( id_transformation, id_step, "ParallelWorkers", parallelWorkers );
+      rep.saveStepAttribute( id_transformation, id_step, "MaxDocumentsInFlight", maxDocumentsInFlight );
+      rep.saveStepAttribute( id_transformation, id_step, "MaxConcurrentDocuments", maxConcurrentDocuments );
+      rep.saveStepAttribute( id_transformation, id_step, "MaxBatchSize", maxBatchSize );
+      rep.saveStepAttribute( id_transformation, id_step, "JmxMetrics", jmxMetrics );
+      rep.saveStepAttribute( id_transformation, id_step, "ResultCacheSize", resultCacheSize );
+      rep.saveStepAttribute( id_transformation, id_step, "TemplateExtraction", templateExtraction );
     } catch ( Exception e ) {
       throw new KettleException( BaseMessages.getString( PKG, DEFAULT_PREFIX+ ".Exception.ErrorSavingToRepository", ""
           + id_step ), e );
@@ -314,7 +567,44 @@ public class XMLTransformMetaData extends BaseStepMeta implements StepMetaInterf
         inputFields.add(field);
       }
 
+      namespaces.clear();
+      int nrNamespaces = rep.countNrStepAttributes( id_step, "namespace_prefix" );
+      for ( int i = 0; i < nrNamespaces; i++ ) {
+        namespaces.put( rep.getStepAttributeString( id_step, i, "namespace_prefix" ),
+            rep.getStepAttributeString( id_step, i, "namespace_uri" ) );
+      }
+      namespaceAware = rep.getStepAttributeBoolean( id_step, 0, "NamespaceAware", true );
+
       xmlField = rep.getStepAttributeString( id_step, "XmlField" );
+      xmlIsAFile = rep.getStepAttributeBoolean( id_step, "XmlIsAFile" );
+      inputEncoding = InputEncodingCode.getByName( rep.getStepAttributeString( id_step, "InputEncoding" ) ).getId();
+      maxDecodedSize = (int) rep.getStepAttributeInteger( id_step, "MaxDecodedSize" );
+      if ( maxDecodedSize <= 0 ) {
+        maxDecodedSize = DEFAULT_MAX_DECODED_SIZE;
+      }
+      loopXPath = rep.getStepAttributeString( id_step, "LoopXPath" );
+      rowFilterXPath = rep.getStepAttributeString( id_step, "RowFilterXPath" );
+      setRejectStepName( rep.getStepAttributeString( id_step, "RejectStep" ) );
+      readerEngine = XMLReaderEngine.getByCode( rep.getStepAttributeString( id_step, "ReaderEngine" ) ).getItem()
+          .getId();
+      retainedBufferLimit = (int) rep.getStepAttributeInteger( id_step, "RetainedBufferLimit" );
+      if ( retainedBufferLimit <= 0 ) {
+        retainedBufferLimit = DEFAULT_RETAINED_BUFFER_LIMIT;
+      }
+      hugeDocumentThreshold = (int) rep.getStepAttributeInteger( id_step, "HugeDocumentThreshold" );
+      if ( hugeDocumentThreshold <= 0 ) {
+        hugeDocumentThreshold = DEFAULT_HUGE_DOCUMENT_THRESHOLD;
+      }
+      vtdIndexSidecar = rep.getStepAttributeBoolean( id_step, "VtdIndexSidecar" );
+      prefixParsing = rep.getStepAttributeBoolean( id_step, "PrefixParsing" );
+      parallelWorkers = (int) rep.getStepAttributeInteger( id_step, "ParallelWorkers" );
+      maxDocumentsInFlight = (int) rep.getStepAttributeInteger( id_step, "MaxDocumentsInFlight" );
+      maxConcurrentDocuments = (int) rep.getStepAttributeInteger( id_step, "MaxConcurrentDocuments" );
+      maxBatchSize = (int) rep.getStepAttributeInteger( id_step, "MaxBatchSize" );
+      jmxMetrics = rep.getStepAttributeBoolean( id_step, "JmxMetrics" );
+      resultCacheSize = (int) rep.getStepAttributeInteger( id_step, "ResultCacheSize" );
+      templateExtraction = rep.getStepAttributeBoolean( id_step, "TemplateExtraction" );
+      executionMode = getExecutionModeByCode( rep.getStepAttributeString( id_step, "ExecutionMode" ) );
     } catch ( Exception e ) {
       throw new KettleException( BaseMessages.getString( PKG, DEFAULT_PREFIX+".Exception.ErrorReadingRepository" ), e );
     }
@@ -413,7 +703,83 @@ public class XMLTransformMetaData extends BaseStepMeta implements StepMetaInterf
               "GetXMLDataMeta.CheckResult.FieldOk" ), stepMeta );
       remarks.add( cr );
     }
+
+    String rejectStep = getRejectStepName();
+    if ( !Utils.isEmpty( rejectStep ) ) {
+      if ( Utils.isEmpty( rowFilterXPath ) ) {
+        remarks.add( new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+            DEFAULT_PREFIX + ".CheckResult.RejectStepWithoutFilter", rejectStep ), stepMeta ) );
+      }
+      if ( Const.indexOfString( rejectStep, output ) < 0 ) {
+        remarks.add( new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString( PKG,
+            DEFAULT_PREFIX + ".CheckResult.RejectStepNotFound", rejectStep ), stepMeta ) );
+      }
+    }
+
+    if ( xmlIsAFile && inputEncoding != INPUT_ENCODING_NONE.getId() ) {
+      remarks.add( new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+          DEFAULT_PREFIX + ".CheckResult.InputEncodingOfFile", getInputEncodingCode() ), stepMeta ) );
+    }
+    if ( prev != null && inputEncoding != INPUT_ENCODING_NONE.getId() && inputEncoding != INPUT_ENCODING_BASE64.getId()
+        && inputEncoding != INPUT_ENCODING_BASE64_GZIP.getId() ) {
+      ValueMetaInterface xmlValueMeta = prev.searchValueMeta( xmlField );
+      if ( xmlValueMeta != null && !xmlValueMeta.isBinary() && !xmlValueMeta.isStorageBinaryString() ) {
+        remarks.add( new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString( PKG,
+            DEFAULT_PREFIX + ".CheckResult.InputEncodingNeedsBinary", xmlField, getInputEncodingCode() ), stepMeta ) );
+      }
+    }
+    if ( !namespaces.isEmpty() && !namespaceAware ) {
+      remarks.add( new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+          DEFAULT_PREFIX + ".CheckResult.NamespacesNotAware", String.valueOf( namespaces.size() ) ), stepMeta ) );
+    }
+
+    // the fields the chosen engine can not evaluate
+    XMLReaderEngine engine = XMLReaderEngine.getById( readerEngine );
+    String engineName = engine.getItem().getDesc();
+    if ( !Utils.isEmpty( loopXPath ) && !engine.supportsLoop() ) {
+      remarks.add( new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+          DEFAULT_PREFIX + ".CheckResult.EngineLoop", engineName ), stepMeta ) );
+    }
+    // the expressions are checked as the step compiles them, with their variables substituted
+    String rowFilter = substitute( space, rowFilterXPath );
+    if ( !Utils.isEmpty( rowFilter ) && !engine.supportsXPath( rowFilter ) ) {
+      remarks.add( new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+          DEFAULT_PREFIX + ".CheckResult.EngineRowFilter", rowFilter, engineName ), stepMeta ) );
+    }
+    for ( XMLTransformField field : inputFields ) {
+      if ( !engine.supportsElementType( field.getElementType() ) ) {
+        remarks.add( new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+            DEFAULT_PREFIX + ".CheckResult.EngineElementType", field.getName(),
+            XMLTransformField.getElementTypeDesc( field.getElementType() ), engineName ), stepMeta ) );
+      }
+      if ( !engine.supportsResultType( field.getResultType() ) ) {
+        remarks.add( new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+            DEFAULT_PREFIX + ".CheckResult.EngineResultType", field.getName(),
+            XMLTransformField.getResultTypeDesc( field.getResultType() ), engineName ), stepMeta ) );
+      }
+      String xpath = substitute( space, field.getXPath() );
+      // an XPath with ?{field} placeholders is only known once they are filled from the row
+      if ( !RowParameterizedXPath.hasPlaceholders( xpath ) && !engine.supportsXPath( xpath ) ) {
+        remarks.add( new CheckResult( CheckResult.TYPE_RESULT_WARNING, BaseMessages.getString( PKG,
+            DEFAULT_PREFIX + ".CheckResult.EngineXPath", field.getName(), xpath, engineName ), stepMeta ) );
+      }
+      // the ?{field} placeholders are filled from the input row
+      RowParameterizedXPath rowXPath = RowParameterizedXPath.parse( xpath );
+      if ( rowXPath != null && prev != null ) {
+        for ( String fieldName : rowXPath.getFieldNames() ) {
+          if ( prev.indexOfValue( fieldName ) < 0 ) {
+            remarks.add( new CheckResult( CheckResult.TYPE_RESULT_ERROR, BaseMessages.getString( PKG,
+                DEFAULT_PREFIX + ".CheckResult.RowXPathField", field.getName(), fieldName ), stepMeta ) );
+          }
+        }
+      }
+    }
+  }
+
+  private static String substitute( VariableSpace space, String text ) {
+    return space != null && text != null ? space.environmentSubstitute( text ) : text;
   }
+
   /**
    * Get XML field.
    */
@@ -428,6 +794,357 @@ public class XMLTransformMetaData extends BaseStepMeta implements StepMetaInterf
     this.xmlField = xmlField;
   }
 
+  /**
+   * Get the loop XPath, empty when each input row gives one output row.
+   */
+  public String getLoopXPath() {
+    return loopXPath;
+  }
+
+  /**
+   * @return true when the XML field holds the path of a local file
+   */
+  public boolean isXmlIsAFile() {
+    return xmlIsAFile;
+  }
+
+  public void setXmlIsAFile( boolean xmlIsAFile ) {
+    this.xmlIsAFile = xmlIsAFile;
+  }
+
+  /**
+   * Get the encoding of the XML field, the id of one of the INPUT_ENCODING_ items.
+   */
+  public int getInputEncoding() {
+    return inputEncoding;
+  }
+
+  /**
+   * Set the encoding of the XML field, the id of one of the INPUT_ENCODING_ items.
+   */
+  public void setInputEncoding( int inputEncoding ) {
+    this.inputEncoding = inputEncoding;
+  }
+
+  public String getInputEncodingCode() {
+    return InputEncodingCode.getById( inputEncoding ).getValue();
+  }
+
+  /**
+   * Get the size (MB) over which a gzip or deflate document is rejected once
+   * inflated.
+   */
+  public int getMaxDecodedSize() {
+    return maxDecodedSize;
+  }
+
+  /**
+   * Set the size (MB) over which a gzip or deflate document is rejected once
+   * inflated.
+   */
+  public void setMaxDecodedSize( int maxDecodedSize ) {
+    this.maxDecodedSize = maxDecodedSize;
+  }
+
+  /**
+   * Set the loop XPath.
+   */
+  public void setLoopXPath( String loopXPath ) {
+    this.loopXPath = loopXPath;
+  }
+
+  /**
+   * Get the row filter XPath, empty when every document is extracted. A
+   * document is kept when the expression matches a node or is true.
+   */
+  public String getRowFilterXPath() {
+    return rowFilterXPath;
+  }
+
+  public void setRowFilterXPath( String rowFilterXPath ) {
+    this.rowFilterXPath = rowFilterXPath;
+  }
+
+  /**
+   * Get the name of the step receiving the rows rejected by the row filter,
+   * empty when they are dropped. Follows the step once the reject stream is
+   * bound to it, so a renamed step is kept.
+   */
+  public String getRejectStepName() {
+    StepMeta rejectStep = getRejectStream().getStepMeta();
+    return rejectStep != null ? rejectStep.getName() : rejectStepName;
+  }
+
+  /**
+   * Set the name of the reject step, the reject stream is bound to it by
+   * {@link #searchInfoAndTargetSteps(List)}.
+   */
+  public void setRejectStepName( String rejectStepName ) {
+    this.rejectStepName = rejectStepName;
+    StreamInterface stream = getRejectStream();
+    stream.setSubject( rejectStepName );
+    if ( stream.getStepMeta() != null && !stream.getStepMeta().getName().equals( rejectStepName ) ) {
+      stream.setStepMeta( null );
+    }
+  }
+
+  /**
+   * @return the target stream of the rows rejected by the row filter
+   */
+  public StreamInterface getRejectStream() {
+    return getStepIOMeta().getTargetStreams().get( 0 );
+  }
+
+  /**
+   * The rejected rows are a target stream, like the true and false targets of
+   * the filter rows step; the rows matched by the filter go to the other hops.
+   */
+  @Override
+  public StepIOMetaInterface getStepIOMeta() {
+    StepIOMetaInterface ioMeta = super.getStepIOMeta( false );
+    if ( ioMeta == null ) {
+      ioMeta = new StepIOMeta( true, true, false, false, false, false );
+      ioMeta.addStream( new Stream( StreamType.TARGET, null, BaseMessages.getString( PKG,
+          DEFAULT_PREFIX + ".RejectStream.Description" ), StreamIcon.FALSE, rejectStepName ) );
+      setStepIOMeta( ioMeta );
+    }
+    return ioMeta;
+  }
+
+  @Override
+  public void searchInfoAndTargetSteps( List<StepMeta> steps ) {
+    for ( StreamInterface stream : getStepIOMeta().getTargetStreams() ) {
+      stream.setStepMeta( StepMeta.findStep( steps, (String) stream.getSubject() ) );
+    }
+  }
+
+  @Override
+  public void resetStepIoMeta() {
+    // the reject stream is kept, its step is set with the reject step name
+  }
+
+  /**
+   * @return true when the VTD index of each file is saved next to it and loaded
+   *         by the next runs, only used when the XML field holds a file path
+   */
+  public boolean isVtdIndexSidecar() {
+    return vtdIndexSidecar;
+  }
+
+  public void setVtdIndexSidecar( boolean vtdIndexSidecar ) {
+    this.vtdIndexSidecar = vtdIndexSidecar;
+  }
+
+  /**
+   * Get the namespace URI of each prefix used in the XPaths, bound when the
+   * plan is compiled.
+   */
+  public Map<String, String> getNamespaces() {
+    return namespaces;
+  }
+
+  public void setNamespaces( Map<String, String> namespaces ) {
+    this.namespaces = namespaces;
+  }
+
+  /**
+   * @return false when the documents are parsed without namespaces, the names
+   *         are then matched as written, prefix included
+   */
+  public boolean isNamespaceAware() {
+    return namespaceAware;
+  }
+
+  public void setNamespaceAware( boolean namespaceAware ) {
+    this.namespaceAware = namespaceAware;
+  }
+
+  /**
+   * @return true when each document is parsed only up to the first match of
+   *         every field XPath, the rest of it is not checked for well-formedness
+   */
+  public boolean isPrefixParsing() {
+    return prefixParsing;
+  }
+
+  public void setPrefixParsing( boolean prefixParsing ) {
+    this.prefixParsing = prefixParsing;
+  }
+
+  /**
+   * Get the reader engine, the id of one of the READER_ENGINE_ items.
+   */
+  public int getReaderEngine() {
+    return readerEngine;
+  }
+
+  /**
+   * Set the reader engine, the id of one of the READER_ENGINE_ items.
+   */
+  public void setReaderEngine( int readerEngine ) {
+    this.readerEngine = readerEngine;
+  }
+
+  public String getReaderEngineCode() {
+    return XMLReaderEngine.getById( readerEngine ).getItem().getValue();
+  }
+
+  /**
+   * Get the size (KB) up to which the reader buffers are kept between documents.
+   */
+  public int getRetainedBufferLimit() {
+    return retainedBufferLimit;
+  }
+
+  /**
+   * Set the size (KB) up to which the reader buffers are kept between documents.
+   */
+  public void setRetainedBufferLimit( int retainedBufferLimit ) {
+    this.retainedBufferLimit = retainedBufferLimit;
+  }
+
+  /**
+   * Get the size (MB) from which a file is parsed by the huge document parser,
+   * files over 2 GB always are.
+   */
+  public int getHugeDocumentThreshold() {
+    return hugeDocumentThreshold;
+  }
+
+  /**
+   * Set the size (MB) from which a file is parsed by the huge document parser.
+   */
+  public void setHugeDocumentThreshold( int hugeDocumentThreshold ) {
+    this.hugeDocumentThreshold = hugeDocumentThreshold;
+  }
+
+  /**
+   * Get the execution mode, the id of one of the EXECUTION_MODE_ items.
+   */
+  public int getExecutionMode() {
+    return executionMode;
+  }
+
+  /**
+   * Set the execution mode, the id of one of the EXECUTION_MODE_ items.
+   */
+  public void setExecutionMode( int executionMode ) {
+    this.executionMode = executionMode;
+  }
+
+  public String getExecutionModeCode() {
+    return ExecutionModeCode.getById( executionMode ).getValue();
+  }
+
+  /**
+   * Steps saved before the execution mode existed use a thread pool when they
+   * have more than one parallel worker.
+   */
+  private int getExecutionModeByCode( String code ) {
+    if ( Utils.isEmpty( code ) ) {
+      return parallelWorkers > 1 ? EXECUTION_MODE_THREADS.getId() : EXECUTION_MODE_SERIAL.getId();
+    }
+    return ExecutionModeCode.getByName( code ).getId();
+  }
+
+  /**
+   * Get the number of documents of a step copy parsed at the same time: the
+   * threads of the pool, or the cap on running virtual threads.
+   */
+  public int getParallelWorkers() {
+    return parallelWorkers;
+  }
+
+  /**
+   * Set the number of documents of a step copy parsed at the same time.
+   */
+  public void setParallelWorkers( int parallelWorkers ) {
+    this.parallelWorkers = parallelWorkers;
+  }
+
+  /**
+   * Get the number of documents parsed ahead of the output, 0 for 4 per thread.
+   */
+  public int getMaxDocumentsInFlight() {
+    return maxDocumentsInFlight;
+  }
+
+  /**
+   * Set the number of documents parsed ahead of the output.
+   */
+  public void setMaxDocumentsInFlight( int maxDocumentsInFlight ) {
+    this.maxDocumentsInFlight = maxDocumentsInFlight;
+  }
+
+  /**
+   * Get the number of documents read and parsed at the same time on virtual
+   * threads, 0 for as many as are parsed ahead.
+   */
+  public int getMaxConcurrentDocuments() {
+    return maxConcurrentDocuments;
+  }
+
+  /**
+   * Set the number of documents read and parsed at the same time on virtual
+   * threads, apart from the number of parse workers.
+   */
+  public void setMaxConcurrentDocuments( int maxConcurrentDocuments ) {
+    this.maxConcurrentDocuments = maxConcurrentDocuments;
+  }
+
+  /**
+   * Get the most rows taken from the input at once, 1 or less to process the
+   * rows one by one.
+   */
+  public int getMaxBatchSize() {
+    return maxBatchSize;
+  }
+
+  /**
+   * Set the most rows taken from the input at once.
+   */
+  public void setMaxBatchSize( int maxBatchSize ) {
+    this.maxBatchSize = maxBatchSize;
+  }
+
+  /**
+   * @return true when each step copy registers an MBean with its live metrics
+   */
+  public boolean isJmxMetrics() {
+    return jmxMetrics;
+  }
+
+  public void setJmxMetrics( boolean jmxMetrics ) {
+    this.jmxMetrics = jmxMetrics;
+  }
+
+  /**
+   * Get the memory budget (MB) of the cache of extracted values of each step
+   * copy, 0 or less when the documents are not cached.
+   */
+  public int getResultCacheSize() {
+    return resultCacheSize;
+  }
+
+  /**
+   * Set the memory budget (MB) of the cache of extracted values.
+   */
+  public void setResultCacheSize( int resultCacheSize ) {
+    this.resultCacheSize = resultCacheSize;
+  }
+
+  /**
+   * @return true when the token layout of the documents is learned and the
+   *         values read by position while the documents keep that layout
+   */
+  public boolean isTemplateExtraction() {
+    return templateExtraction;
+  }
+
+  public void setTemplateExtraction( boolean templateExtraction ) {
+    this.templateExtraction = templateExtraction;
+  }
+
   public List<XMLTransformField> getInputFields() {
     return inputFields;
   }
@@ -0,0 +1,253 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters of one step copy, fed by the step, its workers and their readers.
+ * The counters are LongAdders so the threads of a pool update them without
+ * contention, they are only summed when the MBean is read.
+ */
+public class XMLTransformMetrics implements XMLTransformMetricsMBean {
+  public static final String DOMAIN = "vn.com.watanabe.etl";
+
+  private final String[] fieldNames;
+  private final LongAdder documents = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder parseNanos = new LongAdder();
+  private final LongAdder parseErrors = new LongAdder();
+  private final LongAdder singlePassNanos = new LongAdder();
+  private final LongAdder[] fieldNanos;
+  private final LongAdder conversionNanos = new LongAdder();
+  private final LongAdder conversionErrors = new LongAdder();
+  private final LongAdder templateMatches = new LongAdder();
+  private final LongAdder templateFallbacks = new LongAdder();
+  private final LongAdder prefixDocuments = new LongAdder();
+  private final LongAdder prefixSkippedBytes = new LongAdder();
+  private volatile long startTime = System.nanoTime();
+  private ObjectName objectName;
+  /** The cache of extracted values of the step copy, null when it has none */
+  private volatile XMLResultCache resultCache;
+
+  public XMLTransformMetrics(String[] fieldNames) {
+    this.fieldNames = fieldNames;
+    this.fieldNanos = new LongAdder[fieldNames.length];
+    for (int i = 0; i < fieldNanos.length; i++) {
+      fieldNanos[i] = new LongAdder();
+    }
+  }
+
+  public void documentRead(long length) {
+    documents.increment();
+    bytes.add(length);
+  }
+
+  public void parsed(long nanos) {
+    parseNanos.add(nanos);
+  }
+
+  public void parseFailed() {
+    parseErrors.increment();
+  }
+
+  public void singlePassDone(long nanos) {
+    singlePassNanos.add(nanos);
+  }
+
+  public void fieldEvaluated(int field, long nanos) {
+    fieldNanos[field].add(nanos);
+  }
+
+  public void converted(long nanos) {
+    conversionNanos.add(nanos);
+  }
+
+  public void conversionFailed() {
+    conversionErrors.increment();
+  }
+
+  public void templateMatched() {
+    templateMatches.increment();
+  }
+
+  public void templateFallback() {
+    templateFallbacks.increment();
+  }
+
+  public void prefixParsed(long skippedBytes) {
+    prefixDocuments.increment();
+    prefixSkippedBytes.add(skippedBytes);
+  }
+
+  public void setResultCache(XMLResultCache resultCache) {
+    this.resultCache = resultCache;
+  }
+
+  /**
+   * Register in the platform MBean server. The same transformation can run
+   * several times at once, the id of the run keeps their MBeans apart.
+   *
+   * @param run the log channel id of the step copy, unique to this run
+   */
+  public void register(String transformation, String step, int copy, String run) throws JMException {
+    ObjectName name = new ObjectName(DOMAIN + ":type=XMLTransform,transformation="
+        + ObjectName.quote(String.valueOf(transformation)) + ",step=" + ObjectName.quote(step) + ",copy=" + copy
+        + ",run=" + ObjectName.quote(String.valueOf(run)));
+    ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+    objectName = name;
+  }
+
+  public void unregister() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException e) {
+      // already gone
+    }
+    objectName = null;
+  }
+
+  @Override
+  public long getDocuments() {
+    return documents.sum();
+  }
+
+  @Override
+  public long getBytes() {
+    return bytes.sum();
+  }
+
+  @Override
+  public double getAverageDocumentsPerSecond() {
+    return perSecond(documents.sum());
+  }
+
+  @Override
+  public double getAverageBytesPerSecond() {
+    return perSecond(bytes.sum());
+  }
+
+  @Override
+  public long getParseTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(parseNanos.sum());
+  }
+
+  @Override
+  public long getParseErrors() {
+    return parseErrors.sum();
+  }
+
+  @Override
+  public long getSinglePassTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(singlePassNanos.sum());
+  }
+
+  @Override
+  public String[] getFieldNames() {
+    return fieldNames.clone();
+  }
+
+  @Override
+  public long[] getFieldEvaluationTimeMillis() {
+    long[] millis = new long[fieldNanos.length];
+    for (int i = 0; i < millis.length; i++) {
+      millis[i] = TimeUnit.NANOSECONDS.toMillis(fieldNanos[i].sum());
+    }
+    return millis;
+  }
+
+  @Override
+  public long getConversionTimeMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(conversionNanos.sum());
+  }
+
+  @Override
+  public long getConversionErrors() {
+    return conversionErrors.sum();
+  }
+
+  @Override
+  public long getTemplateMatches() {
+    return templateMatches.sum();
+  }
+
+  @Override
+  public long getTemplateFallbacks() {
+    return templateFallbacks.sum();
+  }
+
+  @Override
+  public long getPrefixDocuments() {
+    return prefixDocuments.sum();
+  }
+
+  @Override
+  public long getPrefixSkippedBytes() {
+    return prefixSkippedBytes.sum();
+  }
+
+  @Override
+  public long getResultCacheHits() {
+    XMLResultCache cache = resultCache;
+    return cache != null ? cache.getHits() : 0;
+  }
+
+  @Override
+  public long getResultCacheMisses() {
+    XMLResultCache cache = resultCache;
+    return cache != null ? cache.getMisses() : 0;
+  }
+
+  @Override
+  public long getResultCacheEvictions() {
+    XMLResultCache cache = resultCache;
+    return cache != null ? cache.getEvictions() : 0;
+  }
+
+  @Override
+  public int getResultCacheEntries() {
+    XMLResultCache cache = resultCache;
+    return cache != null ? cache.getEntries() : 0;
+  }
+
+  @Override
+  public long getResultCacheBytes() {
+    XMLResultCache cache = resultCache;
+    return cache != null ? cache.getBytes() : 0;
+  }
+
+  @Override
+  public long getElapsedSeconds() {
+    return TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startTime);
+  }
+
+  @Override
+  public void resetStatistics() {
+    documents.reset();
+    bytes.reset();
+    parseNanos.reset();
+    parseErrors.reset();
+    singlePassNanos.reset();
+    for (LongAdder adder : fieldNanos) {
+      adder.reset();
+    }
+    conversionNanos.reset();
+    conversionErrors.reset();
+    templateMatches.reset();
+    templateFallbacks.reset();
+    prefixDocuments.reset();
+    prefixSkippedBytes.reset();
+    startTime = System.nanoTime();
+  }
+
+  private double perSecond(long count) {
+    long elapsed = System.nanoTime() - startTime;
+    return elapsed <= 0 ? 0 : count * 1e9 / elapsed;
+  }
+}
@@ -0,0 +1,68 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+/**
+ * Live extraction metrics of one step copy, registered in the platform MBean
+ * server while the step runs. Counters start when the step is initialized or
+ * when the statistics are reset.
+ */
+public interface XMLTransformMetricsMBean {
+  public long getDocuments();
+
+  public long getBytes();
+
+  /**
+   * Documents per second averaged since the counters started, a current rate
+   * is the difference of two reads of {@link #getDocuments()}
+   */
+  public double getAverageDocumentsPerSecond();
+
+  /** Bytes per second averaged since the counters started */
+  public double getAverageBytesPerSecond();
+
+  /** Time spent parsing the documents */
+  public long getParseTimeMillis();
+
+  public long getParseErrors();
+
+  /** Time spent in the single walk filling the simple paths */
+  public long getSinglePassTimeMillis();
+
+  /** Names of the fields, in the order of {@link #getFieldEvaluationTimeMillis()} */
+  public String[] getFieldNames();
+
+  /** Time spent evaluating the XPath of each field, single pass fields excluded */
+  public long[] getFieldEvaluationTimeMillis();
+
+  /** Time spent converting the extracted values to the field types */
+  public long getConversionTimeMillis();
+
+  public long getConversionErrors();
+
+  /** Documents read through the learned token template */
+  public long getTemplateMatches();
+
+  /** Documents not matching the learned token template, evaluated by XPath */
+  public long getTemplateFallbacks();
+
+  /** Documents parsed up to the prefix their fields need */
+  public long getPrefixDocuments();
+
+  /** Bytes left unparsed after the prefix of the documents */
+  public long getPrefixSkippedBytes();
+
+  /** Documents found in the cache of extracted values, 0 without cache */
+  public long getResultCacheHits();
+
+  public long getResultCacheMisses();
+
+  public long getResultCacheEvictions();
+
+  public int getResultCacheEntries();
+
+  /** Estimated size of the cached documents and values */
+  public long getResultCacheBytes();
+
+  public long getElapsedSeconds();
+
+  public void resetStatistics();
+}
@@ -0,0 +1,105 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * The extraction plan of a step copy: every input field together with its
+ * XPath compiled against the reader of that copy.
+ *
+ * The plan is built once in init(), so a bad expression stops the step before
+ * the first row and no expression is parsed again while rows are processed.
+ * The XPaths with <code>?{field}</code> placeholders are the exception, they
+ * are compiled for each distinct row value by the worker.
+ */
+public class XMLTransformPlan {
+  private static final Class<?> PKG = XMLTransformMetaData.class; // for i18n purposes
+  public static String DEFAULT_PREFIX = "XMLTransform";
+
+  private final XMLTransformField[] fields;
+  private final CompiledXPath[] xpaths;
+  /** The XPath of each field, variables resolved */
+  private final String[] texts;
+  /** The row parameterized XPath of each field, null when it has no placeholder */
+  private final RowParameterizedXPath[] rowXPaths;
+  private final boolean parameterized;
+
+  /**
+   * @param namespaces the namespace URI of each prefix used in the XPaths,
+   *                   declared on the reader before anything is compiled
+   * @param space      the variables of the step, resolved in the XPaths
+   */
+  public XMLTransformPlan(List<XMLTransformField> inputFields, Map<String, String> namespaces, VariableSpace space,
+      XMLReader reader) throws KettleException {
+    for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+      reader.declareNamespace(namespace.getKey(), namespace.getValue());
+    }
+    int size = inputFields.size();
+    fields = new XMLTransformField[size];
+    xpaths = new CompiledXPath[size];
+    texts = new String[size];
+    rowXPaths = new RowParameterizedXPath[size];
+    boolean anyParameter = false;
+    for (int i = 0; i < size; i++) {
+      XMLTransformField field = inputFields.get(i);
+      fields[i] = field;
+      // kept here, the fields are shared with the other copies of the step
+      texts[i] = space.environmentSubstitute(field.getXPath());
+      rowXPaths[i] = RowParameterizedXPath.parse(texts[i]);
+      if (rowXPaths[i] != null) {
+        anyParameter = true;
+        continue;
+      }
+      try {
+        xpaths[i] = reader.compile(texts[i]);
+      } catch (KettleException e) {
+        throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidXPath",
+            field.getName(), texts[i]), e);
+      }
+    }
+    parameterized = anyParameter;
+  }
+
+  /**
+   * @return the number of fields in the plan
+   */
+  public int size() {
+    return fields.length;
+  }
+
+  public XMLTransformField getField(int index) {
+    return fields[index];
+  }
+
+  /**
+   * @return the compiled XPath of a field, null when it has row placeholders
+   */
+  public CompiledXPath getXPath(int index) {
+    return xpaths[index];
+  }
+
+  /**
+   * @return the XPath of a field with the variables resolved, placeholders included
+   */
+  public String getXPathText(int index) {
+    return texts[index];
+  }
+
+  /**
+   * @return the placeholders of a field, null when its XPath has none
+   */
+  public RowParameterizedXPath getRowXPath(int index) {
+    return rowXPaths[index];
+  }
+
+  /**
+   * @return true when an XPath of the plan has row placeholders
+   */
+  public boolean isParameterized() {
+    return parameterized;
+  }
+}
@@ -0,0 +1,273 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMetaInterface;
+
+/**
+ * Parses the documents of a step copy on several threads while keeping the
+ * order of the input rows.
+ *
+ * Each task borrows a worker, with its own reader and compiled plan, for the
+ * time of one document. The workers are pooled rather than kept per thread,
+ * so the number of workers caps the documents parsed at once whatever the
+ * executor: a fixed pool of platform threads or a virtual thread per task.
+ *
+ * With virtual threads the tasks can do more at once than parse: a task reads
+ * its file before it borrows a worker, see {@link #setFileBytesLimit}, and the
+ * tasks running at once have their own cap, so reading is not held back by
+ * the number of workers.
+ *
+ * The results wait in submission order until the oldest one is done, so the
+ * output rows come out in the order the input rows came in. At most
+ * maxInFlight documents are submitted and not yet put: once the limit is
+ * reached {@link #submit} waits for the oldest one, which holds back the step
+ * reading its input.
+ */
+public class XMLTransformPool {
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  private final ExecutorService executor;
+  private final List<XMLTransformWorker> workers;
+  private final BlockingQueue<XMLTransformWorker> idleWorkers;
+  /** Submitted documents, oldest first */
+  private final ArrayDeque<Future<DocumentRows>> inFlight = new ArrayDeque<Future<DocumentRows>>();
+  private final int maxInFlight;
+  /** Tasks reading or parsing at the same time, null when only maxInFlight caps them */
+  private final Semaphore running;
+  /** Files under this size are read by the task before it borrows a worker, 0 for none */
+  private long fileBytesLimit;
+
+  /**
+   * @param workers     the workers borrowed by the tasks, their number caps the
+   *                    documents parsed at the same time
+   * @param maxInFlight the number of documents submitted and not yet put,
+   *                    4 per worker when not positive
+   * @param maxRunning  the number of tasks reading or parsing at the same
+   *                    time, up to maxInFlight when not positive
+   * @param executor    runs the tasks, shut down with the pool
+   */
+  public XMLTransformPool(List<XMLTransformWorker> workers, int maxInFlight, int maxRunning,
+      ExecutorService executor) {
+    this.workers = workers;
+    this.idleWorkers = new ArrayBlockingQueue<XMLTransformWorker>(workers.size(), false, workers);
+    this.maxInFlight = Math.max(maxInFlight > 0 ? maxInFlight : 4 * workers.size(), maxRunning);
+    this.running = maxRunning > 0 ? new Semaphore(maxRunning) : null;
+    this.executor = executor;
+  }
+
+  /**
+   * Have each task read the file given as its document, when it is under the
+   * given size, before it borrows a worker. The worker then parses the bytes,
+   * so the workers are not held while the tasks wait for the disk.
+   *
+   * @param fileBytesLimit the size from which the worker reads the file
+   *                       itself, 0 to never read ahead
+   */
+  public void setFileBytesLimit(long fileBytesLimit) {
+    this.fileBytesLimit = fileBytesLimit;
+  }
+
+  /**
+   * Create a pool of daemon platform threads.
+   */
+  public static ExecutorService newThreadPool(int threads, String threadName) {
+    return Executors.newFixedThreadPool(threads, threadFactory(threadName));
+  }
+
+  /**
+   * Create an executor starting a virtual thread per task. Virtual threads are
+   * cheap to block, a task waiting for an idle worker or for its input does not
+   * hold a platform thread. The method is looked up at run time so the step
+   * still runs on Java 8.
+   *
+   * @return the executor, null when the JVM has no virtual threads (before Java 21)
+   */
+  public static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (Exception e) {
+      return null;
+    }
+  }
+
+  /**
+   * Set the structure of the output rows of every worker.
+   */
+  public void setRowMeta(RowMetaInterface outputRowMeta, int numInputFields) throws KettleValueException {
+    for (XMLTransformWorker worker : workers) {
+      worker.setRowMeta(outputRowMeta, numInputFields);
+    }
+  }
+
+  /**
+   * Submit the document of an input row. The rows of the documents done so far
+   * are given to the sink, in input order.
+   */
+  public void submit(final Object[] r, final byte[] xmlBytes, final String xml,
+      XMLTransformWorker.RowSink sink) throws KettleException {
+    while (inFlight.size() >= maxInFlight) {
+      putRows(inFlight.poll(), sink);
+    }
+    inFlight.add(executor.submit(new Callable<DocumentRows>() {
+      @Override
+      public DocumentRows call() throws Exception {
+        if (running != null) {
+          running.acquire();
+        }
+        try {
+          byte[] bytes = xmlBytes;
+          String source = xml;
+          if (bytes == null && source != null && fileBytesLimit > 0) {
+            bytes = readFile(source, fileBytesLimit);
+            if (bytes != null) {
+              source = null;
+            }
+          }
+          DocumentRows rows = new DocumentRows();
+          XMLTransformWorker worker = idleWorkers.take();
+          try {
+            worker.process(r, bytes, source, rows);
+          } finally {
+            idleWorkers.put(worker);
+          }
+          return rows;
+        } finally {
+          if (running != null) {
+            running.release();
+          }
+        }
+      }
+    }));
+    while (!inFlight.isEmpty() && inFlight.peek().isDone()) {
+      putRows(inFlight.poll(), sink);
+    }
+  }
+
+  /**
+   * Read a whole file into a new array.
+   *
+   * @return the content, null when the file has the given size or more
+   */
+  static byte[] readFile(String path, long limit) throws KettleException {
+    try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size >= limit) {
+        return null;
+      }
+      byte[] content = new byte[(int) size];
+      int length = VTDXMLReader.readFully(channel, content, content.length);
+      // the file may have been truncated since its size was taken
+      return length < content.length ? Arrays.copyOf(content, length) : content;
+    } catch (IOException e) {
+      throw new KettleException("error in try read file " + path, e);
+    }
+  }
+
+  /**
+   * Wait for every submitted document and give its rows to the sink.
+   */
+  public void flush(XMLTransformWorker.RowSink sink) throws KettleException {
+    while (!inFlight.isEmpty()) {
+      putRows(inFlight.poll(), sink);
+    }
+  }
+
+  private void putRows(Future<DocumentRows> result, XMLTransformWorker.RowSink sink) throws KettleException {
+    DocumentRows rows;
+    try {
+      rows = result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new KettleException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof KettleException) {
+        throw (KettleException) e.getCause();
+      }
+      throw new KettleException(e.getCause());
+    }
+    for (int i = 0; i < rows.rows.size(); i++) {
+      sink.putRow(rows.rows.get(i));
+    }
+    if (rows.rejected != null) {
+      sink.rejectRow(rows.rejected);
+    }
+  }
+
+  /**
+   * Stop the threads, drop the documents not put yet and release the workers.
+   */
+  public void shutdown() {
+    for (Future<DocumentRows> result : inFlight) {
+      result.cancel(true);
+    }
+    inFlight.clear();
+    executor.shutdownNow();
+    try {
+      // a document being parsed still uses its worker
+      if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+    for (XMLTransformWorker worker : workers) {
+      worker.release();
+    }
+  }
+
+  /**
+   * The rows of one document, filled by the task parsing it. A document
+   * rejected by the row filter has no output row and one rejected row.
+   */
+  static final class DocumentRows implements XMLTransformWorker.RowSink {
+    final List<Object[]> rows = new ArrayList<Object[]>(1);
+    Object[] rejected;
+
+    @Override
+    public void putRow(Object[] row) {
+      rows.add(row);
+    }
+
+    @Override
+    public void rejectRow(Object[] row) {
+      rejected = row;
+    }
+  }
+
+  static ThreadFactory threadFactory(final String name) {
+    return new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + " - " + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+}
@@ -0,0 +1,722 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.text.DecimalFormatSymbols;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.Const;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowDataUtil;
+import org.pentaho.di.core.row.RowMetaInterface;
+import org.pentaho.di.core.row.ValueMetaInterface;
+import org.pentaho.di.core.util.Utils;
+import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.i18n.BaseMessages;
+
+/**
+ * Everything needed to extract the fields of one document at a time: a
+ * reader, the plan compiled against it, scratch buffers and a private copy of
+ * the row metadata (the value metas keep formatters which are not thread
+ * safe).
+ *
+ * A step copy has one worker when it runs serially, and one per thread when it
+ * hands its rows to a pool. A worker is only used by one thread at a time.
+ *
+ * In pool mode the values are converted to their field types by
+ * pushFieldToRow and pushTokenToRow inside {@link #process}, on the pool
+ * threads, virtual ones included, not on the step thread. That is only safe
+ * because each worker converts with its own clone of the output row meta,
+ * made by {@link #setRowMeta}: never hand a worker a row meta shared with
+ * another worker or with the step.
+ */
+public class XMLTransformWorker {
+  private static final Class<?> PKG = XMLTransformMetaData.class; // for i18n purposes
+  public static String DEFAULT_PREFIX = "XMLTransform";
+  /**
+   * Most expressions compiled from row placeholders kept by a worker. The
+   * placeholders are meant for keys with few distinct values, a tenant or a
+   * type; a key with more values than this is compiled again for most rows,
+   * which costs about what evaluating the expression does.
+   */
+  static final int ROW_XPATH_CACHE_SIZE = 256;
+
+  private final XMLReader reader;
+  private final XMLTransformPlan plan;
+  private final VTDSinglePassExtractor singlePass;
+  /** Token layout learned from the documents, null when the step does not learn one */
+  private final VTDTemplate template;
+  /** True when the template reads every field of the single pass, which is then skipped */
+  private final boolean templateCoversSinglePass;
+  /** Value tokens of the fields of the template in the current document */
+  private final int[] templateTokens;
+  private final CompiledXPath loopXPath;
+  /** Evaluated before any field, null when every document is extracted */
+  private final CompiledXPath rowFilter;
+  /** Finds the part of each document the fields need, null when documents are parsed whole */
+  private final VTDDocumentPrefix documentPrefix;
+  /** The XML field holds the path of a local file */
+  private final boolean xmlIsAFile;
+  /** Decodes the encoded documents of the XML field, null when they are plain XML */
+  private final XMLInputDecoder decoder;
+  /** Scratch values of the current document, indexed like the plan */
+  private final String[] values;
+  /** Last value of each repeated field in the current loop */
+  private final Object[] repeatValues;
+  /** Aggregate of each aggregate field, fields with the same XPath share one, null for other fields */
+  private final XPathAggregate[] aggregates;
+  /** Field whose compiled XPath fills the aggregate of each field */
+  private final int[] aggregateOwners;
+  /** Aggregates already computed for the current node, indexed by owner field */
+  private final boolean[] aggregated;
+
+  private RowMetaInterface outputRowMeta;
+  private RowMetaInterface convertRowMeta;
+  private int numInputFields;
+  /** Type of the fields parsed straight from their VTD token, 0 for the String path */
+  private int[] tokenTypes;
+  /** Receives the evaluation and conversion times, null when the step keeps no metrics */
+  private XMLTransformMetrics metrics;
+  /** Values of the documents already extracted, null when the step caches nothing */
+  private XMLResultCache cache;
+  /** The XPath of each field for the current row, with its placeholders filled */
+  private final CompiledXPath[] xpaths;
+  /** Expressions compiled from row placeholders by resolved text, least recently used first */
+  private final Map<String, CompiledXPath> rowXPathCache;
+
+  /**
+   * Receives the rows extracted by a worker.
+   */
+  public interface RowSink {
+    public void putRow(Object[] row) throws KettleException;
+
+    /**
+     * Receive the row of a document rejected by the row filter, its fields
+     * are not extracted.
+     */
+    public void rejectRow(Object[] row) throws KettleException;
+  }
+
+  /**
+   * Compile the plan of the step against the reader.
+   *
+   * @throws KettleException when an XPath is not valid
+   */
+  public XMLTransformWorker(XMLTransformMetaData meta, XMLReader reader, VariableSpace space)
+      throws KettleException {
+    this.reader = reader;
+    this.xmlIsAFile = meta.isXmlIsAFile();
+    this.decoder = XMLInputDecoder.create(meta);
+    this.plan = new XMLTransformPlan(meta.getInputFields(), meta.getNamespaces(), space, reader);
+    if (!Utils.isEmpty(meta.getRowFilterXPath())) {
+      try {
+        rowFilter = reader.compile(space.environmentSubstitute(meta.getRowFilterXPath()));
+      } catch (KettleException e) {
+        throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidRowFilter",
+            meta.getRowFilterXPath()), e);
+      }
+    } else {
+      rowFilter = null;
+    }
+    if (!Utils.isEmpty(meta.getLoopXPath())) {
+      try {
+        loopXPath = reader.compile(space.environmentSubstitute(meta.getLoopXPath()));
+      } catch (KettleException e) {
+        throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Log.ErrorApplyXPath",
+            e.getMessage()), e);
+      }
+      repeatValues = new Object[plan.size()];
+      singlePass = null;
+      template = null;
+      documentPrefix = null;
+    } else {
+      loopXPath = null;
+      repeatValues = null;
+      // the simple paths are merged and evaluated in one walk of the document,
+      // they are absolute so this does not apply to the nodes of a loop
+      singlePass = reader instanceof VTDXMLReader ? VTDSinglePassExtractor.create(plan) : null;
+      template = meta.isTemplateExtraction() && reader instanceof VTDXMLReader ? createTemplate(plan) : null;
+      // the streaming reader already stops once its expressions are captured
+      documentPrefix = meta.isPrefixParsing() && reader instanceof VTDXMLReader
+          ? VTDDocumentPrefix.create(plan, rowFilter != null ? rowFilter.getXPath() : null) : null;
+      if (documentPrefix != null) {
+        ((VTDXMLReader) reader).setDocumentPrefix(documentPrefix);
+      }
+    }
+    values = new String[plan.size()];
+    xpaths = new CompiledXPath[plan.size()];
+    for (int i = 0; i < xpaths.length; i++) {
+      xpaths[i] = plan.getXPath(i);
+    }
+    rowXPathCache = plan.isParameterized() ? new LinkedHashMap<String, CompiledXPath>(64, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CompiledXPath> eldest) {
+        if (size() <= ROW_XPATH_CACHE_SIZE) {
+          return false;
+        }
+        XMLTransformWorker.this.reader.discard(eldest.getValue());
+        return true;
+      }
+    } : null;
+    templateTokens = template != null ? new int[plan.size()] : null;
+    boolean covered = template != null && singlePass != null;
+    for (int i = 0; covered && i < plan.size(); i++) {
+      covered = !singlePass.handles(i) || template.handles(i);
+    }
+    templateCoversSinglePass = covered;
+
+    aggregates = new XPathAggregate[plan.size()];
+    aggregateOwners = new int[plan.size()];
+    aggregated = new boolean[plan.size()];
+    Map<String, Integer> owners = new HashMap<String, Integer>();
+    for (int i = 0; i < plan.size(); i++) {
+      XMLTransformField field = plan.getField(i);
+      if (field.getElementType() != XMLTransformField.ELEMENT_TYPE_NODE_MULTI.getId()
+          || !XPathAggregate.isAggregate(field.getResultType())) {
+        continue;
+      }
+      Integer owner = owners.get(plan.getXPathText(i));
+      if (owner == null) {
+        owner = i;
+        owners.put(plan.getXPathText(i), owner);
+        aggregates[i] = new XPathAggregate();
+      }
+      aggregateOwners[i] = owner;
+      aggregates[i] = aggregates[owner];
+    }
+  }
+
+  /**
+   * The template reads the fields with one value token and an XPath made of
+   * child steps, whose token only depends on the element structure.
+   *
+   * @return the template, null when no field qualifies
+   */
+  private static VTDTemplate createTemplate(XMLTransformPlan plan) {
+    boolean[] handled = new boolean[plan.size()];
+    boolean any = false;
+    for (int i = 0; i < handled.length; i++) {
+      handled[i] = hasValueToken(plan.getField(i)) && plan.getXPath(i) != null
+          && SimpleLocationPath.parse(plan.getXPathText(i)) != null;
+      any |= handled[i];
+    }
+    return any ? new VTDTemplate(handled) : null;
+  }
+
+  /**
+   * Set the structure of the output rows, known once the first row is read.
+   */
+  public void setRowMeta(RowMetaInterface outputRowMeta, int numInputFields) throws KettleValueException {
+    this.outputRowMeta = outputRowMeta.clone();
+    // Create convert meta-data objects that will contain Date & Number formatters
+    // For String to <type> conversions, we allocate a conversion meta data row as
+    // well...
+    this.convertRowMeta = this.outputRowMeta.cloneToType(ValueMetaInterface.TYPE_STRING);
+    this.numInputFields = numInputFields;
+    for (int i = 0; i < plan.size(); i++) {
+      if (plan.getRowXPath(i) != null) {
+        plan.getRowXPath(i).setRowMeta(this.outputRowMeta, numInputFields);
+      }
+    }
+
+    // plain numeric fields with a single value skip the String, the single pass
+    // then only keeps their token
+    tokenTypes = new int[plan.size()];
+    if (reader instanceof VTDXMLReader) {
+      for (int i = 0; i < tokenTypes.length; i++) {
+        ValueMetaInterface valueMeta = this.outputRowMeta.getValueMeta(numInputFields + i);
+        if (hasValueToken(plan.getField(i)) && isPlainNumber(valueMeta)) {
+          tokenTypes[i] = valueMeta.getType();
+          if (singlePass != null && singlePass.handles(i)) {
+            singlePass.setTokenOnly(i);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true when the value of the field is the text of one token: first
+   *         node value or attribute
+   */
+  static boolean hasValueToken(XMLTransformField field) {
+    int elementType = field.getElementType();
+    int resultType = field.getResultType();
+    if (elementType == XMLTransformField.ELEMENT_TYPE_ATTRIBUT.getId()) {
+      return true;
+    }
+    if (elementType == XMLTransformField.ELEMENT_TYPE_NODE.getId()) {
+      return resultType != XMLTransformField.RESULT_TYPE_TYPE_SINGLE_NODE.getId();
+    }
+    return elementType == XMLTransformField.ELEMENT_TYPE_NODE_MULTI.getId()
+        && resultType == XMLTransformField.RESULT_TYPE_FIST_VALUE.getId();
+  }
+
+  /**
+   * @return true for an Integer, Number or BigNumber without conversion mask,
+   *         whose decimal symbol is a point
+   */
+  static boolean isPlainNumber(ValueMetaInterface valueMeta) {
+    int type = valueMeta.getType();
+    if (type != ValueMetaInterface.TYPE_INTEGER && type != ValueMetaInterface.TYPE_NUMBER
+        && type != ValueMetaInterface.TYPE_BIGNUMBER) {
+      return false;
+    }
+    if (!Utils.isEmpty(valueMeta.getConversionMask())) {
+      return false;
+    }
+    if (type == ValueMetaInterface.TYPE_INTEGER) {
+      return true;
+    }
+    String decimal = valueMeta.getDecimalSymbol();
+    if (Utils.isEmpty(decimal)) {
+      return DecimalFormatSymbols.getInstance().getDecimalSeparator() == '.';
+    }
+    return ".".equals(decimal);
+  }
+
+  /**
+   * Report the field evaluation and conversion times to the metrics of the step.
+   */
+  public void setMetrics(XMLTransformMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Look the documents up in a cache before parsing them, and cache the values
+   * extracted from the others. Files are never cached.
+   */
+  public void setResultCache(XMLResultCache cache) {
+    this.cache = xmlIsAFile ? null : cache;
+  }
+
+  /**
+   * @return true when the documents are parsed up to the prefix their fields need
+   */
+  public boolean isPrefixParsing() {
+    return documentPrefix != null;
+  }
+
+  public XMLReader getReader() {
+    return reader;
+  }
+
+  public XMLTransformPlan getPlan() {
+    return plan;
+  }
+
+  /**
+   * Extract the fields of one input row.
+   *
+   * @param r        the input row
+   * @param xmlBytes the document as bytes, or null
+   * @param xml      the document as a String when there are no bytes, or
+   *                 the path of its file, or null
+   * @param sink     receives the output rows
+   */
+  public void process(Object[] r, byte[] xmlBytes, String xml, RowSink sink) throws KettleException {
+    boolean hasXML = xmlBytes != null || xml != null;
+    // the reader counts the files it opens, from the size of the open file
+    if (metrics != null && (xmlBytes != null || (xml != null && !xmlIsAFile))) {
+      metrics.documentRead(xmlBytes != null ? xmlBytes.length : xml.length());
+    }
+    if (cache != null && hasXML) {
+      processCached(r, xmlBytes, xml, sink);
+    } else {
+      extract(r, xmlBytes, xml, sink);
+    }
+  }
+
+  /**
+   * Extract the documents of a micro-batch in one loop, the reader, the
+   * compiled plan and the scratch buffers staying hot from one document to
+   * the next.
+   *
+   * @param rows     the input rows
+   * @param xmlBytes the bytes of each document, or null
+   * @param xmls     the String of each document or the path of its file, or null
+   * @param count    the number of rows of the batch
+   * @param sink     receives the output and rejected rows in the order of the input rows
+   */
+  public void processBatch(Object[][] rows, byte[][] xmlBytes, String[] xmls, int count, RowSink sink)
+      throws KettleException {
+    for (int i = 0; i < count; i++) {
+      process(rows[i], xmlBytes[i], xmls[i], sink);
+    }
+  }
+
+  private void extract(Object[] r, byte[] xmlBytes, String xml, RowSink sink) throws KettleException {
+    boolean hasXML = xmlBytes != null || xml != null;
+    if (loopXPath != null) {
+      // one output row per node matched by the loop XPath
+      if (hasXML) {
+        try {
+          bind(xmlBytes, xml);
+          if (accept(r, sink)) {
+            processLoop(r, sink);
+          }
+        } finally {
+          reset();
+        }
+      }
+      return;
+    }
+
+    // Grab a row
+    final Object[] outputRow = RowDataUtil.resizeArray(r, outputRowMeta.size());
+    if (hasXML) {
+      try {
+        bind(xmlBytes, xml);
+        if (!accept(outputRow, sink)) {
+          return;
+        }
+        processParseFields(outputRow);
+      } finally {
+        reset();
+      }
+    }
+    sink.putRow(outputRow);
+  }
+
+  /**
+   * Test the bound document against the row filter, a rejected document gives
+   * the sink its row with empty fields.
+   *
+   * @return true when the fields of the document are to be extracted
+   */
+  private boolean accept(Object[] r, RowSink sink) throws KettleException {
+    if (rowFilter == null || reader.matches(rowFilter)) {
+      return true;
+    }
+    sink.rejectRow(RowDataUtil.resizeArray(r, outputRowMeta.size()));
+    return false;
+  }
+
+  /**
+   * Put the rows of a cached document without parsing it, or extract and cache
+   * the values of the document.
+   */
+  private void processCached(Object[] r, byte[] xmlBytes, String xml, final RowSink sink) throws KettleException {
+    List<Object[]> cached = cache.get(xmlBytes, xml);
+    if (cached == XMLResultCache.REJECTED) {
+      sink.rejectRow(RowDataUtil.createResizedCopy(r, outputRowMeta.size()));
+      return;
+    }
+    if (cached != null) {
+      for (Object[] values : cached) {
+        Object[] outputRow = RowDataUtil.createResizedCopy(r, outputRowMeta.size());
+        XMLResultCache.copyValues(values, 0, outputRow, numInputFields, values.length);
+        sink.putRow(outputRow);
+      }
+      return;
+    }
+    final List<Object[]> extracted = new ArrayList<Object[]>(1);
+    final boolean[] rejected = new boolean[1];
+    final int numFields = plan.size();
+    extract(r, xmlBytes, xml, new RowSink() {
+      @Override
+      public void putRow(Object[] row) throws KettleException {
+        Object[] values = new Object[numFields];
+        XMLResultCache.copyValues(row, numInputFields, values, 0, numFields);
+        extracted.add(values);
+        sink.putRow(row);
+      }
+
+      @Override
+      public void rejectRow(Object[] row) throws KettleException {
+        rejected[0] = true;
+        sink.rejectRow(row);
+      }
+    });
+    cache.put(xmlBytes, xml, rejected[0] ? XMLResultCache.REJECTED : extracted);
+  }
+
+  private void bind(byte[] xmlBytes, String xml) throws KettleException {
+    if (decoder != null) {
+      // the document is decoded into the buffer of the worker, not into a String
+      int length = xmlBytes != null ? decoder.decode(xmlBytes, 0, xmlBytes.length) : decoder.decode(xml);
+      reader.bind(decoder.getBuffer(), 0, length);
+    } else if (xmlBytes != null) {
+      reader.bind(xmlBytes, 0, xmlBytes.length);
+    } else if (xmlIsAFile) {
+      reader.bindFile(xml);
+    } else {
+      reader.bind(xml);
+    }
+  }
+
+  private void reset() {
+    reader.reset();
+    if (decoder != null) {
+      decoder.reset();
+    }
+  }
+
+  /**
+   * Put one row for each node matched by the loop XPath, the field XPaths are
+   * evaluated relative to that node. Rows are put as soon as their node is
+   * matched.
+   *
+   * Fields flagged as repeated take the value of the previous row of the same
+   * document when they have none.
+   */
+  public void processLoop(Object[] r, RowSink sink) throws KettleException {
+    Arrays.fill(repeatValues, null);
+    int numFields = plan.size();
+    while (reader.nextNode(loopXPath)) {
+      Object[] outputRow = RowDataUtil.createResizedCopy(r, outputRowMeta.size());
+      processParseFields(outputRow);
+      for (int i = 0; i < numFields; i++) {
+        if (!plan.getField(i).isRepeated()) {
+          continue;
+        }
+        int index = numInputFields + i;
+        if (outputRowMeta.getValueMeta(index).isNull(outputRow[index])) {
+          outputRow[index] = repeatValues[i];
+        } else {
+          repeatValues[i] = outputRow[index];
+        }
+      }
+      sink.putRow(outputRow);
+    }
+  }
+
+  public void processParseFields(Object[] outputRow) throws KettleException {
+    int currentIndex = numInputFields;
+    if (rowXPathCache != null) {
+      resolveRowXPaths(outputRow);
+    }
+    long start = metrics != null ? System.nanoTime() : 0;
+    // a huge document has no VTDNav, its fields are all evaluated by the reader
+    boolean tokensAvailable = reader instanceof VTDXMLReader && !((VTDXMLReader) reader).isHuge();
+    boolean useTemplate = template != null && tokensAvailable;
+    boolean templateMatched = false;
+    if (useTemplate) {
+      boolean learned = template.isLearned();
+      templateMatched = template.matches((VTDXMLReader) reader);
+      if (metrics != null) {
+        if (templateMatched) {
+          metrics.templateMatched();
+        } else if (learned) {
+          metrics.templateFallback();
+        }
+      }
+    }
+    boolean singlePassDone = singlePass != null && tokensAvailable && !(templateMatched && templateCoversSinglePass)
+        && singlePass.extract(((VTDXMLReader) reader).getNav(), values);
+    if (metrics != null && singlePass != null) {
+      metrics.singlePassDone(System.nanoTime() - start);
+    }
+    int numFields = plan.size();
+    Arrays.fill(aggregated, false);
+    for(int i =0; i< numFields; i++){
+      XMLTransformField xmlDataField = plan.getField(i);
+      if (aggregates[i] != null) {
+        start = metrics != null ? System.nanoTime() : 0;
+        String nodevalue = getAggregate(i).getValue(xmlDataField.getResultType());
+        if (metrics != null) {
+          metrics.fieldEvaluated(i, System.nanoTime() - start);
+        }
+        pushFieldToRow(outputRow, currentIndex, trim(nodevalue, xmlDataField));
+      } else if (useTemplate && template.handles(i)) {
+        int token = templateMatched ? template.getToken(i) : resolveValueToken(i, singlePassDone);
+        templateTokens[i] = token;
+        if (tokenTypes[i] != 0) {
+          pushTokenToRow(outputRow, currentIndex, token, tokenTypes[i], xmlDataField);
+        } else {
+          String nodevalue = token == -1 ? "" : ((VTDXMLReader) reader).getTokenString(token);
+          pushFieldToRow(outputRow, currentIndex, trim(nodevalue, xmlDataField));
+        }
+      } else if (tokenTypes[i] != 0 && tokensAvailable) {
+        pushTokenToRow(outputRow, currentIndex, resolveValueToken(i, singlePassDone), tokenTypes[i], xmlDataField);
+      } else if (singlePassDone && singlePass.handles(i)) {
+        String nodevalue = trim(values[i], xmlDataField);
+        pushFieldToRow(outputRow, currentIndex, nodevalue);
+      } else if (metrics != null) {
+        start = System.nanoTime();
+        String nodevalue = getFieldValue(xmlDataField, xpaths[i]);
+        metrics.fieldEvaluated(i, System.nanoTime() - start);
+        pushFieldToRow(outputRow, currentIndex, trim(nodevalue, xmlDataField));
+      } else {
+        processPutRow(outputRow, currentIndex, xmlDataField, xpaths[i]);
+      }
+      currentIndex++;
+    }
+    if (useTemplate && !templateMatched) {
+      template.learn((VTDXMLReader) reader, templateTokens);
+    }
+  }
+
+  /**
+   * @return the value token of a field, from the single pass when it read the
+   *         field, else by evaluating its XPath
+   */
+  private int resolveValueToken(int fieldIndex, boolean singlePassDone) throws KettleException {
+    if (singlePassDone && singlePass.handles(fieldIndex)) {
+      return singlePass.getToken(fieldIndex);
+    }
+    long start = metrics != null ? System.nanoTime() : 0;
+    int token = getValueToken(plan.getField(fieldIndex), xpaths[fieldIndex]);
+    if (metrics != null) {
+      metrics.fieldEvaluated(fieldIndex, System.nanoTime() - start);
+    }
+    return token;
+  }
+
+  /**
+   * Fill the placeholders of the row parameterized XPaths with the values of
+   * the row, each distinct XPath is compiled once while it stays in the cache.
+   */
+  private void resolveRowXPaths(Object[] row) throws KettleException {
+    for (int i = 0; i < xpaths.length; i++) {
+      RowParameterizedXPath rowXPath = plan.getRowXPath(i);
+      if (rowXPath == null) {
+        continue;
+      }
+      String text = rowXPath.resolve(outputRowMeta, row);
+      CompiledXPath compiled = rowXPathCache.get(text);
+      if (compiled == null) {
+        try {
+          compiled = reader.compile(text);
+        } catch (KettleException e) {
+          throw new KettleException(BaseMessages.getString(PKG, DEFAULT_PREFIX + ".Exception.InvalidXPath",
+              plan.getField(i).getName(), text), e);
+        }
+        rowXPathCache.put(text, compiled);
+      }
+      xpaths[i] = compiled;
+    }
+  }
+
+  public void processPutRow(Object[] outputRow, int currentIndex, XMLTransformField xmlDataField,
+      CompiledXPath xpath) throws KettleException {
+      String nodevalue = getFieldValue(xmlDataField, xpath);
+      nodevalue=trim(nodevalue, xmlDataField);
+      pushFieldToRow(outputRow, currentIndex, nodevalue);
+  }
+
+  /**
+   * Get the aggregate of a field, computed once per node for all the fields
+   * with the same XPath.
+   */
+  private XPathAggregate getAggregate(int fieldIndex) throws KettleException {
+    int owner = aggregateOwners[fieldIndex];
+    if (!aggregated[owner]) {
+      reader.aggregate(xpaths[owner], aggregates[owner]);
+      aggregated[owner] = true;
+    }
+    return aggregates[owner];
+  }
+
+  public String getFieldValue(XMLTransformField xmlDataField, CompiledXPath xpath) throws KettleException {
+    String nodevalue=null;
+    int elementType = xmlDataField.getElementType();
+    int type = xmlDataField.getResultType();
+    if(elementType == XMLTransformField.ELEMENT_TYPE_ATTRIBUT.getId()){
+      nodevalue = reader.getAttribute(xpath);
+    }else if(elementType== XMLTransformField.ELEMENT_TYPE_NODE.getId()){
+      if(type == XMLTransformField.RESULT_TYPE_TYPE_SINGLE_NODE.getId()){
+        nodevalue = reader.getFirstNodeXML(xpath);
+      }else{
+        nodevalue = reader.getFirstNodeValue(xpath);
+      }
+    }else if(elementType == XMLTransformField.ELEMENT_TYPE_NODE_MULTI.getId()){
+      if(type == XMLTransformField.RESULT_TYPE_TYPE_SINGLE_NODE.getId()){
+        nodevalue = reader.getNodesXML(xpath);
+      }else if(type== XMLTransformField.RESULT_TYPE_FIST_VALUE.getId()){
+        nodevalue = reader.getFirstNodeValue(xpath);
+      }else if(type== XMLTransformField.RESULT_TYPE_TYPE_SUM.getId()){
+        nodevalue = String.valueOf(reader.getSum(xpath));
+      }else if(type == XMLTransformField.RESULT_TYPE_VALUE_OF.getId()){
+        nodevalue = reader.getNodeValues(xpath, xmlDataField.getDemlimiter());
+      }else if(type == XMLTransformField.RESULT_TYPE_VALUE_OF_FIXED_SIZE.getId()){
+        nodevalue = reader.getNodeValuesFixedSize(xpath, xmlDataField.getDemlimiter(), xmlDataField.getLength());
+      }else if(XPathAggregate.isAggregate(type)){
+        XPathAggregate aggregate = new XPathAggregate();
+        reader.aggregate(xpath, aggregate);
+        nodevalue = aggregate.getValue(type);
+      }
+    }
+    return nodevalue;
+  }
+
+  private int getValueToken(XMLTransformField xmlDataField, CompiledXPath xpath) throws KettleException {
+    VTDXMLReader vtdReader = (VTDXMLReader) reader;
+    if (xmlDataField.getElementType() == XMLTransformField.ELEMENT_TYPE_ATTRIBUT.getId()) {
+      return vtdReader.getAttributeToken(xpath);
+    }
+    return vtdReader.getFirstNodeValueToken(xpath);
+  }
+
+  /**
+   * Parse a numeric field from its token. Values the token parser does not
+   * take (grouping symbols, entity references...) go through the String
+   * conversion as before, with the same result or error.
+   */
+  private void pushTokenToRow(Object[] outputRowData, int currentIndex, int token, int type,
+      XMLTransformField xmlDataField) throws KettleException {
+    if (token == -1) {
+      pushFieldToRow(outputRowData, currentIndex, "");
+      return;
+    }
+    VTDXMLReader vtdReader = (VTDXMLReader) reader;
+    long start = metrics != null ? System.nanoTime() : 0;
+    try {
+      outputRowData[currentIndex] = vtdReader.parseToken(token, type);
+    } catch (NumberFormatException e) {
+      pushFieldToRow(outputRowData, currentIndex, trim(vtdReader.getTokenString(token), xmlDataField));
+      return;
+    }
+    if (metrics != null) {
+      metrics.converted(System.nanoTime() - start);
+    }
+  }
+
+  public String trim(String nodevalue, XMLTransformField xmlDataField) {
+    // Do trimming
+    int trimType = xmlDataField.getTrimType();
+    if (trimType == XMLTransformField.TYPE_TRIM_LEFT.getId()) {
+      nodevalue = Const.ltrim(nodevalue);
+    } else if (trimType == XMLTransformField.TYPE_TRIM_LEFT.getId()) {
+      nodevalue = Const.rtrim(nodevalue);
+    } else if (trimType == XMLTransformField.TYPE_TRIM_LEFT.getId()) {
+      nodevalue = Const.trim(nodevalue);
+    }
+    return nodevalue;
+  }
+
+  public void pushFieldToRow(Object[] outputRowData, int currentIndex, String nodeValue)
+      throws KettleValueException {
+    ValueMetaInterface targetValueMeta = outputRowMeta.getValueMeta(currentIndex);
+    ValueMetaInterface sourceValueMeta = convertRowMeta.getValueMeta(currentIndex);
+    if (metrics == null) {
+      outputRowData[currentIndex] = targetValueMeta.convertData(sourceValueMeta, nodeValue);
+      return;
+    }
+    long start = System.nanoTime();
+    try {
+      outputRowData[currentIndex] = targetValueMeta.convertData(sourceValueMeta, nodeValue);
+    } catch (KettleValueException e) {
+      metrics.conversionFailed();
+      throw e;
+    } finally {
+      metrics.converted(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Release the reader, the worker is not used anymore afterwards.
+   */
+  public void release() {
+    reader.release();
+    if (decoder != null) {
+      decoder.release();
+    }
+  }
+}
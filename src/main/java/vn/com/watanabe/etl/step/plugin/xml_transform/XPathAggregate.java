@@ -0,0 +1,111 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Count, exact sum, minimum and maximum of the nodes matched by an XPath,
+ * gathered in one traversal so every aggregate field over the same XPath
+ * shares it.
+ */
+public class XPathAggregate {
+  /** Matched nodes */
+  private long count;
+  /** Matched nodes with a value */
+  private long valueCount;
+  private BigDecimal sum = BigDecimal.ZERO;
+  private BigDecimal min;
+  private BigDecimal max;
+
+  /**
+   * @return true for the result types computed from an aggregate
+   */
+  public static boolean isAggregate(int resultType) {
+    return resultType == XMLTransformField.RESULT_TYPE_COUNT.getId()
+        || resultType == XMLTransformField.RESULT_TYPE_MIN.getId()
+        || resultType == XMLTransformField.RESULT_TYPE_MAX.getId()
+        || resultType == XMLTransformField.RESULT_TYPE_AVERAGE.getId()
+        || resultType == XMLTransformField.RESULT_TYPE_DECIMAL_SUM.getId();
+  }
+
+  public void reset() {
+    count = 0;
+    valueCount = 0;
+    sum = BigDecimal.ZERO;
+    min = null;
+    max = null;
+  }
+
+  /**
+   * Count a matched node without value.
+   */
+  public void addNode() {
+    count++;
+  }
+
+  /**
+   * Count a matched node and its value.
+   */
+  public void add(BigDecimal value) {
+    count++;
+    valueCount++;
+    sum = sum.add(value);
+    if (min == null || value.compareTo(min) < 0) {
+      min = value;
+    }
+    if (max == null || value.compareTo(max) > 0) {
+      max = value;
+    }
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public BigDecimal getSum() {
+    return sum;
+  }
+
+  /**
+   * @return the minimum value, null when no node has a value
+   */
+  public BigDecimal getMin() {
+    return min;
+  }
+
+  /**
+   * @return the maximum value, null when no node has a value
+   */
+  public BigDecimal getMax() {
+    return max;
+  }
+
+  /**
+   * @return the average of the values, null when no node has a value
+   */
+  public BigDecimal getAverage() {
+    if (valueCount == 0) {
+      return null;
+    }
+    return sum.divide(BigDecimal.valueOf(valueCount), MathContext.DECIMAL128);
+  }
+
+  /**
+   * Get the value of an aggregate result type as text, "" when there is none.
+   */
+  public String getValue(int resultType) {
+    BigDecimal value;
+    if (resultType == XMLTransformField.RESULT_TYPE_COUNT.getId()) {
+      return String.valueOf(count);
+    } else if (resultType == XMLTransformField.RESULT_TYPE_MIN.getId()) {
+      value = min;
+    } else if (resultType == XMLTransformField.RESULT_TYPE_MAX.getId()) {
+      value = max;
+    } else if (resultType == XMLTransformField.RESULT_TYPE_AVERAGE.getId()) {
+      value = getAverage();
+    } else {
+      value = sum;
+    }
+    return value == null ? "" : value.toPlainString();
+  }
+}
@@ -0,0 +1,42 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FixedSizeJoinerTest {
+
+  @Test
+  public void cutsTheFirstValueToOneLessThanTheSize() {
+    FixedSizeJoiner joiner = new FixedSizeJoiner(",", 3);
+    assertTrue(joiner.add("abcdef"));
+    assertEquals("ab", joiner.toString());
+  }
+
+  @Test
+  public void cutsAFirstValueOfExactlyTheSize() {
+    FixedSizeJoiner joiner = new FixedSizeJoiner(",", 3);
+    joiner.add("abc");
+    assertFalse(joiner.add("d"));
+    assertEquals("ab", joiner.toString());
+  }
+
+  @Test
+  public void keepsAFirstValueUnderTheSize() {
+    FixedSizeJoiner joiner = new FixedSizeJoiner(",", 3);
+    assertTrue(joiner.add("ab"));
+    assertEquals("ab", joiner.toString());
+  }
+
+  @Test
+  public void addsValuesWhileUnderTheSize() {
+    FixedSizeJoiner joiner = new FixedSizeJoiner(",", 5);
+    assertTrue(joiner.add("ab"));
+    assertTrue(joiner.add("cd"));
+    // the delimiters are not counted
+    assertFalse(joiner.add("ef"));
+    assertEquals("ab,cd", joiner.toString());
+  }
+}
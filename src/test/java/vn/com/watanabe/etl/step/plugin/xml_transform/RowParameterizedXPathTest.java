@@ -0,0 +1,100 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.row.RowMeta;
+import org.pentaho.di.core.row.value.ValueMetaString;
+
+/**
+ * The row values must reach the XPath as string literals, whatever quotes
+ * they hold, or as names where the XPath takes a name.
+ */
+public class RowParameterizedXPathTest {
+
+  private static String literal(String value) {
+    StringBuilder builder = new StringBuilder();
+    RowParameterizedXPath.appendLiteral(builder, value);
+    return builder.toString();
+  }
+
+  private static String resolve(String xpath, String value) throws Exception {
+    RowMeta rowMeta = new RowMeta();
+    rowMeta.addValueMeta(new ValueMetaString("tenant"));
+    RowParameterizedXPath rowXPath = RowParameterizedXPath.parse(xpath);
+    rowXPath.setRowMeta(rowMeta, 1);
+    return rowXPath.resolve(rowMeta, new Object[] { value });
+  }
+
+  @Test
+  public void testLiterals() {
+    assertEquals("'acme'", literal("acme"));
+    assertEquals("''", literal(""));
+    assertEquals("\"o'neil\"", literal("o'neil"));
+    assertEquals("'say \"hi\"'", literal("say \"hi\""));
+    assertEquals("concat('a',\"'\",'b\"c')", literal("a'b\"c"));
+    assertEquals("concat(\"'\",'\"')", literal("'\""));
+    assertEquals("concat('\"',\"'\",\"'\")", literal("\"''"));
+  }
+
+  @Test
+  public void testQuotesAroundThePlaceholderAreReplaced() throws Exception {
+    assertEquals("/doc/item[@tenant='acme']", resolve("/doc/item[@tenant='?{tenant}']", "acme"));
+    assertEquals("/doc/item[@tenant='acme']", resolve("/doc/item[@tenant=\"?{tenant}\"]", "acme"));
+    assertEquals("/doc/item[@tenant='acme']", resolve("/doc/item[@tenant=?{tenant}]", "acme"));
+  }
+
+  @Test
+  public void testValueCanNotChangeTheExpression() throws Exception {
+    assertEquals("/doc/item[@tenant=\"x' or '1'='1\"]", resolve("/doc/item[@tenant='?{tenant}']", "x' or '1'='1"));
+    assertEquals("/doc/item[@tenant='']", resolve("/doc/item[@tenant='?{tenant}']", null));
+  }
+
+  @Test
+  public void testPlaceholdersNeedACloseAndAName() {
+    assertTrue(RowParameterizedXPath.hasPlaceholders("/doc/item[@tenant=?{tenant}]"));
+    assertFalse(RowParameterizedXPath.hasPlaceholders("/doc/item[@tenant=?{tenant]"));
+    assertFalse(RowParameterizedXPath.hasPlaceholders("/doc/item[@tenant='?{}']"));
+    assertFalse(RowParameterizedXPath.hasPlaceholders("/doc/item[@tenant='?{ }']"));
+    assertFalse(RowParameterizedXPath.hasPlaceholders(null));
+    assertNull(RowParameterizedXPath.parse("/doc/item[@tenant='?{}']"));
+  }
+
+  @Test
+  public void testEmptyPlaceholdersAreKept() throws Exception {
+    assertEquals("/doc/item[@a='?{}'][@tenant='acme']", resolve("/doc/item[@a='?{}'][@tenant=?{tenant}]", "acme"));
+  }
+
+  @Test
+  public void testNamePositions() throws Exception {
+    assertEquals("/doc/acme/amount", resolve("/doc/?{tenant}/amount", "acme"));
+    assertEquals("/doc/ns:acme", resolve("/doc/ns:?{tenant}", "acme"));
+    assertEquals("/doc/@acme", resolve("/doc/@?{tenant}", "acme"));
+    assertEquals("/doc/acme[2]", resolve("/doc/?{tenant}[2]", "acme"));
+    assertEquals("/doc/item[@x='a'][@y='b']/acme", resolve("/doc/item[@x='a'][@y='b']/?{tenant}", "acme"));
+    // in a function argument the value is a literal
+    assertEquals("concat('acme','-')", resolve("concat(?{tenant},'-')", "acme"));
+  }
+
+  @Test
+  public void testNameValuesAreChecked() throws Exception {
+    assertTrue(RowParameterizedXPath.isNCName("_a-1.b\u00e9"));
+    assertFalse(RowParameterizedXPath.isNCName("1a"));
+    assertFalse(RowParameterizedXPath.isNCName("p:a"));
+    assertFalse(RowParameterizedXPath.isNCName("*"));
+    assertFalse(RowParameterizedXPath.isNCName(""));
+    for (String value : new String[] { "a[1]", "a | /doc", "", null }) {
+      try {
+        resolve("/doc/?{tenant}/amount", value);
+        fail("inserted " + value + " as a name");
+      } catch (KettleValueException expected) {
+        // rejected
+      }
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class SimpleLocationPathTest {
+  @Test
+  public void parsesChildStepsWithPositions() {
+    SimpleLocationPath path = SimpleLocationPath.parse("/a/b[2]/c");
+    assertEquals(3, path.depth());
+    assertEquals("a", path.getName(0));
+    assertEquals("b", path.getName(1));
+    assertEquals(0, path.getPosition(0));
+    assertEquals(2, path.getPosition(1));
+    assertEquals(0, path.getPosition(2));
+    assertFalse(path.isAttribute());
+  }
+
+  @Test
+  public void parsesTrailingAttribute() {
+    SimpleLocationPath path = SimpleLocationPath.parse("/order/line[1]/@id");
+    assertEquals(2, path.depth());
+    assertTrue(path.isAttribute());
+    assertEquals("id", path.getAttribute());
+  }
+
+  @Test
+  public void detectsPrefixes() {
+    assertTrue(SimpleLocationPath.parse("/ns:a/b").hasPrefix());
+    assertTrue(SimpleLocationPath.parse("/a/@xml:lang").hasPrefix());
+    assertFalse(SimpleLocationPath.parse("/a/b").hasPrefix());
+  }
+
+  @Test
+  public void rejectsOtherExpressions() {
+    assertNull(SimpleLocationPath.parse(null));
+    assertNull(SimpleLocationPath.parse("a/b"));
+    assertNull(SimpleLocationPath.parse("//b"));
+    assertNull(SimpleLocationPath.parse("/a/b[@id='1']"));
+    assertNull(SimpleLocationPath.parse("/a/b[0]"));
+    assertNull(SimpleLocationPath.parse("/a/b[last()]"));
+    assertNull(SimpleLocationPath.parse("/a/@id/b"));
+    assertNull(SimpleLocationPath.parse("/a/text()"));
+    assertNull(SimpleLocationPath.parse("/a | /b"));
+  }
+}
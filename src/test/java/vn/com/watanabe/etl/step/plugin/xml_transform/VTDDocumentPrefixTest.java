@@ -0,0 +1,189 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.variables.Variables;
+
+/**
+ * The closed prefix of a document must give the first values the whole
+ * document gives, and be well formed so VTDGen parses it.
+ */
+public class VTDDocumentPrefixTest {
+  private List<XMLTransformField> fields;
+  private String rowFilter;
+
+  @Before
+  public void setUp() {
+    fields = new ArrayList<XMLTransformField>();
+    rowFilter = null;
+  }
+
+  @Test
+  public void positionalStepsCountPerParent() throws Exception {
+    node("/a/b[2]/c");
+    String xml = "<a><b><c>1</c></b><b><d/><c>2</c><c>3</c></b><b><c>4</c></b></a>";
+    assertEquals("<a><b><c>1</c></b><b><d/><c>2</c></b></a>", closedPrefix(xml));
+    assertSameValues(xml);
+  }
+
+  @Test
+  public void attributeIsTakenFromTheFirstElementHavingIt() throws Exception {
+    attribute("/a/b/@x");
+    String xml = "<a><b y=\"0\"/><b>no</b><b x=\"1\"/><b x=\"2\"/></a>";
+    assertEquals("<a><b y=\"0\"/><b>no</b><b x=\"1\"/></a>", closedPrefix(xml));
+    assertSameValues(xml);
+  }
+
+  @Test
+  public void commentsCdataAndDoctypeAreSkipped() throws Exception {
+    node("/a/b");
+    String xml = "<?xml version=\"1.0\"?>"
+        + "<!DOCTYPE a [<!ELEMENT a ANY><!ENTITY e \"<b>no</b>\">]>"
+        + "<a><!-- <b>no</b> --><![CDATA[<b>no</b>]]><b>yes</b><b>later</b></a>";
+    assertEquals(xml.substring(0, xml.indexOf("<b>later")) + "</a>", closedPrefix(xml));
+    assertSameValues(xml);
+  }
+
+  @Test
+  public void greaterThanInAttributeValues() throws Exception {
+    attribute("/a/b/@y");
+    node("/a/b");
+    String xml = "<a><b x=\"1>2\" y='>'>v</b><b>w</b></a>";
+    assertEquals("<a><b x=\"1>2\" y='>'>v</b></a>", closedPrefix(xml));
+    assertSameValues(xml);
+  }
+
+  @Test
+  public void selfClosingElements() throws Exception {
+    node("/a/b");
+    node("/a/c/d");
+    String xml = "<a><b/><c><x/><d/></c><b>t</b></a>";
+    assertEquals("<a><b/><c><x/><d/></c></a>", closedPrefix(xml));
+    assertSameValues(xml);
+  }
+
+  @Test
+  public void openElementsAreClosed() throws Exception {
+    attribute("/a/b/c/@id");
+    String xml = "<a><b><c id=\"7\"><d>deep</d></c></b></a>";
+    assertEquals("<a><b><c id=\"7\"></c></b></a>", closedPrefix(xml));
+    assertSameValues(xml);
+  }
+
+  @Test
+  public void rowFilterIsScannedToo() throws Exception {
+    node("/a/b");
+    rowFilter = "/a/c";
+    String xml = "<a><b>1</b><d/><c/><b>2</b></a>";
+    assertEquals("<a><b>1</b><d/><c/></a>", closedPrefix(xml));
+  }
+
+  @Test
+  public void noMatchNeedsTheWholeDocument() throws Exception {
+    node("/a/b");
+    node("/a/z");
+    assertEquals(-1, scan(create(), "<a><b>1</b></a>"));
+    // cut before the end of the first match
+    assertEquals(-1, scan(create(), "<a><b>1</b"));
+    assertEquals(-1, scan(create(), "<a><b x=\"1>"));
+  }
+
+  @Test
+  public void namespaceDeclarationsNeedTheWholeDocument() throws Exception {
+    node("/a/b");
+    assertEquals(-1, scan(create(), "<a xmlns:p=\"urn:x\"><b>1</b></a>"));
+    assertEquals(-1, scan(create(), "<a><b xmlns=\"urn:x\">1</b><b xmlns=\"\">2</b></a>"));
+    assertEquals(-1, scan(create(), "<a><b p:x='1' xmlns:p='urn:x'>1</b></a>"));
+    // declarations after the prefix are not read
+    String xml = "<a><b>1</b><c xmlns=\"urn:x\"/></a>";
+    assertEquals(xml.indexOf("<c"), scan(create(), xml));
+    // attributes starting with xmlns are not declarations
+    xml = "<a xmlnsx=\"1\"><b>1</b></a>";
+    assertEquals(xml.indexOf("</a>"), scan(create(), xml));
+  }
+
+  @Test
+  public void scannerIsReusedFromDocumentToDocument() throws Exception {
+    node("/a/b[2]");
+    VTDDocumentPrefix prefix = create();
+    assertEquals(-1, scan(prefix, "<a><b>1</b></a>"));
+    String xml = "<a><b>1</b><b>2</b><b>3</b></a>";
+    assertEquals(xml.indexOf("<b>3"), scan(prefix, xml));
+  }
+
+  @Test
+  public void unsupportedPlansHaveNoScanner() throws Exception {
+    XMLTransformField values = field("/a/b", XMLTransformField.ELEMENT_TYPE_NODE_MULTI.getId());
+    values.setResultType(XMLTransformField.RESULT_TYPE_VALUE_OF.getId());
+    assertNull(VTDDocumentPrefix.create(plan(), null));
+    fields.clear();
+    node("/a/b[@x='1']");
+    assertNull(VTDDocumentPrefix.create(plan(), null));
+  }
+
+  private XMLTransformField node(String xpath) {
+    return field(xpath, XMLTransformField.ELEMENT_TYPE_NODE.getId());
+  }
+
+  private XMLTransformField attribute(String xpath) {
+    return field(xpath, XMLTransformField.ELEMENT_TYPE_ATTRIBUT.getId());
+  }
+
+  private XMLTransformField field(String xpath, int elementType) {
+    XMLTransformField field = new XMLTransformField("f" + fields.size());
+    field.setXPath(xpath);
+    field.setElementType(elementType);
+    field.setResultType(XMLTransformField.RESULT_TYPE_VALUE_OF.getId());
+    fields.add(field);
+    return field;
+  }
+
+  private XMLTransformPlan plan() throws Exception {
+    return new XMLTransformPlan(fields, Collections.<String, String>emptyMap(), new Variables(), new VTDXMLReader());
+  }
+
+  private VTDDocumentPrefix create() throws Exception {
+    VTDDocumentPrefix prefix = VTDDocumentPrefix.create(plan(), rowFilter);
+    assertNotNull(prefix);
+    return prefix;
+  }
+
+  private static int scan(VTDDocumentPrefix prefix, String xml) {
+    byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+    return prefix.scan(bytes, 0, bytes.length);
+  }
+
+  private String closedPrefix(String xml) throws Exception {
+    VTDDocumentPrefix prefix = create();
+    byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+    int prefixLength = prefix.scan(bytes, 0, bytes.length);
+    byte[] closed = new byte[prefix.getClosedLength(prefixLength)];
+    int length = prefix.close(bytes, 0, prefixLength, closed);
+    assertEquals(closed.length, length);
+    return new String(closed, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private void assertSameValues(String xml) throws Exception {
+    VTDXMLReader whole = new VTDXMLReader();
+    whole.bind(xml);
+    VTDXMLReader prefixed = new VTDXMLReader();
+    prefixed.bind(closedPrefix(xml));
+    for (XMLTransformField field : fields) {
+      String xpath = field.getXPath();
+      if (field.getElementType() == XMLTransformField.ELEMENT_TYPE_ATTRIBUT.getId()) {
+        assertEquals(xpath, whole.getAttribute(xpath), prefixed.getAttribute(xpath));
+      } else {
+        assertEquals(xpath, whole.getFirstNodeValue(xpath), prefixed.getFirstNodeValue(xpath));
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A file parsed in place by the huge document parser must give the results
+ * of the same document parsed in memory.
+ */
+public class VTDHugeDocumentTest {
+  private static final String DOCUMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+      + "<order id=\"o1\">"
+      + "<line no=\"1\"><sku>A</sku><qty>2</qty></line>"
+      + "<line no=\"2\"><sku>B</sku><qty>5.5</qty></line>"
+      + "<line><sku>été</sku><qty/></line>"
+      + "</order>";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private VTDXMLReader heap;
+  private VTDXMLReader huge;
+
+  @Before
+  public void setUp() throws Exception {
+    File file = folder.newFile("order.xml");
+    Files.write(file.toPath(), DOCUMENT.getBytes(StandardCharsets.UTF_8));
+    heap = new VTDXMLReader();
+    heap.bindFile(file.getPath());
+    huge = new VTDXMLReader();
+    huge.setHugeDocumentThreshold(0);
+    huge.bindFile(file.getPath());
+  }
+
+  @After
+  public void tearDown() {
+    heap.reset();
+    huge.reset();
+  }
+
+  @Test
+  public void bindsThroughTheHugeDocumentParser() {
+    assertFalse(heap.isHuge());
+    assertTrue(huge.isHuge());
+  }
+
+  @Test
+  public void valuesMatchTheInMemoryDocument() throws Exception {
+    String[] xpaths = { "/order/line/sku", "/order/line[3]/sku", "/order/line[3]/qty", "/order/missing" };
+    for (String xpath : xpaths) {
+      assertEquals(xpath, heap.getFirstNodeValue(xpath), huge.getFirstNodeValue(xpath));
+      assertEquals(xpath, heap.getFirstNodeValue(heap.compile(xpath)),
+          huge.getFirstNodeValue(huge.compile(xpath)));
+      assertEquals(xpath, heap.getNodeValues(xpath, "|"), huge.getNodeValues(xpath, "|"));
+      assertEquals(xpath, heap.getNodeValuesFixedSize(xpath, "|", 3), huge.getNodeValuesFixedSize(xpath, "|", 3));
+    }
+    assertEquals("A|B|été", huge.getNodeValues("/order/line/sku", "|"));
+  }
+
+  @Test
+  public void attributesMatchTheInMemoryDocument() throws Exception {
+    String[] xpaths = { "/order/@id", "/order/line/@no", "/order/line[2]/@no", "/order/line[3]/@no" };
+    for (String xpath : xpaths) {
+      assertEquals(xpath, heap.getAttribute(xpath), huge.getAttribute(xpath));
+    }
+  }
+
+  @Test
+  public void fragmentsMatchTheInMemoryDocument() throws Exception {
+    assertEquals(heap.getFirstNodeXML("/order/line[3]"), huge.getFirstNodeXML("/order/line[3]"));
+    assertEquals(heap.getNodesXML("/order/line/sku"), huge.getNodesXML("/order/line/sku"));
+    assertEquals("<row><sku>A</sku><sku>B</sku><sku>été</sku></row>",
+        huge.getNodesXML("/order/line/sku"));
+  }
+
+  @Test
+  public void aggregatesMatchTheInMemoryDocument() throws Exception {
+    XPathAggregate expected = new XPathAggregate();
+    XPathAggregate actual = new XPathAggregate();
+    heap.aggregate("/order/line/qty", expected);
+    huge.aggregate("/order/line/qty", actual);
+    assertEquals(expected.getCount(), actual.getCount());
+    assertEquals(expected.getSum(), actual.getSum());
+    assertEquals(heap.getSum("/order/line/qty"), huge.getSum("/order/line/qty"));
+  }
+
+  @Test
+  public void matchesAndLoopsLikeTheInMemoryDocument() throws Exception {
+    CompiledXPath filter = huge.compile("/order[@id='o1']");
+    assertEquals(heap.matches(heap.compile("/order[@id='o1']")), huge.matches(filter));
+    CompiledXPath loop = huge.compile("/order/line");
+    int nodes = 0;
+    while (huge.nextNode(loop)) {
+      nodes++;
+    }
+    assertEquals(3, nodes);
+  }
+}
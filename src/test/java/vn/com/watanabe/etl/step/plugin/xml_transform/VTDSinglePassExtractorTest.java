@@ -0,0 +1,182 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.pentaho.di.core.variables.Variables;
+
+/**
+ * The single pass must give the values the XPath engine gives for the same
+ * fields, each field is checked against its AutoPilot evaluation.
+ */
+public class VTDSinglePassExtractorTest {
+  private static final String DOCUMENT = "<?xml version=\"1.0\"?>"
+      + "<order id=\"o1\">"
+      + "<!-- lines follow --><line no=\"1\"><sku>A</sku><qty>2</qty></line>"
+      + "<note>first</note>"
+      + "<line no=\"2\"><sku>B</sku><qty><![CDATA[5]]></qty></line>"
+      + "<line><sku>C</sku><qty/></line>"
+      + "<note>second</note>"
+      + "<empty></empty>"
+      + "</order>";
+
+  private VTDXMLReader reader;
+  private List<XMLTransformField> fields;
+  private XMLTransformPlan plan;
+
+  @Before
+  public void setUp() {
+    reader = new VTDXMLReader();
+    fields = new ArrayList<XMLTransformField>();
+  }
+
+  @Test
+  public void firstValuesMatchTheXPathEngine() throws Exception {
+    node("/order/line/sku");
+    node("/order/line[2]/sku");
+    node("/order/line[3]/sku");
+    node("/order/line[2]/qty");
+    node("/order/line[3]/qty");
+    node("/order/empty");
+    assertSameAsXPath(DOCUMENT);
+  }
+
+  @Test
+  public void attributesMatchTheXPathEngine() throws Exception {
+    attribute("/order/@id");
+    attribute("/order/line/@no");
+    attribute("/order/line[2]/@no");
+    // the third line has no attribute, the value is not taken from another line
+    attribute("/order/line[3]/@no");
+    attribute("/order/@missing");
+    assertSameAsXPath(DOCUMENT);
+  }
+
+  @Test
+  public void missingNodesMatchTheXPathEngine() throws Exception {
+    node("/order/missing");
+    node("/order/line[4]/sku");
+    node("/other/line/sku");
+    attribute("/order/line[9]/@no");
+    values("/order/missing/sku");
+    assertSameAsXPath(DOCUMENT);
+  }
+
+  @Test
+  public void allValuesMatchTheXPathEngine() throws Exception {
+    values("/order/line/sku");
+    values("/order/note");
+    values("/order/line/qty");
+    assertSameAsXPath(DOCUMENT);
+  }
+
+  @Test
+  public void positionsCountPerParent() throws Exception {
+    node("/r/g[2]/v[2]");
+    values("/r/g/v[1]");
+    assertSameAsXPath("<r><g><v>a</v><v>b</v></g><g><v>c</v><v>d</v></g><g><v>e</v></g></r>");
+  }
+
+  @Test
+  public void defaultNamespaceIsLeftToTheXPathEngine() throws Exception {
+    node("/order/line/sku");
+    VTDSinglePassExtractor extractor = bind("<order xmlns=\"urn:orders\"><line><sku>A</sku></line></order>");
+    assertFalse(extractor.extract(reader.getNav(), new String[fields.size()]));
+    // the XPath engine does not match unprefixed names in a default namespace either
+    assertEquals("", reader.getFirstNodeValue("/order/line/sku"));
+  }
+
+  @Test
+  public void prefixedNamespacesStillMatchUnprefixedPaths() throws Exception {
+    node("/order/line/sku");
+    assertSameAsXPath("<order xmlns:x=\"urn:x\"><line x:a=\"1\"><sku>A</sku></line></order>");
+  }
+
+  @Test
+  public void complexFieldsAreNotHandled() throws Exception {
+    node("/order/line[@no='2']/sku");
+    XMLTransformField fragment = node("/order/line");
+    fragment.setResultType(XMLTransformField.RESULT_TYPE_TYPE_SINGLE_NODE.getId());
+    node("/order/line/sku");
+    VTDSinglePassExtractor extractor = bind(DOCUMENT);
+    assertFalse(extractor.handles(0));
+    assertFalse(extractor.handles(1));
+    assertTrue(extractor.handles(2));
+  }
+
+  @Test
+  public void tokenOnlyFieldsKeepTheirToken() throws Exception {
+    node("/order/line[2]/sku");
+    node("/order/missing");
+    VTDSinglePassExtractor extractor = bind(DOCUMENT);
+    assertTrue(extractor.setTokenOnly(0));
+    assertTrue(extractor.setTokenOnly(1));
+    String[] values = new String[2];
+    assertTrue(extractor.extract(reader.getNav(), values));
+    assertEquals("B", reader.getTokenString(extractor.getToken(0)));
+    assertEquals(-1, extractor.getToken(1));
+  }
+
+  private XMLTransformField node(String xpath) {
+    return field(xpath, XMLTransformField.ELEMENT_TYPE_NODE.getId(), XMLTransformField.RESULT_TYPE_VALUE_OF.getId());
+  }
+
+  private XMLTransformField attribute(String xpath) {
+    return field(xpath, XMLTransformField.ELEMENT_TYPE_ATTRIBUT.getId(), XMLTransformField.RESULT_TYPE_VALUE_OF.getId());
+  }
+
+  private XMLTransformField values(String xpath) {
+    XMLTransformField field = field(xpath, XMLTransformField.ELEMENT_TYPE_NODE_MULTI.getId(),
+        XMLTransformField.RESULT_TYPE_VALUE_OF.getId());
+    field.setDemlimiter("|");
+    return field;
+  }
+
+  private XMLTransformField field(String xpath, int elementType, int resultType) {
+    XMLTransformField field = new XMLTransformField("f" + fields.size());
+    field.setXPath(xpath);
+    field.setElementType(elementType);
+    field.setResultType(resultType);
+    fields.add(field);
+    return field;
+  }
+
+  private VTDSinglePassExtractor bind(String xml) throws Exception {
+    plan = new XMLTransformPlan(fields, Collections.<String, String>emptyMap(), new Variables(), reader);
+    VTDSinglePassExtractor extractor = VTDSinglePassExtractor.create(plan);
+    assertNotNull(extractor);
+    byte[] bytes = xml.getBytes(StandardCharsets.UTF_8);
+    reader.bind(bytes, 0, bytes.length);
+    return extractor;
+  }
+
+  private void assertSameAsXPath(String xml) throws Exception {
+    VTDSinglePassExtractor extractor = bind(xml);
+    String[] values = new String[fields.size()];
+    assertTrue(extractor.extract(reader.getNav(), values));
+    for (int i = 0; i < fields.size(); i++) {
+      XMLTransformField field = fields.get(i);
+      assertTrue(field.getXPath(), extractor.handles(i));
+      assertEquals(field.getXPath(), expected(field, plan.getXPath(i)), values[i]);
+    }
+  }
+
+  private String expected(XMLTransformField field, CompiledXPath xpath) throws Exception {
+    if (field.getElementType() == XMLTransformField.ELEMENT_TYPE_ATTRIBUT.getId()) {
+      return reader.getAttribute(xpath);
+    }
+    if (field.getElementType() == XMLTransformField.ELEMENT_TYPE_NODE_MULTI.getId()) {
+      return reader.getNodeValues(xpath, field.getDemlimiter());
+    }
+    return reader.getFirstNodeValue(xpath);
+  }
+}
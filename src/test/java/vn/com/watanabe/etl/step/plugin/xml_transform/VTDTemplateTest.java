@@ -0,0 +1,56 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * A document must match the template only with the learned layout, names
+ * compared byte for byte.
+ */
+public class VTDTemplateTest {
+  private static final int[] TOKENS = { 3 };
+
+  private static VTDTemplate learned(VTDXMLReader reader, String xml) throws Exception {
+    VTDTemplate template = new VTDTemplate(new boolean[] { true });
+    for (int i = 0; i < VTDTemplate.CONFIRMATIONS; i++) {
+      reader.bind(xml);
+      template.learn(reader, TOKENS);
+    }
+    assertTrue(template.isLearned());
+    return template;
+  }
+
+  @Test
+  public void sameLayoutWithOtherValuesMatches() throws Exception {
+    VTDXMLReader reader = new VTDXMLReader();
+    VTDTemplate template = learned(reader, "<r><Aa x=\"1\">1</Aa></r>");
+    reader.bind("<r><Aa x=\"22\">value</Aa></r>");
+    assertTrue(template.matches(reader));
+  }
+
+  @Test
+  public void namesWithTheSameHashDoNotMatch() throws Exception {
+    VTDXMLReader reader = new VTDXMLReader();
+    // "Aa" and "BB" have the same String hash code
+    VTDTemplate template = learned(reader, "<r><Aa>1</Aa></r>");
+    reader.bind("<r><BB>1</BB></r>");
+    assertFalse(template.matches(reader));
+    template = learned(reader, "<r><b Aa=\"1\">1</b></r>");
+    reader.bind("<r><b BB=\"1\">1</b></r>");
+    assertFalse(template.matches(reader));
+  }
+
+  @Test
+  public void otherStructuresDoNotMatch() throws Exception {
+    VTDXMLReader reader = new VTDXMLReader();
+    VTDTemplate template = learned(reader, "<r><a>1</a><b>2</b></r>");
+    reader.bind("<r><a>1<b>2</b></a></r>");
+    assertFalse(template.matches(reader));
+    reader.bind("<r><a>1</a><c>2</c></r>");
+    assertFalse(template.matches(reader));
+    reader.bind("<r><a>1</a><b>2</b></r>");
+    assertTrue(template.matches(reader));
+  }
+}
@@ -0,0 +1,251 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+import org.pentaho.di.core.exception.KettleException;
+
+/**
+ * The decoder must give back what the JDK encoders wrote, and reject
+ * corrupted data and documents inflating over the maximum size.
+ */
+public class XMLInputDecoderTest {
+  private static final int RETAINED = 64 * 1024;
+  private static final int MAX = 1024 * 1024;
+
+  private static final byte[] DOCUMENT = document(2000);
+
+  private static byte[] document(int rows) {
+    StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><rows>");
+    for (int i = 0; i < rows; i++) {
+      xml.append("<row id=\"").append(i).append("\"><name>n\u00e9").append(i % 17).append("</name></row>");
+    }
+    return xml.append("</rows>").toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static XMLInputDecoder decoder(BaseSelectList.Item encoding) {
+    return new XMLInputDecoder(encoding.getId(), RETAINED, MAX);
+  }
+
+  private static byte[] decode(XMLInputDecoder decoder, byte[] input) throws KettleException {
+    int length = decoder.decode(input, 0, input.length);
+    return Arrays.copyOf(decoder.getBuffer(), length);
+  }
+
+  private static byte[] decode(XMLInputDecoder decoder, String input) throws KettleException {
+    int length = decoder.decode(input);
+    return Arrays.copyOf(decoder.getBuffer(), length);
+  }
+
+  @Test
+  public void base64RoundTrips() throws Exception {
+    XMLInputDecoder decoder = decoder(XMLTransformMetaData.INPUT_ENCODING_BASE64);
+    Random random = new Random(42);
+    for (int size = 0; size < 64; size++) {
+      byte[] bytes = new byte[size];
+      random.nextBytes(bytes);
+      String encoded = Base64.getEncoder().encodeToString(bytes);
+      assertArrayEquals(encoded, bytes, decode(decoder, encoded));
+      assertArrayEquals(encoded, bytes, decode(decoder, encoded.getBytes(StandardCharsets.US_ASCII)));
+      String unpadded = Base64.getEncoder().withoutPadding().encodeToString(bytes);
+      assertArrayEquals(unpadded, bytes, decode(decoder, unpadded));
+      String urlSafe = Base64.getUrlEncoder().encodeToString(bytes);
+      assertArrayEquals(urlSafe, bytes, decode(decoder, urlSafe));
+    }
+    // line breaks every 76 characters
+    String mime = Base64.getMimeEncoder().encodeToString(DOCUMENT);
+    assertArrayEquals(DOCUMENT, decode(decoder, mime));
+    assertArrayEquals(DOCUMENT, decode(decoder, mime.getBytes(StandardCharsets.US_ASCII)));
+  }
+
+  @Test
+  public void invalidBase64IsRejected() throws Exception {
+    XMLInputDecoder decoder = decoder(XMLTransformMetaData.INPUT_ENCODING_BASE64);
+    assertRejected(decoder, "QUJD*EVG");
+    assertRejected(decoder, "QUJDR");
+  }
+
+  @Test
+  public void gzipRoundTrips() throws Exception {
+    byte[] gzipped = gzip(DOCUMENT);
+    assertArrayEquals(DOCUMENT, decode(decoder(XMLTransformMetaData.INPUT_ENCODING_GZIP), gzipped));
+    String encoded = Base64.getEncoder().encodeToString(gzipped);
+    assertArrayEquals(DOCUMENT, decode(decoder(XMLTransformMetaData.INPUT_ENCODING_BASE64_GZIP), encoded));
+    // the buffers are reused from value to value
+    XMLInputDecoder decoder = decoder(XMLTransformMetaData.INPUT_ENCODING_GZIP);
+    byte[] small = "<a>1</a>".getBytes(StandardCharsets.UTF_8);
+    assertArrayEquals(DOCUMENT, decode(decoder, gzipped));
+    assertArrayEquals(small, decode(decoder, gzip(small)));
+    assertArrayEquals(DOCUMENT, decode(decoder, gzipped));
+  }
+
+  @Test
+  public void gzipOptionalHeadersAreSkipped() throws Exception {
+    XMLInputDecoder decoder = decoder(XMLTransformMetaData.INPUT_ENCODING_GZIP);
+    // FEXTRA and FNAME
+    assertArrayEquals(DOCUMENT, decode(decoder, gzipWithHeaders(DOCUMENT, 4 | 8)));
+    // FHCRC, FEXTRA, FNAME and FCOMMENT
+    assertArrayEquals(DOCUMENT, decode(decoder, gzipWithHeaders(DOCUMENT, 2 | 4 | 8 | 16)));
+  }
+
+  @Test
+  public void corruptedGzipIsRejected() throws Exception {
+    XMLInputDecoder decoder = decoder(XMLTransformMetaData.INPUT_ENCODING_GZIP);
+    byte[] gzipped = gzip(DOCUMENT);
+
+    byte[] badCrc = gzipped.clone();
+    badCrc[badCrc.length - 8] ^= 1;
+    assertRejected(decoder, badCrc);
+
+    byte[] badSize = gzipped.clone();
+    badSize[badSize.length - 4] ^= 1;
+    assertRejected(decoder, badSize);
+
+    assertRejected(decoder, Arrays.copyOf(gzipped, gzipped.length - 4));
+    assertRejected(decoder, Arrays.copyOf(gzipped, gzipped.length / 2));
+
+    byte[] badMagic = gzipped.clone();
+    badMagic[0] = 0;
+    assertRejected(decoder, badMagic);
+    // the decoder is still usable
+    assertArrayEquals(DOCUMENT, decode(decoder, gzipped));
+  }
+
+  @Test
+  public void deflateRoundTrips() throws Exception {
+    XMLInputDecoder decoder = decoder(XMLTransformMetaData.INPUT_ENCODING_DEFLATE);
+    for (int level : new int[] { Deflater.NO_COMPRESSION, Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION,
+        Deflater.BEST_COMPRESSION }) {
+      // zlib wrapped, then raw deflate data
+      assertArrayEquals("zlib " + level, DOCUMENT, decode(decoder, deflate(DOCUMENT, level, false)));
+      assertArrayEquals("raw " + level, DOCUMENT, decode(decoder, deflate(DOCUMENT, level, true)));
+    }
+  }
+
+  @Test
+  public void truncatedDeflateIsRejected() throws Exception {
+    XMLInputDecoder decoder = decoder(XMLTransformMetaData.INPUT_ENCODING_DEFLATE);
+    byte[] zlib = deflate(DOCUMENT, Deflater.DEFAULT_COMPRESSION, false);
+    assertRejected(decoder, Arrays.copyOf(zlib, zlib.length / 2));
+    byte[] raw = deflate(DOCUMENT, Deflater.DEFAULT_COMPRESSION, true);
+    assertRejected(decoder, Arrays.copyOf(raw, raw.length / 2));
+  }
+
+  @Test
+  public void inflatedSizeIsBounded() throws Exception {
+    // 64 MB of spaces compress to about 64 KB
+    byte[] bomb = new byte[64 * 1024 * 1024];
+    Arrays.fill(bomb, (byte) ' ');
+    assertRejected(decoder(XMLTransformMetaData.INPUT_ENCODING_GZIP), gzip(bomb));
+    assertRejected(decoder(XMLTransformMetaData.INPUT_ENCODING_DEFLATE),
+        deflate(bomb, Deflater.BEST_COMPRESSION, false));
+    byte[] underMax = Arrays.copyOf(bomb, MAX - 1);
+    assertArrayEquals(underMax, decode(decoder(XMLTransformMetaData.INPUT_ENCODING_GZIP), gzip(underMax)));
+  }
+
+  @Test
+  public void compressedDataNeedsBinaryValues() {
+    assertRejected(decoder(XMLTransformMetaData.INPUT_ENCODING_GZIP), "H4sI");
+  }
+
+  private static void assertRejected(XMLInputDecoder decoder, byte[] input) {
+    try {
+      decoder.decode(input, 0, input.length);
+      fail("decoded invalid data");
+    } catch (KettleException expected) {
+      // rejected
+    }
+  }
+
+  private static void assertRejected(XMLInputDecoder decoder, String input) {
+    try {
+      decoder.decode(input);
+      fail("decoded invalid data");
+    } catch (KettleException expected) {
+      // rejected
+    }
+  }
+
+  private static byte[] gzip(byte[] data) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+      gzip.write(data);
+    }
+    return out.toByteArray();
+  }
+
+  private static byte[] deflate(byte[] data, int level, boolean nowrap) {
+    Deflater deflater = new Deflater(level, nowrap);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] chunk = new byte[8192];
+      while (!deflater.finished()) {
+        out.write(chunk, 0, deflater.deflate(chunk));
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Write a gzip member with the optional header fields of the flags, as
+   * GZIPOutputStream never does.
+   */
+  private static byte[] gzipWithHeaders(byte[] data, int flags) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(0x1f);
+    out.write(0x8b);
+    out.write(8);
+    out.write(flags);
+    // modification time, extra flags, OS
+    out.write(new byte[] { 1, 2, 3, 4, 0, 3 }, 0, 6);
+    if ((flags & 4) != 0) {
+      byte[] extra = { 'A', 'B', 4, 0, 9, 9, 9, 9 };
+      out.write(extra.length);
+      out.write(0);
+      out.write(extra, 0, extra.length);
+    }
+    if ((flags & 8) != 0) {
+      byte[] name = "rows.xml".getBytes(StandardCharsets.ISO_8859_1);
+      out.write(name, 0, name.length);
+      out.write(0);
+    }
+    if ((flags & 16) != 0) {
+      byte[] comment = "exported rows".getBytes(StandardCharsets.ISO_8859_1);
+      out.write(comment, 0, comment.length);
+      out.write(0);
+    }
+    if ((flags & 2) != 0) {
+      // the header CRC is not checked by the decoder
+      out.write(0x12);
+      out.write(0x34);
+    }
+    byte[] deflated = deflate(data, Deflater.DEFAULT_COMPRESSION, true);
+    out.write(deflated, 0, deflated.length);
+    CRC32 crc = new CRC32();
+    crc.update(data);
+    writeInt(out, (int) crc.getValue());
+    writeInt(out, data.length);
+    return out.toByteArray();
+  }
+
+  private static void writeInt(ByteArrayOutputStream out, int value) {
+    out.write(value);
+    out.write(value >> 8);
+    out.write(value >> 16);
+    out.write(value >> 24);
+  }
+}
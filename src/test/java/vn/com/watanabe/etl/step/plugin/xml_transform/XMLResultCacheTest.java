@@ -0,0 +1,108 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+public class XMLResultCacheTest {
+
+  private static byte[] doc(String xml) {
+    return xml.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static List<Object[]> values(Object... values) {
+    return Collections.singletonList(values);
+  }
+
+  @Test
+  public void returnsTheValuesOfAnEqualDocument() {
+    XMLResultCache cache = new XMLResultCache(1024 * 1024);
+    cache.put(doc("<a>1</a>"), null, values("1"));
+    // the cache keeps its own copy of the bytes
+    List<Object[]> cached = cache.get(doc("<a>1</a>"), null);
+    assertNotNull(cached);
+    assertEquals("1", cached.get(0)[0]);
+    assertNull(cache.get(doc("<a>2</a>"), null));
+    cache.put(null, "<b>1</b>", values("b"));
+    assertEquals("b", cache.get(null, "<b>1</b>").get(0)[0]);
+    assertEquals(1, cache.getMisses());
+    assertEquals(2, cache.getHits());
+  }
+
+  @Test
+  public void evictsTheLeastRecentlyUsedOverTheBudget() {
+    XMLResultCache sizing = new XMLResultCache(1024 * 1024);
+    sizing.put(doc("<a>1</a>"), null, values("1"));
+    sizing.put(doc("<a>2</a>"), null, values("2"));
+    // room for exactly two entries of this size
+    XMLResultCache cache = new XMLResultCache(sizing.getBytes());
+    cache.put(doc("<a>1</a>"), null, values("1"));
+    cache.put(doc("<a>2</a>"), null, values("2"));
+    assertNotNull(cache.get(doc("<a>1</a>"), null));
+    cache.put(doc("<a>3</a>"), null, values("3"));
+    assertEquals(1, cache.getEvictions());
+    assertEquals(2, cache.getEntries());
+    assertNull(cache.get(doc("<a>2</a>"), null));
+    assertNotNull(cache.get(doc("<a>1</a>"), null));
+    assertNotNull(cache.get(doc("<a>3</a>"), null));
+    assertTrue(cache.getBytes() <= sizing.getBytes());
+  }
+
+  @Test
+  public void doesNotCacheAnEntryOverTheBudget() {
+    XMLResultCache cache = new XMLResultCache(64);
+    cache.put(doc("<a>1</a>"), null, values("1"));
+    assertEquals(0, cache.getEntries());
+    assertEquals(0, cache.getBytes());
+  }
+
+  @Test
+  public void comparesTheDocumentsWhenTheHashesCollide() {
+    XMLResultCache.Key first = new XMLResultCache.Key(doc("<a>1</a>"), null, 42);
+    XMLResultCache.Key same = new XMLResultCache.Key(doc("<a>1</a>"), null, 42);
+    XMLResultCache.Key other = new XMLResultCache.Key(doc("<a>2</a>"), null, 42);
+    assertEquals(first.hashCode(), other.hashCode());
+    assertTrue(first.equals(same));
+    assertFalse(first.equals(other));
+    assertFalse(new XMLResultCache.Key(null, "<a>1</a>", 42).equals(new XMLResultCache.Key(null, "<a>2</a>", 42)));
+  }
+
+  @Test
+  public void keepsTheRejectedSentinel() {
+    XMLResultCache cache = new XMLResultCache(1024 * 1024);
+    cache.put(doc("<a>1</a>"), null, XMLResultCache.REJECTED);
+    assertSame(XMLResultCache.REJECTED, cache.get(doc("<a>1</a>"), null));
+  }
+
+  @Test
+  public void copiesTheMutableValues() {
+    Date date = new Date(1000);
+    Timestamp timestamp = new Timestamp(2000);
+    timestamp.setNanos(123456789);
+    byte[] binary = { 1, 2 };
+    Object[] source = { "s", 1L, date, timestamp, binary };
+    Object[] target = new Object[source.length + 1];
+    XMLResultCache.copyValues(source, 0, target, 1, source.length);
+    assertSame(source[0], target[1]);
+    assertSame(source[1], target[2]);
+    assertNotSame(date, target[3]);
+    assertEquals(date, target[3]);
+    assertNotSame(timestamp, target[4]);
+    assertEquals(timestamp, target[4]);
+    assertNotSame(binary, target[5]);
+    assertArrayEquals(binary, (byte[]) target[5]);
+  }
+}
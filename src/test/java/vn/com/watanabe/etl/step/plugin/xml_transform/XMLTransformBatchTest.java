@@ -0,0 +1,84 @@
+package vn.com.watanabe.etl.step.plugin.xml_transform;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * A batch must put its rows in input order, rejected ones included, and
+ * follow the fill of the row sets.
+ */
+public class XMLTransformBatchTest {
+
+  /** Records the rows put, rejected ones prefixed */
+  private static class Recorder implements XMLTransformWorker.RowSink {
+    final List<String> rows = new ArrayList<String>();
+
+    @Override
+    public void putRow(Object[] row) {
+      rows.add((String) row[0]);
+    }
+
+    @Override
+    public void rejectRow(Object[] row) {
+      rows.add("rejected " + row[0]);
+    }
+  }
+
+  @Test
+  public void rejectedRowsKeepTheirPlace() throws Exception {
+    XMLTransformBatch batch = new XMLTransformBatch(8);
+    batch.putRow(new Object[] { "a" });
+    batch.rejectRow(new Object[] { "b" });
+    batch.putRow(new Object[] { "c1" });
+    batch.putRow(new Object[] { "c2" });
+    batch.rejectRow(new Object[] { "d" });
+    Recorder recorder = new Recorder();
+    batch.flush(recorder);
+    assertEquals("[a, rejected b, c1, c2, rejected d]", recorder.rows.toString());
+
+    // the next batch starts empty
+    batch.putRow(new Object[] { "e" });
+    recorder.rows.clear();
+    batch.flush(recorder);
+    assertEquals("[e]", recorder.rows.toString());
+  }
+
+  @Test
+  public void inputRowsGrowUpToTheMaximum() {
+    XMLTransformBatch batch = new XMLTransformBatch(40);
+    for (int i = 0; i < 40; i++) {
+      batch.add(new Object[] { i }, null, "<r>" + i + "</r>");
+    }
+    assertEquals(40, batch.getCount());
+    assertEquals("<r>39</r>", batch.getXMLs()[39]);
+    batch.clear();
+    assertEquals(0, batch.getCount());
+    assertNull(batch.getRows()[0]);
+  }
+
+  @Test
+  public void sizeFollowsTheRowSets() {
+    XMLTransformBatch batch = new XMLTransformBatch(50);
+    assertEquals(XMLTransformBatch.INITIAL_SIZE, batch.getSize());
+    // a full input doubles the size, up to the maximum
+    batch.adapt(100, 0, 10000);
+    assertEquals(32, batch.getSize());
+    batch.adapt(100, 0, 10000);
+    assertEquals(50, batch.getSize());
+    // a filling output halves it, whatever the input
+    batch.adapt(100, 8000, 10000);
+    assertEquals(25, batch.getSize());
+    // an input holding less than a batch keeps it
+    batch.adapt(3, 0, 10000);
+    assertEquals(25, batch.getSize());
+    for (int i = 0; i < 10; i++) {
+      batch.adapt(0, 10000, 10000);
+    }
+    assertEquals(1, batch.getSize());
+  }
+}